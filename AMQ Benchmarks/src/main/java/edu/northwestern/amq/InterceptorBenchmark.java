@@ -0,0 +1,152 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the {@link RequestInterceptor} hooks on a publish: without interceptors, with one that does nothing and
+ * with one that sets a tracing header and reads the attempt time.  The publisher's HTTP client is replaced by one that
+ * answers from memory, so the numbers are the library's own work on a call and the hooks are not lost in the noise of
+ * a round trip.  With -prof gc, "none" should allocate nothing more than before interceptors existed.  Lives in the
+ * library package because the HTTP client of a publisher is not public.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterceptorBenchmark {
+
+	private static final RequestInterceptor NO_OP_INTERCEPTOR = new RequestInterceptor() {
+
+	};
+
+	private static final RequestInterceptor TRACING_INTERCEPTOR = new RequestInterceptor() {
+
+		@Override
+		public void beforeSend(RequestContext context) {
+			context.getRequest().setHeader("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+		}
+
+		@Override
+		public void afterResponse(RequestContext context) {
+			context.setAttribute("gatewayNanos", context.getAttemptNanos());
+		}
+	};
+
+	/**
+	 * Answers every request with the same 200, without a body.
+	 */
+	private static class InMemoryHttpClient extends CloseableHttpClient {
+
+		private final CloseableHttpResponse response;
+
+		private InMemoryHttpClient() {
+			class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+				private Response() {
+					super(HttpVersion.HTTP_1_1, 200, "OK");
+					addHeader(AMQClient.MESSAGE_ID_HEADER_NAME, "ID:benchmark");
+				}
+
+				@Override
+				public void close() {
+
+				}
+			}
+
+			response = new Response();
+		}
+
+		@Override
+		protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) {
+			return response;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public HttpParams getParams() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public ClientConnectionManager getConnectionManager() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+
+		}
+	}
+
+	@Param({ "none", "noop", "tracing" })
+	private String interceptor;
+
+	private EventHubClientFactory clientFactory;
+	private AMQPublisher publisher;
+	private byte[] message;
+
+	@Setup
+	public void setup() {
+		EventHubClientFactory.FactoryBuilder factoryBuilder = EventHubClientFactory.FactoryBuilder.create();
+
+		if("noop".equals(interceptor)) {
+			factoryBuilder.addInterceptor(NO_OP_INTERCEPTOR);
+		}
+		else if("tracing".equals(interceptor)) {
+			factoryBuilder.addInterceptor(TRACING_INTERCEPTOR);
+		}
+
+		clientFactory = factoryBuilder.build();
+
+		publisher = AMQPublisher.PublisherBuilder
+				.create()
+				.setAPIKey("benchmark")
+				.setEnv(AMQClient.Environment.DEV)
+				.setClientFactory(clientFactory)
+				.setTopic("benchmark.topic")
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.build();
+		publisher.httpClient = new InMemoryHttpClient();
+
+		message = "{ \"name\" : \"Brent\", \"message\" : \"Hello\" }".getBytes();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		clientFactory.close();
+	}
+
+	@Benchmark
+	public WriteResult publish() throws Exception {
+		return publisher.writeToTopic(message);
+	}
+}
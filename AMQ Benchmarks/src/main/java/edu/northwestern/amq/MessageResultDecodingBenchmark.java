@@ -0,0 +1,69 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Decoding of the queue get envelope.  The legacy benchmark reproduces what getMessage() used to do on every poll
+ * (copy the body into a String and build a new ObjectMapper), run with -prof gc to compare allocations per call.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageResultDecodingBenchmark {
+
+	@Param({ "1", "50", "400" })
+	public int messageCount;
+
+	private HttpEntity jsonEntity;
+	private HttpEntity xmlEntity;
+	private MessageResultDecoder decoder;
+
+	@Setup
+	public void setup() {
+		jsonEntity = new ByteArrayEntity(Payloads.jsonMessageResult(messageCount), ContentType.APPLICATION_JSON);
+		xmlEntity = new ByteArrayEntity(Payloads.xmlMessageResult(messageCount), ContentType.APPLICATION_XML);
+		decoder = new MessageResultDecoder(new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true));
+	}
+
+	@Benchmark
+	public MessageResult legacyJson() throws IOException {
+		String responseString = EntityUtils.toString(jsonEntity);
+		ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
+
+		return mapper.readValue(responseString, MessageResult.class);
+	}
+
+	@Benchmark
+	public MessageResult streamingJson() throws IOException {
+		return decoder.decode(jsonEntity);
+	}
+
+	@Benchmark
+	public MessageResult streamingXml() throws IOException {
+		return decoder.decode(xmlEntity);
+	}
+}
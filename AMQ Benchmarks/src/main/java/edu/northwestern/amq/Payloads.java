@@ -0,0 +1,61 @@
+package edu.northwestern.amq;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds response bodies shaped like the ones returned by the queue get call so the benchmarks do not depend on
+ * a live gateway.
+ *
+ */
+public final class Payloads {
+
+	private static final String DATA = "{ 'name' : 'Brent', 'message' : 'Hello', 'padding' : '0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz' }";
+
+	private Payloads() {
+
+	}
+
+	public static String messageId(int index) {
+		return "ID:b-1234-5678-0:1:1:1:" + index;
+	}
+
+	public static byte[] jsonMessageResult(int messageCount) {
+		StringBuilder json = new StringBuilder(messageCount * 320 + 64);
+		json.append("{\"messages\":[");
+
+		for(int i = 1; i <= messageCount; i++) {
+			if(i > 1) {
+				json.append(',');
+			}
+
+			json.append("{\"data\":\"").append(DATA.replace("'", "\\\""))
+				.append("\",\"deliveryDate\":\"2019-05-06T15:23:11.123Z\"")
+				.append(",\"expirationDate\":\"2019-05-20T15:23:11.123Z\"")
+				.append(",\"deliveryAttempts\":1")
+				.append(",\"contentType\":\"application/json\"")
+				.append(",\"messageId\":\"").append(messageId(i)).append("\"}");
+		}
+
+		json.append("],\"hasAdditionalMessage\":false,\"count\":").append(messageCount).append('}');
+
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static byte[] xmlMessageResult(int messageCount) {
+		StringBuilder xml = new StringBuilder(messageCount * 400 + 128);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><messageResult><messages>");
+
+		for(int i = 1; i <= messageCount; i++) {
+			xml.append("<message><data>").append(DATA.replace("'", "&quot;")).append("</data>")
+				.append("<deliveryDate>2019-05-06T15:23:11.123Z</deliveryDate>")
+				.append("<expirationDate>2019-05-20T15:23:11.123Z</expirationDate>")
+				.append("<deliveryAttempts>1</deliveryAttempts>")
+				.append("<contentType>application/json</contentType>")
+				.append("<messageId>").append(messageId(i)).append("</messageId></message>");
+		}
+
+		xml.append("</messages><hasAdditionalMessage>false</hasAdditionalMessage><count>").append(messageCount).append("</count></messageResult>");
+
+		return xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,126 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Publish and acknowledge round trips against a {@link StubGateway} over loopback, so the numbers are the cost of the
+ * library and the HTTP stack rather than of the gateway.  Reports throughput and latency percentiles, run with
+ * -prof gc for bytes allocated per call and with -t to add client threads.
+ *
+ * {@link #retriedPublish()} publishes to a topic that fails every other request and retries without a delay, so with
+ * one thread every call takes two attempts and the difference to {@link #publish()} is the retry path plus one round
+ * trip.  Lives in the library package because acknowledging by message id is not public.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	//Retry immediately, the benchmark measures the retry path, not the backoff
+	private static final RetryPolicy NO_DELAY_RETRY_POLICY = new RetryPolicy() {
+
+		@Override
+		public void requestStarted() {
+
+		}
+
+		@Override
+		public long nextDelayMillis(int failures, long elapsedMillis) {
+			return 0;
+		}
+	};
+
+	private StubGateway gateway;
+	private EventHubClientFactory clientFactory;
+	private AMQPublisher publisher;
+	private AMQPublisher flakyPublisher;
+	private AMQConsumer consumer;
+	private String message;
+	private String messageId;
+
+	@Setup
+	public void setup() throws Exception {
+		gateway = new StubGateway(2);
+		clientFactory = EventHubClientFactory.FactoryBuilder.create().setRetryPolicy(NO_DELAY_RETRY_POLICY).build();
+
+		publisher = createPublisher("benchmark.topic");
+		flakyPublisher = createPublisher("flaky.topic");
+
+		consumer = AMQConsumer.ConsumerBuilder
+				.create()
+				.setAPIKey("benchmark")
+				.setEnv(AMQClient.Environment.DEV)
+				.setBaseURL(gateway.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setTopic("benchmark.queue")
+				.build();
+
+		message = "{ \"name\" : \"Brent\", \"message\" : \"Hello\" }";
+		messageId = Payloads.messageId(42);
+
+		//A closed connection would be retried and hide in the numbers, make sure the stub keeps them alive
+		publisher.writeToTopic(message);
+		WriteResult writeResult = publisher.writeToTopic(message);
+
+		if(!writeResult.isSuccess() || writeResult.getAttempts() != 1) {
+			throw new IllegalStateException("Stub gateway did not answer a keep alive write in one attempt.");
+		}
+	}
+
+	private AMQPublisher createPublisher(String topic) {
+		return AMQPublisher.PublisherBuilder
+				.create()
+				.setAPIKey("benchmark")
+				.setEnv(AMQClient.Environment.DEV)
+				.setBaseURL(gateway.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setTopic(topic)
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.build();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		clientFactory.close();
+		gateway.close();
+	}
+
+	@Benchmark
+	public WriteResult publish() throws Exception {
+		return publisher.writeToTopic(message);
+	}
+
+	@Benchmark
+	public WriteResult publishAsync() throws Exception {
+		return publisher.writeToTopicAsync(message).join();
+	}
+
+	@Benchmark
+	public AcknowledgeResult ack() throws Exception {
+		return consumer.acknowledgeMessage(messageId, true);
+	}
+
+	@Benchmark
+	public WriteResult retriedPublish() throws Exception {
+		return flakyPublisher.writeToTopic(message);
+	}
+}
@@ -0,0 +1,98 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.ws.rs.core.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency a caller sees writing to a {@link SpoolingPublisher} while the gateway is down, for each fsync policy.
+ * Every iteration appends {@link #BATCH_SIZE} messages to a new spool, so the score is the time of the whole batch and
+ * the spool never fills up.  The drainer only retries the oldest message, it does not compete for the disk.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = SpoolBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = SpoolBenchmark.BATCH_SIZE)
+@Fork(1)
+public class SpoolBenchmark {
+
+	static final int BATCH_SIZE = 10000;
+
+	@Param({ "NEVER", "INTERVAL", "ALWAYS" })
+	private PublishSpool.FsyncPolicy fsyncPolicy;
+
+	private EventHubClientFactory clientFactory;
+	private Path directory;
+	private SpoolingPublisher publisher;
+	private byte[] message;
+
+	@Setup
+	public void setup() {
+		clientFactory = EventHubClientFactory.FactoryBuilder.create().build();
+		message = "{ \"name\" : \"Brent\", \"message\" : \"Hello\" }".getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Setup(Level.Iteration)
+	public void createSpool() throws IOException {
+		directory = Files.createTempDirectory("amq-spool");
+
+		//Nothing listens on port 1, the gateway is down for the whole run
+		publisher = AMQPublisher.PublisherBuilder
+				.create()
+				.setAPIKey("benchmark")
+				.setEnv(AMQClient.Environment.DEV)
+				.setBaseURL("http://127.0.0.1:1/v1/event-hub/")
+				.setClientFactory(clientFactory)
+				.setTopic("benchmark.topic")
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.setMaxAttempts(1)
+				.setSpoolDirectory(directory)
+				.setSpoolSegmentBytes(4 * 1024 * 1024)
+				.setFsyncPolicy(fsyncPolicy)
+				.buildSpooling();
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteSpool() throws Exception {
+		publisher.close();
+
+		try(Stream<Path> files = Files.list(directory)) {
+			for(Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+
+		Files.delete(directory);
+	}
+
+	@TearDown
+	public void tearDown() {
+		clientFactory.close();
+	}
+
+	@Benchmark
+	public boolean append() throws IOException {
+		return publisher.writeToTopic(message);
+	}
+}
@@ -0,0 +1,118 @@
+package edu.northwestern.amq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand in for the gateway so round trips can be benchmarked without a network or an API key.  Every
+ * request is answered from memory: topic and queue writes return a message id, acknowledgements return 204 and a queue
+ * get returns one message.  Topics and queues whose name starts with "flaky" answer one in every n requests with a
+ * 503, starting with the first, so the retry path can be measured.
+ *
+ */
+public final class StubGateway implements Closeable {
+
+	public static final String BASE_PATH = "/v1/event-hub/";
+
+	private static final int SERVER_THREADS = 4;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int failEvery;
+	private final byte[] messageResult = Payloads.jsonMessageResult(1);
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong flakyCount = new AtomicLong();
+
+	/**
+	 * @param failEvery a 503 is returned for one in every n requests to a flaky topic or queue
+	 */
+	public StubGateway(int failEvery) throws IOException {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		this.failEvery = failEvery;
+		this.executor = Executors.newFixedThreadPool(SERVER_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "stub-gateway-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+		server.createContext(BASE_PATH, this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public String getBaseURL() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + BASE_PATH;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long request = requestCount.incrementAndGet();
+
+		try {
+			//Read the whole body, otherwise the server closes the connection instead of keeping it alive
+			drain(exchange.getRequestBody());
+
+			String path = exchange.getRequestURI().getRawPath().substring(BASE_PATH.length());
+			String method = exchange.getRequestMethod();
+
+			if(isFlaky(path) && flakyCount.getAndIncrement() % failEvery == 0) {
+				exchange.sendResponseHeaders(503, -1);
+			}
+			else if("POST".equals(method) && (path.startsWith("topic/") || path.startsWith("queue/"))) {
+				exchange.getResponseHeaders().set("x-message-id", Payloads.messageId((int) request));
+				exchange.sendResponseHeaders(200, -1);
+			}
+			else if("DELETE".equals(method) && path.startsWith("queue/")) {
+				exchange.sendResponseHeaders(204, -1);
+			}
+			else if("GET".equals(method) && path.startsWith("queue/")) {
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, messageResult.length);
+
+				try(OutputStream body = exchange.getResponseBody()) {
+					body.write(messageResult);
+				}
+			}
+			else {
+				exchange.sendResponseHeaders(404, -1);
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private static boolean isFlaky(String path) {
+		return path.startsWith("flaky", path.indexOf('/') + 1);
+	}
+
+	private static void drain(InputStream body) throws IOException {
+		byte[] buffer = new byte[4096];
+
+		while(body.read(buffer) >= 0) {
+			//Discard
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,19 @@
+package edu.northwestern.amq.test;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.RequestBuildingBenchmark;
+
+
+public class AllocationBudgetTest {
+
+	@Test
+	public void requestsWithinBudget() throws Exception {
+		List<String> overBudget = RequestBuildingBenchmark.checkAllocationBudgets();
+
+		Assert.assertTrue("Requests over their allocation budget: " + overBudget, overBudget.isEmpty());
+	}
+}
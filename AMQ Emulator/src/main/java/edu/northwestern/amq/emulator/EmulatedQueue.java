@@ -0,0 +1,110 @@
+package edu.northwestern.amq.emulator;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages of one queue in delivery order.  Like the gateway, a get without auto acknowledge leaves the messages at
+ * the head of the queue, so they are delivered again until they are acknowledged.  The depth is counted as messages
+ * come and go, the size of the map is not constant time.
+ *
+ */
+class EmulatedQueue {
+
+	private final ConcurrentSkipListMap<Long, StoredMessage> messages = new ConcurrentSkipListMap<>();
+	private final AtomicLong depth = new AtomicLong();
+	private EmulatedQueue deadLetterQueue = null;
+
+	void add(StoredMessage message) {
+		messages.put(message.getSequence(), message);
+		depth.incrementAndGet();
+	}
+
+	/**
+	 * @param taken filled with at most count messages from the head of the queue
+	 * @param remove whether the messages are taken off the queue, for auto acknowledge
+	 * @return whether more messages are waiting behind the ones returned
+	 */
+	boolean take(List<StoredMessage> taken, int count, boolean remove) {
+		if(remove) {
+			Map.Entry<Long, StoredMessage> entry;
+
+			while(taken.size() < count && (entry = messages.pollFirstEntry()) != null) {
+				depth.decrementAndGet();
+				taken.add(entry.getValue());
+			}
+
+			return !messages.isEmpty();
+		}
+
+		Iterator<StoredMessage> iterator = messages.values().iterator();
+
+		while(taken.size() < count && iterator.hasNext()) {
+			taken.add(iterator.next());
+		}
+
+		return iterator.hasNext();
+	}
+
+	/**
+	 * @param fastForward also acknowledge every message ahead of this one
+	 * @return false if the message is not in the queue (anymore)
+	 */
+	boolean acknowledge(long sequence, boolean fastForward) {
+		if(!fastForward) {
+			return remove(sequence) != null;
+		}
+
+		if(!messages.containsKey(sequence)) {
+			return false;
+		}
+
+		Map.Entry<Long, StoredMessage> head;
+
+		while((head = messages.firstEntry()) != null && head.getKey() <= sequence) {
+			remove(head.getKey());
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return false if the message is not in the queue (anymore)
+	 */
+	boolean moveToDeadLetterQueue(long sequence) {
+		StoredMessage message = remove(sequence);
+
+		if(message == null) {
+			return false;
+		}
+
+		getDeadLetterQueue().add(message);
+
+		return true;
+	}
+
+	private StoredMessage remove(long sequence) {
+		StoredMessage message = messages.remove(sequence);
+
+		if(message != null) {
+			depth.decrementAndGet();
+		}
+
+		return message;
+	}
+
+	synchronized EmulatedQueue getDeadLetterQueue() {
+		if(deadLetterQueue == null) {
+			deadLetterQueue = new EmulatedQueue();
+		}
+
+		return deadLetterQueue;
+	}
+
+	long getDepth() {
+		return depth.get();
+	}
+}
@@ -0,0 +1,596 @@
+package edu.northwestern.amq.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand in for the EventHub gateway, so consumers and publishers can be tested and load tested without
+ * Apigee.  Point a client at it with setBaseURL({@link #getBaseURL()}) on its builder.
+ *
+ * Implements topic and queue writes, queue gets (count, includeMetaData and autoAcknowledge), acknowledgement with and
+ * without fastForward and moves to the dead letter queue.  Status codes follow the gateway: an empty queue answers 204
+ * and acknowledging or moving a message that is no longer there answers 410.  A failure rate and a latency can be set
+ * to exercise retries and timeouts.
+ *
+ * Everything is held in memory, messages are kept as the bytes they were written with, so a queue can hold millions.
+ *
+ */
+public class EventHubEmulator implements Closeable {
+
+	public static final String BASE_PATH = "/v1/event-hub/";
+	protected static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+	protected static final int DEFAULT_PORT = 8080;
+	protected static final int MAX_MESSAGE_COUNT = 400;
+
+	private static final String MESSAGE_ID_HEADER_NAME = "x-message-id";
+	private static final String ADDITIONAL_MESSAGE_HEADER_NAME = "x-has-additional-message";
+	private static final String APIKEY_HEADER_NAME = "apikey";
+	private static final String MESSAGE_ID_PREFIX = "ID:emulator-";
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	private static final long EXPIRATION_MILLIS = TimeUnit.DAYS.toMillis(14);
+	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	private int port = 0;
+	private int threads = DEFAULT_THREADS;
+	private String apikey = null;
+	private double failureRate = 0;
+	private long latencyMillis = 0;
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+	private final Map<String, EmulatedQueue> queues = new ConcurrentHashMap<>();
+	private final Map<String, String[]> subscriptions = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	public static class EmulatorBuilder {
+
+		private EventHubEmulator emulator = new EventHubEmulator();
+
+		public static EmulatorBuilder create() {
+			return new EmulatorBuilder();
+		}
+
+		/**
+		 * Starts the emulator.
+		 *
+		 * @throws IOException if the port cannot be bound
+		 */
+		public EventHubEmulator build() throws IOException {
+			//Verify the object was completely instantiated.
+			if(emulator.port < 0 || emulator.threads <= 0) {
+				throw new IllegalArgumentException("Port cannot be negative and threads must be greater than zero.");
+			}
+
+			if(emulator.failureRate < 0 || emulator.failureRate > 1 || emulator.latencyMillis < 0) {
+				throw new IllegalArgumentException("Failure rate must be between 0 and 1 and latency cannot be negative.");
+			}
+
+			emulator.start();
+
+			return emulator;
+		}
+
+		/**
+		 * Port to listen on, by default a free port is picked.
+		 */
+		public EmulatorBuilder setPort(int port) {
+			emulator.port = port;
+			return this;
+		}
+
+		public EmulatorBuilder setThreads(int threads) {
+			emulator.threads = threads;
+			return this;
+		}
+
+		/**
+		 * Requests without this API key are answered with 401.  By default any key is accepted.
+		 */
+		public EmulatorBuilder setAPIKey(String apikey) {
+			emulator.apikey = apikey;
+			return this;
+		}
+
+		/**
+		 * Fraction of requests, between 0 and 1, answered with a 503 before they are processed.
+		 */
+		public EmulatorBuilder setFailureRate(double failureRate) {
+			emulator.failureRate = failureRate;
+			return this;
+		}
+
+		/**
+		 * Time every request waits before it is answered.
+		 */
+		public EmulatorBuilder setLatencyMillis(long latencyMillis) {
+			emulator.latencyMillis = latencyMillis;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link EmulatorBuilder}
+	 */
+	private EventHubEmulator() {
+
+	}
+
+	private void start() throws IOException {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "eventhub-emulator-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		server = HttpServer.create(new InetSocketAddress(port), 256);
+		server.createContext(BASE_PATH, this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Runs the emulator on its own, the port can be given as the only argument.
+	 */
+	public static void main(String[] args) throws IOException {
+		EventHubEmulator emulator = EmulatorBuilder.create().setPort(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT).build();
+
+		System.out.println("EventHub emulator listening on " + emulator.getBaseURL());
+	}
+
+	/**
+	 * @return the URL to pass to setBaseURL on the publisher and consumer builders
+	 */
+	public String getBaseURL() {
+		return "http://localhost:" + server.getAddress().getPort() + BASE_PATH;
+	}
+
+	/**
+	 * Delivers the messages written to the topic to these queues.  A topic without subscriptions delivers to the queue
+	 * of the same name.
+	 */
+	public void subscribe(String topic, String... queueNames) {
+		subscriptions.put(topic, queueNames.clone());
+	}
+
+	/**
+	 * Adds a message to the queue directly, to fill a queue without going through HTTP.
+	 *
+	 * @return the message id
+	 */
+	public String enqueue(String queueName, String contentType, byte[] data) {
+		long messageSequence = sequence.incrementAndGet();
+		getQueue(queueName).add(new StoredMessage(messageSequence, data, contentType, System.currentTimeMillis()));
+
+		return MESSAGE_ID_PREFIX + messageSequence;
+	}
+
+	/**
+	 * @return number of messages in the queue that have not been acknowledged
+	 */
+	public long getQueueDepth(String queueName) {
+		EmulatedQueue queue = queues.get(queueName);
+
+		return queue != null ? queue.getDepth() : 0;
+	}
+
+	/**
+	 * @return number of messages moved from the queue to its dead letter queue
+	 */
+	public long getDeadLetterDepth(String queueName) {
+		EmulatedQueue queue = queues.get(queueName);
+
+		return queue != null ? queue.getDeadLetterQueue().getDepth() : 0;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return number of requests answered with a 503 because of the failure rate
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	private EmulatedQueue getQueue(String queueName) {
+		return queues.computeIfAbsent(queueName, name -> new EmulatedQueue());
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+
+		try {
+			//Read the whole body first, otherwise the connection cannot be kept alive
+			byte[] body = readBody(exchange);
+
+			if(latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+
+			if(apikey != null && !apikey.equals(exchange.getRequestHeaders().getFirst(APIKEY_HEADER_NAME))) {
+				exchange.sendResponseHeaders(401, -1);
+			}
+			else if(failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+				failedCount.incrementAndGet();
+				exchange.sendResponseHeaders(503, -1);
+			}
+			else {
+				route(exchange, body);
+			}
+		}
+		catch(Exception e) {
+			//Nothing can be sent once the status line is out
+			if(exchange.getResponseCode() == -1) {
+				exchange.sendResponseHeaders(500, -1);
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private void route(HttpExchange exchange, byte[] body) throws IOException, XMLStreamException {
+		String[] segments = exchange.getRequestURI().getRawPath().substring(BASE_PATH.length()).split("/");
+
+		for(int i = 0; i < segments.length; i++) {
+			segments[i] = decodeSegment(segments[i]);
+		}
+
+		if(segments.length == 2 && "topic".equals(segments[0])) {
+			if(isAllowed(exchange, "POST")) {
+				writeToTopic(exchange, segments[1], body);
+			}
+		}
+		else if(segments.length == 2 && "queue".equals(segments[0])) {
+			if(isAllowed(exchange, "POST")) {
+				writeToQueue(exchange, segments[1], body);
+			}
+		}
+		else if(segments.length == 3 && "queue".equals(segments[0]) && "message".equals(segments[2])) {
+			if(isAllowed(exchange, "GET")) {
+				getMessages(exchange, segments[1]);
+			}
+		}
+		else if(segments.length == 4 && "queue".equals(segments[0]) && "message".equals(segments[2])) {
+			if(isAllowed(exchange, "DELETE")) {
+				acknowledge(exchange, segments[1], segments[3]);
+			}
+		}
+		else if(segments.length == 6 && "queue".equals(segments[0]) && "message".equals(segments[2]) && "DLQ".equals(segments[4])) {
+			if(isAllowed(exchange, "POST")) {
+				moveToDeadLetterQueue(exchange, segments[1], segments[3]);
+			}
+		}
+		else {
+			exchange.sendResponseHeaders(404, -1);
+		}
+	}
+
+	/**
+	 * @return false if the request does not use the method, after answering it with 405
+	 */
+	private static boolean isAllowed(HttpExchange exchange, String method) throws IOException {
+		if(method.equals(exchange.getRequestMethod())) {
+			return true;
+		}
+
+		exchange.sendResponseHeaders(405, -1);
+
+		return false;
+	}
+
+	private void writeToTopic(HttpExchange exchange, String topic, byte[] body) throws IOException {
+		long messageSequence = sequence.incrementAndGet();
+		StoredMessage message = new StoredMessage(messageSequence, body, contentTypeOf(exchange), System.currentTimeMillis());
+		String[] queueNames = subscriptions.get(topic);
+
+		if(queueNames == null) {
+			getQueue(topic).add(message);
+		}
+		else {
+			//Every queue gets its own copy so delivery attempts are counted per queue
+			for(String queueName : queueNames) {
+				getQueue(queueName).add(new StoredMessage(messageSequence, body, message.getContentType(), message.getDeliveryDate()));
+			}
+		}
+
+		written(exchange, messageSequence);
+	}
+
+	private void writeToQueue(HttpExchange exchange, String queueName, byte[] body) throws IOException {
+		long messageSequence = sequence.incrementAndGet();
+		getQueue(queueName).add(new StoredMessage(messageSequence, body, contentTypeOf(exchange), System.currentTimeMillis()));
+
+		written(exchange, messageSequence);
+	}
+
+	private static void written(HttpExchange exchange, long messageSequence) throws IOException {
+		exchange.getResponseHeaders().set(MESSAGE_ID_HEADER_NAME, MESSAGE_ID_PREFIX + messageSequence);
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void getMessages(HttpExchange exchange, String queueName) throws IOException, XMLStreamException {
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		boolean includeMetaData = Boolean.parseBoolean(query.get("includeMetaData"));
+		boolean autoAcknowledge = Boolean.parseBoolean(query.get("autoAcknowledge"));
+		int count;
+
+		try {
+			count = query.containsKey("count") ? Integer.parseInt(query.get("count")) : 1;
+		}
+		catch(NumberFormatException e) {
+			count = -1;
+		}
+
+		//Same limits as the gateway
+		if(count < 1 || count > MAX_MESSAGE_COUNT || (count > 1 && !includeMetaData)) {
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+
+		EmulatedQueue queue = queues.get(queueName);
+		List<StoredMessage> messages = new ArrayList<>(count);
+		boolean hasAdditionalMessage = queue != null && queue.take(messages, count, autoAcknowledge);
+
+		if(messages.isEmpty()) {
+			exchange.sendResponseHeaders(204, -1);
+			return;
+		}
+
+		Headers headers = exchange.getResponseHeaders();
+		byte[] body;
+
+		if(!includeMetaData) {
+			StoredMessage message = messages.get(0);
+			message.delivered();
+
+			headers.set("Content-Type", message.getContentType());
+			headers.set(MESSAGE_ID_HEADER_NAME, MESSAGE_ID_PREFIX + message.getSequence());
+			headers.set(ADDITIONAL_MESSAGE_HEADER_NAME, Boolean.toString(hasAdditionalMessage));
+			body = message.getData();
+		}
+		else if(accepts(exchange, "xml")) {
+			headers.set("Content-Type", "application/xml");
+			body = writeXml(messages, hasAdditionalMessage);
+		}
+		else {
+			headers.set("Content-Type", "application/json");
+			body = writeJson(messages, hasAdditionalMessage);
+		}
+
+		exchange.sendResponseHeaders(200, body.length);
+
+		try(OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write(body);
+		}
+	}
+
+	private static byte[] writeJson(List<StoredMessage> messages, boolean hasAdditionalMessage) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(messages.size() * 320 + 64);
+
+		try(JsonGenerator json = JSON_FACTORY.createGenerator(body, JsonEncoding.UTF8)) {
+			json.writeStartObject();
+			json.writeArrayFieldStart("messages");
+
+			for(StoredMessage message : messages) {
+				int deliveryAttempts = message.delivered();
+
+				json.writeStartObject();
+				json.writeFieldName("data");
+
+				//Bodies that are already UTF-8 are escaped as they are, without decoding them
+				Charset charset = charsetOf(message.getContentType());
+
+				if(StandardCharsets.UTF_8.equals(charset)) {
+					json.writeUTF8String(message.getData(), 0, message.getData().length);
+				}
+				else {
+					json.writeString(new String(message.getData(), charset));
+				}
+
+				json.writeStringField("deliveryDate", DATE_FORMATTER.format(Instant.ofEpochMilli(message.getDeliveryDate())));
+				json.writeStringField("expirationDate", DATE_FORMATTER.format(Instant.ofEpochMilli(message.getDeliveryDate() + EXPIRATION_MILLIS)));
+				json.writeNumberField("deliveryAttempts", deliveryAttempts);
+				json.writeStringField("contentType", message.getContentType());
+				json.writeStringField("messageId", MESSAGE_ID_PREFIX + message.getSequence());
+				json.writeEndObject();
+			}
+
+			json.writeEndArray();
+			json.writeBooleanField("hasAdditionalMessage", hasAdditionalMessage);
+			json.writeNumberField("count", messages.size());
+			json.writeEndObject();
+		}
+
+		return body.toByteArray();
+	}
+
+	private static byte[] writeXml(List<StoredMessage> messages, boolean hasAdditionalMessage) throws XMLStreamException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(messages.size() * 400 + 128);
+		XMLStreamWriter xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(body, "UTF-8");
+
+		xml.writeStartDocument("UTF-8", "1.0");
+		xml.writeStartElement("messageResult");
+		xml.writeStartElement("messages");
+
+		for(StoredMessage message : messages) {
+			int deliveryAttempts = message.delivered();
+
+			xml.writeStartElement("message");
+			writeElement(xml, "data", new String(message.getData(), charsetOf(message.getContentType())));
+			writeElement(xml, "deliveryDate", DATE_FORMATTER.format(Instant.ofEpochMilli(message.getDeliveryDate())));
+			writeElement(xml, "expirationDate", DATE_FORMATTER.format(Instant.ofEpochMilli(message.getDeliveryDate() + EXPIRATION_MILLIS)));
+			writeElement(xml, "deliveryAttempts", Integer.toString(deliveryAttempts));
+			writeElement(xml, "contentType", message.getContentType());
+			writeElement(xml, "messageId", MESSAGE_ID_PREFIX + message.getSequence());
+			xml.writeEndElement();
+		}
+
+		xml.writeEndElement();
+		writeElement(xml, "hasAdditionalMessage", Boolean.toString(hasAdditionalMessage));
+		writeElement(xml, "count", Integer.toString(messages.size()));
+		xml.writeEndElement();
+		xml.writeEndDocument();
+		xml.close();
+
+		return body.toByteArray();
+	}
+
+	private static void writeElement(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+		xml.writeStartElement(name);
+		xml.writeCharacters(value);
+		xml.writeEndElement();
+	}
+
+	private void acknowledge(HttpExchange exchange, String queueName, String messageId) throws IOException {
+		boolean fastForward = Boolean.parseBoolean(parseQuery(exchange.getRequestURI().getRawQuery()).get("fastForward"));
+		EmulatedQueue queue = queues.get(queueName);
+		long messageSequence = sequenceOf(messageId);
+
+		exchange.sendResponseHeaders(queue != null && messageSequence > 0 && queue.acknowledge(messageSequence, fastForward) ? 204 : 410, -1);
+	}
+
+	private void moveToDeadLetterQueue(HttpExchange exchange, String queueName, String messageId) throws IOException {
+		EmulatedQueue queue = queues.get(queueName);
+		long messageSequence = sequenceOf(messageId);
+
+		exchange.sendResponseHeaders(queue != null && messageSequence > 0 && queue.moveToDeadLetterQueue(messageSequence) ? 204 : 410, -1);
+	}
+
+	/**
+	 * @return the sequence in an id handed out by this emulator, -1 for any other id
+	 */
+	private static long sequenceOf(String messageId) {
+		if(!messageId.startsWith(MESSAGE_ID_PREFIX)) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(messageId.substring(MESSAGE_ID_PREFIX.length()));
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream requestBody = exchange.getRequestBody();
+
+		if("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			requestBody = new GZIPInputStream(requestBody);
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+
+		while((read = requestBody.read(buffer)) >= 0) {
+			body.write(buffer, 0, read);
+		}
+
+		return body.toByteArray();
+	}
+
+	private static String contentTypeOf(HttpExchange exchange) {
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+		return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+	}
+
+	private static boolean accepts(HttpExchange exchange, String subtype) {
+		String accept = exchange.getRequestHeaders().getFirst("Accept");
+
+		return accept != null && accept.contains(subtype);
+	}
+
+	/**
+	 * @return the declared charset, else UTF-8 for JSON and ISO-8859-1 for anything else, like the library
+	 */
+	private static Charset charsetOf(String contentType) {
+		int charsetIndex = contentType.toLowerCase().indexOf("charset=");
+
+		if(charsetIndex >= 0) {
+			String charsetName = contentType.substring(charsetIndex + "charset=".length()).split(";")[0].trim().replace("\"", "");
+
+			try {
+				return Charset.forName(charsetName);
+			}
+			catch(IllegalArgumentException e) {
+				//Fall back on the default of the media type
+			}
+		}
+
+		return contentType.toLowerCase().contains("json") ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> query = new HashMap<>();
+
+		if(rawQuery != null) {
+			for(String parameter : rawQuery.split("&")) {
+				int equals = parameter.indexOf('=');
+
+				if(equals > 0) {
+					query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+
+		return query;
+	}
+
+	/**
+	 * Decodes a path segment, unlike URLDecoder a + is kept as it is.
+	 */
+	private static String decodeSegment(String segment) throws UnsupportedEncodingException {
+		return segment.indexOf('%') < 0 ? segment : URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+	}
+
+	@Override
+	public void close() {
+		if(server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package edu.northwestern.amq.emulator;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A message held by a queue of the emulator.  Kept small since a queue can hold millions of them: the body stays in
+ * the bytes it was written with and the dates are formatted only when the message is delivered.
+ *
+ */
+class StoredMessage {
+
+	private static final AtomicIntegerFieldUpdater<StoredMessage> DELIVERY_ATTEMPTS = AtomicIntegerFieldUpdater.newUpdater(StoredMessage.class, "deliveryAttempts");
+
+	private final long sequence;
+	private final byte[] data;
+	private final String contentType;
+	private final long deliveryDate;
+	private volatile int deliveryAttempts;
+
+	StoredMessage(long sequence, byte[] data, String contentType, long deliveryDate) {
+		this.sequence = sequence;
+		this.data = data;
+		this.contentType = contentType;
+		this.deliveryDate = deliveryDate;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	byte[] getData() {
+		return data;
+	}
+
+	String getContentType() {
+		return contentType;
+	}
+
+	long getDeliveryDate() {
+		return deliveryDate;
+	}
+
+	int getDeliveryAttempts() {
+		return deliveryAttempts;
+	}
+
+	/**
+	 * @return the number of deliveries including this one
+	 */
+	int delivered() {
+		return DELIVERY_ATTEMPTS.incrementAndGet(this);
+	}
+}
@@ -0,0 +1,510 @@
+package edu.northwestern.amq.emulator.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.northwestern.amq.AMQConsumer;
+import edu.northwestern.amq.AMQPublisher;
+import edu.northwestern.amq.AcknowledgeResult;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.IdempotencyCache;
+import edu.northwestern.amq.LagStats;
+import edu.northwestern.amq.MessageListenerContainer;
+import edu.northwestern.amq.MessageResult;
+import edu.northwestern.amq.MessageStream;
+import edu.northwestern.amq.SpoolingPublisher;
+import edu.northwestern.amq.WriteResult;
+import edu.northwestern.amq.emulator.EventHubEmulator;
+
+
+public class EventHubEmulatorTest {
+
+	private static final String testMessage = "{ \"name\" : \"Brent\", \"message\" : \"Hello\" }";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private EventHubEmulator emulator = null;
+	private EventHubClientFactory clientFactory = null;
+
+	@Before
+	public void startEmulator() throws IOException {
+		emulator = EventHubEmulator.EmulatorBuilder.create().setAPIKey("apikey").build();
+		clientFactory = EventHubClientFactory.FactoryBuilder.create().build();
+	}
+
+	@After
+	public void stopEmulator() {
+		clientFactory.close();
+		emulator.close();
+	}
+
+	private AMQPublisher createPublisher(String topic, int maxAttempts) {
+		return AMQPublisher.PublisherBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic(topic)
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxAttempts(maxAttempts)
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.build();
+	}
+
+	private AMQConsumer createConsumer(String queue, int maxMessages) {
+		return AMQConsumer.ConsumerBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic(queue)
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxMessages(maxMessages)
+				.build();
+	}
+
+	private int send(String method, String path, String accept) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(emulator.getBaseURL() + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setRequestProperty("apikey", "apikey");
+
+		if(accept != null) {
+			connection.setRequestProperty("Accept", accept);
+		}
+
+		int statusCode = connection.getResponseCode();
+		connection.disconnect();
+
+		return statusCode;
+	}
+
+	@Test
+	public void publishAndConsume() throws Exception {
+		emulator.subscribe("orders", "orders.billing", "orders.shipping");
+		AMQPublisher publisher = createPublisher("orders", 1);
+
+		for(int i = 0; i < 3; i++) {
+			WriteResult writeResult = publisher.writeToTopic(testMessage);
+			Assert.assertTrue("Write should succeed: " + writeResult.getStatusCode(), writeResult.isSuccess());
+			Assert.assertNotNull("Message ID should not be null", writeResult.getMessageId());
+		}
+
+		Assert.assertEquals("Every subscribed queue should get the messages", 3, emulator.getQueueDepth("orders.shipping"));
+
+		//Test a batch is delivered, acknowledged up to its last message and the queue is then empty
+		AMQConsumer consumer = createConsumer("orders.billing", 2);
+		MessageResult messageResult = consumer.getMessage();
+		Assert.assertEquals("Should get a full batch", 2, messageResult.getMessages().size());
+		Assert.assertTrue("Should report the message left behind", messageResult.hasAdditionalMessage());
+		Assert.assertEquals("Message body should be delivered as written", testMessage, messageResult.getMessages().get(0).getData());
+
+		AcknowledgeResult ackResult = consumer.acknowledgeMessage();
+		Assert.assertTrue("Message was not Acknowledged", ackResult.isSuccess());
+		Assert.assertEquals("Fast forward should acknowledge the whole batch", 1, emulator.getQueueDepth("orders.billing"));
+
+		consumer.getMessage();
+		consumer.acknowledgeMessage();
+		Assert.assertFalse("Queue should be empty", consumer.getMessage().hasMessage());
+		Assert.assertEquals("Other subscriptions should be untouched", 3, emulator.getQueueDepth("orders.shipping"));
+	}
+
+	@Test
+	public void redeliveredUntilAcknowledged() throws Exception {
+		emulator.enqueue("redelivered", "application/json", testMessage.getBytes(StandardCharsets.UTF_8));
+		AMQConsumer consumer = createConsumer("redelivered", 1);
+
+		Assert.assertEquals("First delivery", 1, consumer.getMessage().getMessage().getDeliveryAttempts());
+		consumer.rollback();
+
+		Assert.assertEquals("Unacknowledged message should be delivered again", 2, consumer.getMessage().getMessage().getDeliveryAttempts());
+
+		Assert.assertTrue("Message should move to the dead letter queue", consumer.acknowledgeAsPoison().isSuccess());
+		Assert.assertEquals("Queue should be empty", 0, emulator.getQueueDepth("redelivered"));
+		Assert.assertEquals("Dead letter queue should hold the message", 1, emulator.getDeadLetterDepth("redelivered"));
+	}
+
+	@Test
+	public void streamClosedByNextGet() throws Exception {
+		for(int i = 0; i < 6; i++) {
+			emulator.enqueue("streamed", "application/json", testMessage.getBytes(StandardCharsets.UTF_8));
+		}
+
+		AMQConsumer consumer = AMQConsumer.ConsumerBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic("streamed")
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxMessages(2)
+				.autoAcknowledge(true)
+				.build();
+
+		//Test a stream left part way through does not keep its connection leased
+		MessageStream messageStream = consumer.getMessageStream();
+		Assert.assertNotNull(messageStream.next());
+		Assert.assertEquals("Open stream should hold its connection", 1, clientFactory.getPoolStats().getLeased());
+
+		Assert.assertEquals(2, consumer.getMessage().getMessages().size());
+		Assert.assertFalse("Stream should be closed by the next get", messageStream.hasNext());
+		Assert.assertEquals(2, consumer.getMessage().getMessages().size());
+		Assert.assertEquals("No connection should be leased", 0, clientFactory.getPoolStats().getLeased());
+	}
+
+	@Test
+	public void consumerLag() throws Exception {
+		emulator.enqueue("lagging", "application/json", testMessage.getBytes(StandardCharsets.UTF_8));
+		Thread.sleep(100);
+		AMQConsumer consumer = createConsumer("lagging", 1);
+
+		//Test the lag runs from the delivery date and redeliveries are counted
+		consumer.getMessage();
+		consumer.rollback();
+		consumer.getMessage();
+		consumer.acknowledgeMessage();
+
+		LagStats lagStats = clientFactory.getMetrics().getLagStats().get("dev/lagging");
+		Assert.assertEquals("Both deliveries should be counted", 2, lagStats.getMessageCount());
+		Assert.assertEquals("Second delivery should be a redelivery", 1, lagStats.getRedeliveredCount());
+		Assert.assertTrue("Lag should include the time in the queue: " + lagStats.getMaxLagMillis(), lagStats.getMaxLagMillis() >= 100);
+		Assert.assertTrue("Current lag should be the latest get", lagStats.getCurrentLagMillis() >= 100);
+
+		Assert.assertFalse("Queue should be empty", consumer.getMessage().hasMessage());
+		Assert.assertEquals("Empty queue should have no lag", 0, clientFactory.getMetrics().getLagStats().get("dev/lagging").getCurrentLagMillis());
+	}
+
+	@Test
+	public void duplicatesSkipped() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			emulator.enqueue("deduplicated", "application/json", ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+		}
+
+		IdempotencyCache cache = IdempotencyCache.CacheBuilder.create().build();
+		final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+		AMQConsumer consumer = AMQConsumer.ConsumerBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic("deduplicated")
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxMessages(3)
+				.setIdempotencyCache(cache)
+				.build();
+
+		//The second message fails on its first delivery, so the whole batch is rolled back
+		MessageListenerContainer container = MessageListenerContainer.ContainerBuilder
+				.create()
+				.setConsumer(consumer)
+				.setHandlerThreads(1)
+				.setMessageListener(message -> {
+					handled.add(message.getData());
+
+					if(message.getData().equals("{\"n\":1}") && message.getDeliveryAttempts() == 1) {
+						throw new IllegalStateException("First attempt fails");
+					}
+				})
+				.build();
+
+		container.start();
+
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+
+			while(emulator.getQueueDepth("deduplicated") > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+		}
+		finally {
+			container.stop(1, TimeUnit.SECONDS);
+		}
+
+		Assert.assertEquals("Queue should be drained", 0, emulator.getQueueDepth("deduplicated"));
+
+		//Test only the failed message reaches the listener again
+		Assert.assertEquals(4, handled.size());
+		Assert.assertEquals("{\"n\":1}", handled.get(3));
+		Assert.assertEquals("Messages that succeeded should be skipped", 2, cache.getStats().getDuplicateCount());
+	}
+
+	@Test
+	public void poisonSkipsTrailingDuplicate() throws Exception {
+		List<String> messageIds = new ArrayList<String>();
+
+		for(int i = 0; i < 3; i++) {
+			messageIds.add(emulator.enqueue("poisoned", "application/json", ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8)));
+		}
+
+		//The last message of the batch was already processed
+		IdempotencyCache cache = IdempotencyCache.CacheBuilder.create().build();
+		cache.record(messageIds.get(2));
+
+		AMQConsumer consumer = AMQConsumer.ConsumerBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic("poisoned")
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxMessages(3)
+				.setIdempotencyCache(cache)
+				.build();
+
+		MessageResult messageResult = consumer.getMessage();
+		Assert.assertEquals(2, messageResult.getMessages().size());
+		Assert.assertTrue(consumer.acknowledgeAsPoison().isSuccess());
+
+		//Test the last message handed out was moved, not the duplicate after it
+		Assert.assertEquals(1, emulator.getDeadLetterDepth("poisoned"));
+
+		messageResult = consumer.getMessage();
+		Assert.assertEquals(1, messageResult.getMessages().size());
+		Assert.assertEquals("{\"n\":0}", messageResult.getMessages().get(0).getData());
+		Assert.assertTrue(consumer.acknowledgeMessage().isSuccess());
+		Assert.assertEquals(0, emulator.getQueueDepth("poisoned"));
+	}
+
+	@Test
+	public void eachMessageProcessedOnceByTwoPollers() throws Exception {
+		for(int i = 0; i < 20; i++) {
+			emulator.enqueue("polled", "application/json", ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+		}
+
+		final ConcurrentMap<String, AtomicInteger> handled = new ConcurrentHashMap<String, AtomicInteger>();
+
+		AMQConsumer consumer = AMQConsumer.ConsumerBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic("polled")
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxMessages(2)
+				.autoAcknowledge(true)
+				.build();
+
+		MessageListenerContainer container = MessageListenerContainer.ContainerBuilder
+				.create()
+				.setConsumer(consumer)
+				.setPollThreads(2)
+				.setHandlerThreads(4)
+				.setMessageListener(message -> {
+					handled.computeIfAbsent(message.getData(), data -> new AtomicInteger()).incrementAndGet();
+
+					if(message.getData().equals("{\"n\":0}")) {
+						throw new IllegalStateException("Fails on every delivery");
+					}
+				})
+				.build();
+
+		container.start();
+
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+
+			while(container.getStats().getProcessedCount() + container.getStats().getFailedCount() < 20 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+		}
+		finally {
+			container.stop(1, TimeUnit.SECONDS);
+		}
+
+		Assert.assertEquals("Every message should be processed", 20, handled.size());
+
+		for(Map.Entry<String, AtomicInteger> entry : handled.entrySet()) {
+			Assert.assertEquals("Message should be processed once: " + entry.getKey(), 1, entry.getValue().get());
+		}
+
+		//Test the failed message was already removed by the gateway and is counted as dropped
+		Assert.assertEquals(1, container.getStats().getDroppedCount());
+		Assert.assertEquals(0, container.getStats().getDeadLetterCount());
+
+		//Test pollers sharing a queue without autoAcknowledge are refused, they would all get the same batch
+		try {
+			MessageListenerContainer.ContainerBuilder
+					.create()
+					.setConsumer(createConsumer("polled", 2))
+					.setPollThreads(2)
+					.setMessageListener(message -> { })
+					.build();
+			Assert.fail("Two pollers without autoAcknowledge should be refused");
+		}
+		catch(IllegalArgumentException e) {
+			//Expected
+		}
+
+		//Test policies an autoAcknowledge consumer cannot honour are refused
+		try {
+			MessageListenerContainer.ContainerBuilder
+					.create()
+					.setConsumer(consumer)
+					.setErrorPolicy(MessageListenerContainer.ErrorPolicy.DEAD_LETTER)
+					.setMessageListener(message -> { })
+					.build();
+			Assert.fail("Dead letter policy with autoAcknowledge should be refused");
+		}
+		catch(IllegalArgumentException e) {
+			//Expected
+		}
+
+		try {
+			MessageListenerContainer.ContainerBuilder
+					.create()
+					.setConsumer(consumer)
+					.setMaxDeliveryAttempts(3)
+					.setMessageListener(message -> { })
+					.build();
+			Assert.fail("Max delivery attempts with autoAcknowledge should be refused");
+		}
+		catch(IllegalArgumentException e) {
+			//Expected
+		}
+	}
+
+	@Test
+	public void restartedAfterStop() throws Exception {
+		final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+		AMQConsumer consumer = createConsumer("restarted", 1);
+
+		MessageListenerContainer container = MessageListenerContainer.ContainerBuilder
+				.create()
+				.setConsumer(consumer)
+				.setMessageListener(message -> handled.add(message.getData()))
+				.build();
+
+		for(int i = 1; i <= 2; i++) {
+			emulator.enqueue("restarted", "application/json", ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+			container.start();
+
+			try {
+				long deadline = System.currentTimeMillis() + 10000;
+
+				while(emulator.getQueueDepth("restarted") > 0 && System.currentTimeMillis() < deadline) {
+					Thread.sleep(20);
+				}
+			}
+			finally {
+				container.stop(1, TimeUnit.SECONDS);
+			}
+
+			Assert.assertFalse("Supplied consumer should be left open", consumer.isClosed());
+		}
+
+		//Test the container polls again once restarted
+		Assert.assertEquals(Arrays.asList("{\"n\":1}", "{\"n\":2}"), handled);
+	}
+
+	@Test
+	public void statusCodes() throws Exception {
+		String messageId = emulator.enqueue("status", "application/json", testMessage.getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertEquals("Empty queue should answer 204", 204, send("GET", "queue/empty/message?count=1&includeMetaData=true", null));
+		Assert.assertEquals("Count is limited to 400", 400, send("GET", "queue/status/message?count=401&includeMetaData=true", null));
+		Assert.assertEquals("Unknown path should answer 404", 404, send("GET", "topic/status/message", null));
+		Assert.assertEquals("Wrong method should answer 405", 405, send("GET", "topic/status", null));
+		Assert.assertEquals("Should answer in XML when asked", 200, send("GET", "queue/status/message?count=1&includeMetaData=true", "application/xml"));
+		Assert.assertEquals("Acknowledge should answer 204", 204, send("DELETE", "queue/status/message/" + messageId + "?fastForward=false", null));
+		Assert.assertEquals("Message that is gone should answer 410", 410, send("DELETE", "queue/status/message/" + messageId + "?fastForward=false", null));
+		Assert.assertEquals("Foreign message id should answer 410", 410, send("DELETE", "queue/status/message/ID:other-1?fastForward=true", null));
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(emulator.getBaseURL() + "queue/status/message").openConnection();
+		Assert.assertEquals("Wrong API key should answer 401", 401, connection.getResponseCode());
+	}
+
+	@Test
+	public void xmlEnvelope() throws Exception {
+		emulator.enqueue("xml", "application/json", testMessage.getBytes(StandardCharsets.UTF_8));
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(emulator.getBaseURL() + "queue/xml/message?count=1&includeMetaData=true").openConnection();
+		connection.setRequestProperty("apikey", "apikey");
+		connection.setRequestProperty("Accept", "application/xml");
+
+		try(InputStream body = connection.getInputStream(); Scanner scanner = new Scanner(body, "UTF-8")) {
+			String xml = scanner.useDelimiter("\\A").next();
+			Assert.assertTrue("Should be an XML envelope: " + xml, xml.contains("<messageResult><messages><message><data>"));
+			Assert.assertTrue("Should carry the message: " + xml, xml.contains("<data>" + testMessage + "</data>"));
+		}
+	}
+
+	@Test
+	public void failuresAreRetried() throws Exception {
+		emulator.close();
+		emulator = EventHubEmulator.EmulatorBuilder.create().setFailureRate(1).build();
+
+		WriteResult writeResult = createPublisher("failing", 2).writeToTopic(testMessage);
+		Assert.assertFalse("Write should fail", writeResult.isSuccess());
+		Assert.assertEquals("Should give up with the last status code", 503, writeResult.getStatusCode());
+		Assert.assertEquals("Should try twice", 2, emulator.getFailedCount());
+	}
+
+	@Test
+	public void spoolSentInOrder() throws Exception {
+		emulator.close();
+		emulator = EventHubEmulator.EmulatorBuilder.create().setAPIKey("apikey").setFailureRate(0.3).build();
+		emulator.subscribe("spooled", "spooled");
+
+		SpoolingPublisher publisher = AMQPublisher.PublisherBuilder
+				.create()
+				.setEnv("dev")
+				.setTopic("spooled")
+				.setAPIKey("apikey")
+				.setBaseURL(emulator.getBaseURL())
+				.setClientFactory(clientFactory)
+				.setMaxAttempts(1)
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.setSpoolDirectory(folder.getRoot().toPath())
+				.buildSpooling();
+
+		try {
+			for(int i = 0; i < 10; i++) {
+				Assert.assertTrue("Write should be spooled", publisher.writeToTopic("{\"n\":" + i + "}"));
+			}
+
+			//Test every failed send is tried again before the messages after it
+			Assert.assertTrue("Spool should drain", publisher.awaitDrained(30, TimeUnit.SECONDS));
+			Assert.assertEquals(10, publisher.getStats().getSentCount());
+			Assert.assertEquals(publisher.getStats().getFailedAttemptCount(), emulator.getFailedCount());
+		}
+		finally {
+			publisher.close();
+		}
+
+		AMQConsumer consumer = createConsumer("spooled", 10);
+		MessageResult messageResult = consumer.getMessage();
+		Assert.assertEquals("Every message should be delivered once", 10, messageResult.getMessages().size());
+
+		for(int i = 0; i < 10; i++) {
+			Assert.assertEquals("Messages should be delivered in order", "{\"n\":" + i + "}", messageResult.getMessages().get(i).getData());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFailureRate() throws IOException {
+		EventHubEmulator.EmulatorBuilder.create().setFailureRate(2).build();
+	}
+}
@@ -1,19 +1,89 @@
 package edu.northwestern.amq;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status.Family;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class AMQClient {
+import edu.northwestern.amq.ClientMetrics.Operation;
+
+public class AMQClient implements Closeable {
 
 	protected static final String MESSAGE_ID_HEADER_NAME = "x-message-id";
+	protected static final String APIKEY_HEADER_NAME = "apikey";
+	protected static final String LIBRARY_HEADER_NAME = "x-amq-library";
+	protected static final String LIBRARY_HEADER_VALUE = "AMQLibraryv1";
+	protected static final String RETRY_AFTER_HEADER_NAME = "Retry-After";
+	protected static final int TOO_MANY_REQUESTS_STATUS_CODE = 429;
+	protected static final String GZIP_ENCODING = "gzip";
 	private static final int DEFAULT_MAX_FAILURE_COUNT = 10;
-	protected static final long DEFAULT_SLEEP_DURATION = 1000;
 	protected static final Logger logger = LoggerFactory.getLogger("logger");
 	protected String apikey;
 	protected String topic;
 	protected Environment env;
+	protected String baseURL = null;
 	protected int maxFailures = DEFAULT_MAX_FAILURE_COUNT;
-	protected long sleepDuration = DEFAULT_SLEEP_DURATION;
+	protected int compressionThreshold = -1;
+	protected RetryPolicy retryPolicy = null;
+	protected CircuitBreaker circuitBreaker = null;
+	protected EndpointResolver endpointResolver = null;
+	protected RateLimiter apiKeyRateLimiter = null;
+	protected RateLimiter topicRateLimiter = null;
+	protected EventHubClientFactory clientFactory = null;
+	protected ClientMetrics metrics = null;
+	protected RequestInterceptor[] interceptors = null;
+	protected CloseableHttpClient httpClient = null;
+	private volatile boolean closed = false;
 
 	public enum Environment {
 	       /**
@@ -59,6 +129,28 @@ public class AMQClient {
 		super();
 	}
 
+	protected static ThreadFactory daemonThreadFactory(final String prefix) {
+		final AtomicInteger threadCount = new AtomicInteger();
+
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	protected ScheduledExecutorService getScheduler() {
+		return clientFactory.getScheduler();
+	}
+
+	protected CloseableHttpAsyncClient getAsyncHttpClient() {
+		return clientFactory.getAsyncHttpClient();
+	}
+
+	public EventHubClientFactory getClientFactory() {
+		return clientFactory;
+	}
+
 	protected void setAPIKey(String apikey) {
 		this.apikey = apikey;
 	}
@@ -71,8 +163,1164 @@ public class AMQClient {
 		this.env = env;
 	}
 
+	/**
+	 * Sends requests under this URL instead of the Apigee gateway of the environment, a trailing slash is added if it is
+	 * missing.
+	 */
+	protected void setBaseURL(String baseURL) {
+		this.baseURL = baseURL == null || baseURL.endsWith("/") ? baseURL : baseURL + "/";
+	}
+
 	protected void setMaxAttempts(int maxAttempts) {
 		this.maxFailures = maxAttempts;
 	}
 
-}
\ No newline at end of file
+	protected void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return size in bytes from which write bodies are gzipped, negative if compression is disabled
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	protected void setClientFactory(EventHubClientFactory clientFactory) {
+		this.clientFactory = clientFactory;
+	}
+
+	protected void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Attaches the client to its {@link EventHubClientFactory}, using the shared default factory if one was not supplied,
+	 * to the retry policy of the factory if the client was not given its own, to the circuit breaker for its endpoint, to
+	 * the rate limiters for its API key and topic and to the endpoint resolver unless it was given a base URL.  Called by
+	 * the builders once the configuration has been validated.  Calls are recorded in the metrics of the factory and go
+	 * through its interceptors.
+	 */
+	protected void initClient() {
+		if(clientFactory == null) {
+			clientFactory = EventHubClientFactory.getDefault();
+		}
+
+		httpClient = clientFactory.getHttpClient();
+		metrics = clientFactory.getMetrics();
+
+		List<RequestInterceptor> factoryInterceptors = clientFactory.getInterceptors();
+
+		//Left null without interceptors, so calls skip the hooks with a single check
+		if(!factoryInterceptors.isEmpty()) {
+			interceptors = factoryInterceptors.toArray(new RequestInterceptor[factoryInterceptors.size()]);
+		}
+
+		if(retryPolicy == null) {
+			retryPolicy = clientFactory.getRetryPolicy();
+		}
+
+		circuitBreaker = clientFactory.getCircuitBreaker(env, getEndpointName());
+		apiKeyRateLimiter = clientFactory.getApiKeyRateLimiter(apikey);
+		topicRateLimiter = clientFactory.getTopicRateLimiter(env, topic);
+
+		EndpointResolver resolver = clientFactory.getEndpointResolver();
+
+		if(baseURL == null && resolver != null && !resolver.getEndpoints(env).isEmpty()) {
+			endpointResolver = resolver;
+		}
+
+		initRequests();
+	}
+
+	/**
+	 * Precomputes the URIs and headers of the requests the client sends, so sending only encodes what changes per
+	 * message.  Called by {@link #initClient()} once the configuration is final.
+	 */
+	protected void initRequests() {
+
+	}
+
+	/**
+	 * @return the root of the gateway URLs for the client's environment, ending with a slash.  With an endpoint resolver
+	 * requests are built against its primary endpoint and moved per attempt.
+	 */
+	protected String getBaseURL() {
+		if(baseURL != null) {
+			return baseURL;
+		}
+
+		if(endpointResolver != null) {
+			return endpointResolver.getEndpoints(env).get(0).getBaseURL();
+		}
+
+		return "https://northwestern-" + env + ".apigee.net/v1/event-hub/";
+	}
+
+	/**
+	 * Checks a base URL given to a builder, null means the Apigee gateway of the environment.
+	 *
+	 * @throws IllegalArgumentException if the URL is not an absolute http or https URL
+	 */
+	protected static void checkBaseURL(String baseURL) {
+		if(baseURL == null) {
+			return;
+		}
+
+		URI uri;
+
+		try {
+			uri = new URI(baseURL);
+		}
+		catch(URISyntaxException e) {
+			throw new IllegalArgumentException("Base URL is not a valid URI.", e);
+		}
+
+		if((!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) || uri.getHost() == null) {
+			throw new IllegalArgumentException("Base URL must be an absolute http or https URL.");
+		}
+	}
+
+	/**
+	 * Percent-encodes the characters that are not allowed in a URI path segment.
+	 *
+	 * @return the value itself when nothing needs encoding, which is the usual case
+	 */
+	protected static String encodePathSegment(String value) {
+		int i = 0;
+
+		while(i < value.length() && isPathSegmentChar(value.charAt(i))) {
+			i++;
+		}
+
+		if(i == value.length()) {
+			return value;
+		}
+
+		StringBuilder encoded = new StringBuilder(value.length() + 16).append(value, 0, i);
+
+		for(byte b : value.substring(i).getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+
+			if(isPathSegmentChar(c)) {
+				encoded.append(c);
+			}
+			else {
+				encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+
+		return encoded.toString();
+	}
+
+	/**
+	 * @return true for the unreserved and sub-delimiter characters, ':' and '@' (RFC 3986 pchar)
+	 */
+	private static boolean isPathSegmentChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~!$&'()*+,;=:@".indexOf(c) >= 0;
+	}
+
+	/**
+	 * @return the gateway endpoint this client calls, clients calling the same endpoint in the same environment share a
+	 * {@link CircuitBreaker}
+	 */
+	protected String getEndpointName() {
+		return "event-hub";
+	}
+
+	/**
+	 * @return the breaker guarding this client's endpoint, null if circuit breaking is not enabled on the factory
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Cheap check callers can make before doing expensive work that ends in a call to the gateway.
+	 *
+	 * @return true while calls from this client are failing fast
+	 */
+	public boolean isCircuitOpen() {
+		return circuitBreaker != null && circuitBreaker.isOpen();
+	}
+
+	/**
+	 * @return the limiter shared by clients using this API key, null if API key rate limiting is not enabled on the factory
+	 */
+	public RateLimiter getApiKeyRateLimiter() {
+		return apiKeyRateLimiter;
+	}
+
+	/**
+	 * @return the limiter shared by clients using this topic, null if topic rate limiting is not enabled on the factory
+	 */
+	public RateLimiter getTopicRateLimiter() {
+		return topicRateLimiter;
+	}
+
+	protected void checkOpen() throws IllegalStateException {
+		if(closed) {
+			throw new IllegalStateException("Client has been closed.");
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Releases this client.  Connections are owned by the {@link EventHubClientFactory} and were already returned to its
+	 * pool when each response was consumed, so the pool itself stays open for the other clients sharing it.  Any later
+	 * call on this client throws an {@link IllegalStateException}.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Handles the responses of one kind of request for {@link AMQClient#execute} and {@link AMQClient#executeAsync}.
+	 * Server errors, 429 responses and I/O failures never reach the handler, they are retried according to the
+	 * {@link RetryPolicy}.
+	 */
+	protected interface ResponseHandler<T> {
+
+		/**
+		 * Turns any response that is not a 500-level error or a 429 into the result.  The entity must be consumed or handed on.
+		 * An exception thrown here is retried like an I/O failure.
+		 *
+		 * @param attempts number of requests made, including this one
+		 */
+		T handle(HttpResponse response, int attempts) throws Exception;
+
+		/**
+		 * @param statusCode status of the last response, zero if none was received, {@link CircuitBreaker#OPEN_STATUS_CODE}
+		 * or {@link RateLimiter#LIMITED_STATUS_CODE} if the call was rejected without being sent
+		 * @return the result once retries are exhausted
+		 */
+		T giveUp(int statusCode, int attempts);
+	}
+
+	/**
+	 * Writes report success, the status code and the message id assigned by the server.
+	 */
+	protected static final ResponseHandler<WriteResult> WRITE_HANDLER = new ResponseHandler<WriteResult>() {
+
+		@Override
+		public WriteResult handle(HttpResponse postResponse, int attempts) throws Exception {
+			WriteResult writeResult = new WriteResult();
+			writeResult.setStatusCode(postResponse.getStatusLine().getStatusCode());
+			writeResult.setAttempts(attempts);
+
+			// Check to make sure we received a response in the 200 Family
+			if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL) {
+				writeResult.setSuccess(true);
+
+				Header messageIdHeader = postResponse.getFirstHeader(MESSAGE_ID_HEADER_NAME);
+
+				if(messageIdHeader != null) {
+					writeResult.setMessageId(messageIdHeader.getValue());
+				}
+
+				//Consume the (empty) body so the connection is returned to the pool
+				EntityUtils.consume(postResponse.getEntity());
+			}
+			// There was an unexpected result that should be handled in some way depending on your use case
+			else {
+				logResponse(postResponse);
+				writeResult.setSuccess(false);
+			}
+
+			return writeResult;
+		}
+
+		@Override
+		public WriteResult giveUp(int statusCode, int attempts) {
+			WriteResult writeResult = new WriteResult();
+			writeResult.setStatusCode(statusCode);
+			writeResult.setAttempts(attempts);
+			writeResult.setSuccess(false);
+
+			return writeResult;
+		}
+	};
+
+	/**
+	 * A gzipped request body that remembers its original size for {@link TransferStats}.
+	 */
+	protected static class CompressedEntity extends ByteArrayEntity {
+
+		private final long uncompressedLength;
+
+		protected CompressedEntity(byte[] compressed, long uncompressedLength) {
+			super(compressed);
+			this.uncompressedLength = uncompressedLength;
+			setContentEncoding(GZIP_ENCODING);
+		}
+
+		public long getUncompressedLength() {
+			return uncompressedLength;
+		}
+	}
+
+	/**
+	 * Serves a buffer's remaining bytes without copying them.  The buffer's position is left alone, so the body can be
+	 * sent again on retry.
+	 */
+	protected static class ByteBufferEntity extends AbstractHttpEntity {
+
+		private final ByteBuffer buffer;
+
+		protected ByteBufferEntity(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public InputStream getContent() {
+			final ByteBuffer content = buffer.duplicate();
+
+			return new InputStream() {
+
+				@Override
+				public int read() {
+					return content.hasRemaining() ? content.get() & 0xff : -1;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					if(!content.hasRemaining()) {
+						return -1;
+					}
+
+					int n = Math.min(len, content.remaining());
+					content.get(b, off, n);
+
+					return n;
+				}
+
+				@Override
+				public int available() {
+					return content.remaining();
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(OutputStream outStream) throws IOException {
+			if(buffer.hasArray()) {
+				outStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			}
+			else {
+				//Direct buffers have no array to hand over, go through a small chunk instead of copying the whole body
+				ByteBuffer content = buffer.duplicate();
+				byte[] chunk = new byte[Math.min(8192, content.remaining())];
+
+				while(content.hasRemaining()) {
+					int n = Math.min(chunk.length, content.remaining());
+					content.get(chunk, 0, n);
+					outStream.write(chunk, 0, n);
+				}
+			}
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+
+	/**
+	 * Streams a file from a {@link FileChannel} each time it is sent, so the file is never loaded onto the heap.
+	 */
+	protected static class FileChannelEntity extends AbstractHttpEntity {
+
+		private final Path path;
+		private final long length;
+
+		protected FileChannelEntity(Path path, long length) {
+			this.path = path;
+			this.length = length;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+		}
+
+		@Override
+		public void writeTo(OutputStream outStream) throws IOException {
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				WritableByteChannel target = Channels.newChannel(outStream);
+				long position = 0;
+
+				while(position < length) {
+					long transferred = channel.transferTo(position, length - position, target);
+
+					if(transferred <= 0) {
+						throw new IOException("File " + path + " is shorter than the " + length + " bytes expected.");
+					}
+
+					position += transferred;
+				}
+			}
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the message is null or only whitespace, scanning in place instead of trimming a copy
+	 */
+	protected static boolean isBlank(CharSequence message) {
+		if(message != null) {
+			for(int i = 0; i < message.length(); i++) {
+				//Same definition of whitespace as String.trim()
+				if(message.charAt(i) > ' ') {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the message is null or only ASCII whitespace
+	 */
+	protected static boolean isBlank(byte[] message) {
+		if(message != null) {
+			for(byte b : message) {
+				if((b & 0xff) > ' ') {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the message is null or its remaining bytes are only ASCII whitespace.  The position is not changed.
+	 */
+	protected static boolean isBlank(ByteBuffer message) {
+		if(message != null) {
+			for(int i = message.position(); i < message.limit(); i++) {
+				if((message.get(i) & 0xff) > ' ') {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the charset declared by the content type, UTF-8 for JSON (which has no other encoding), otherwise the
+	 * HTTP default of ISO-8859-1
+	 */
+	protected static Charset charsetOf(String mimeType, Charset declared) {
+		if(declared != null) {
+			return declared;
+		}
+
+		return MediaType.APPLICATION_JSON.equalsIgnoreCase(mimeType) ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+	}
+
+	/**
+	 * Builds the body of a write, encoded once in the given charset.
+	 */
+	protected HttpEntity buildEntity(String message, Charset charset) {
+		return compress(new ByteArrayEntity(message.getBytes(charset)));
+	}
+
+	/**
+	 * Builds the body of a write around the array without copying it.
+	 */
+	protected HttpEntity buildEntity(byte[] message) {
+		return compress(new ByteArrayEntity(message));
+	}
+
+	/**
+	 * Builds the body of a write around the buffer's remaining bytes without copying them.
+	 */
+	protected HttpEntity buildEntity(ByteBuffer message) {
+		return compress(new ByteBufferEntity(message));
+	}
+
+	/**
+	 * Builds a body that is streamed with chunked transfer encoding.  It can only be read once, so a write with this body
+	 * is never retried.  Streamed bodies are not compressed.
+	 */
+	protected HttpEntity buildEntity(InputStream message) {
+		InputStreamEntity entity = new InputStreamEntity(message);
+		entity.setChunked(true);
+
+		return entity;
+	}
+
+	/**
+	 * Builds a body streamed from the file.  Files are not compressed, that would mean holding the compressed file on the
+	 * heap.
+	 *
+	 * @throws IOException if the file size cannot be read
+	 */
+	protected HttpEntity buildEntity(Path message) throws IOException {
+		return new FileChannelEntity(message, Files.size(message));
+	}
+
+	/**
+	 * When compression is enabled, bodies of at least the compression threshold are gzipped up front, so retries resend
+	 * the same bytes without compressing again.
+	 */
+	private HttpEntity compress(HttpEntity entity) {
+		if(compressionThreshold < 0 || entity.getContentLength() < compressionThreshold) {
+			return entity;
+		}
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) entity.getContentLength() / 4);
+
+		try(GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			entity.writeTo(gzip);
+		}
+		catch(IOException e) {
+			//Cannot happen writing to memory, but sending the body as is is always an option
+			logger.debug("Unable to compress the message, sending it uncompressed: {}", e.getMessage(), e);
+			return entity;
+		}
+
+		return new CompressedEntity(compressed.toByteArray(), entity.getContentLength());
+	}
+
+	/**
+	 * Retrieve the Response Body (if any) and log the body and status code
+	 */
+	protected static void logResponse(HttpResponse response) throws IOException {
+		String responseBody = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : null;
+		logger.debug("Status Code: {}, Response Body: {}", response.getStatusLine().getStatusCode(), responseBody);
+	}
+
+	/**
+	 * @param retryAfterMillis wait asked for by the server with Retry-After, negative if none
+	 * @return milliseconds to wait before the next attempt, negative to give up
+	 */
+	private long nextDelayMillis(HttpUriRequest request, int failures, long startNanos, long retryAfterMillis) {
+		//Once we hit the retry limit we give up regardless of what the policy would allow
+		if (failures >= maxFailures) {
+			return -1;
+		}
+
+		//A streamed body has already been read, there is nothing left to send again
+		if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null
+				&& !((HttpEntityEnclosingRequest) request).getEntity().isRepeatable()) {
+			logger.debug("Request body cannot be sent again, not retrying.");
+			return -1;
+		}
+
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+		//The server said when to come back, the policy still decides whether that is worth waiting for
+		if (retryAfterMillis >= 0) {
+			return retryPolicy.nextDelayMillis(failures, elapsedMillis, retryAfterMillis);
+		}
+
+		return retryPolicy.nextDelayMillis(failures, elapsedMillis);
+	}
+
+	/**
+	 * Takes a permit from each rate limiter of the client.
+	 *
+	 * @return nanoseconds to wait before sending, negative if a limiter rejected the call
+	 */
+	private long reservePermits() {
+		long waitNanos = 0;
+
+		for (RateLimiter rateLimiter : new RateLimiter[] { apiKeyRateLimiter, topicRateLimiter }) {
+			if (rateLimiter != null) {
+				long limiterWait = rateLimiter.reserve();
+
+				if (limiterWait < 0) {
+					logger.debug("Rate limiter {} rejected the call.", rateLimiter.getName());
+					return -1;
+				}
+
+				waitNanos = Math.max(waitNanos, limiterWait);
+			}
+		}
+
+		return waitNanos;
+	}
+
+	/**
+	 * Pauses the rate limiters after a 429 so other calls sharing them stop adding to the overload.
+	 */
+	private void backOffPermits(long millis) {
+		if (apiKeyRateLimiter != null) {
+			apiKeyRateLimiter.backOff(millis);
+		}
+
+		if (topicRateLimiter != null) {
+			topicRateLimiter.backOff(millis);
+		}
+	}
+
+	/**
+	 * @return milliseconds the server asked to wait with Retry-After, in seconds or as an HTTP date, negative if absent
+	 * or invalid
+	 */
+	protected static long retryAfterMillis(HttpResponse response) {
+		Header retryAfterHeader = response.getFirstHeader(RETRY_AFTER_HEADER_NAME);
+
+		if (retryAfterHeader == null || retryAfterHeader.getValue() == null) {
+			return -1;
+		}
+
+		String value = retryAfterHeader.getValue().trim();
+
+		try {
+			return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+		}
+		catch(NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+
+			if (date == null) {
+				logger.debug("Invalid Retry-After: {}", value);
+				return -1;
+			}
+
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+	}
+
+	private void recordOutcome(Endpoint endpoint, boolean failure, long attemptNanos) {
+		long durationNanos = System.nanoTime() - attemptNanos;
+
+		if (circuitBreaker != null) {
+			if (failure) {
+				circuitBreaker.onFailure(durationNanos);
+			}
+			else {
+				circuitBreaker.onSuccess(durationNanos);
+			}
+		}
+
+		if (endpoint != null) {
+			if (failure) {
+				endpoint.onFailure(durationNanos, false);
+			}
+			else {
+				endpoint.onSuccess(durationNanos);
+			}
+		}
+	}
+
+	private void recordFailure(Endpoint endpoint, Exception e, long attemptNanos) {
+		long durationNanos = System.nanoTime() - attemptNanos;
+
+		if (circuitBreaker != null) {
+			circuitBreaker.onFailure(durationNanos);
+		}
+
+		if (endpoint != null) {
+			endpoint.onFailure(durationNanos, isConnectionFailure(e));
+		}
+	}
+
+	/**
+	 * @return true if the gateway could not be reached at all, so nothing was sent
+	 */
+	protected static boolean isConnectionFailure(Exception e) {
+		return e instanceof ConnectException || e instanceof ConnectTimeoutException || e instanceof UnknownHostException || e instanceof NoRouteToHostException;
+	}
+
+	/**
+	 * Points the request at the endpoint the resolver picks for this attempt.  Requests are built against the primary
+	 * endpoint and an earlier attempt may have moved them to another one.
+	 *
+	 * @return the endpoint, null if the client does not use a resolver
+	 */
+	private Endpoint route(HttpUriRequest request) {
+		if (endpointResolver == null) {
+			return null;
+		}
+
+		Endpoint endpoint = endpointResolver.select(env);
+		String uri = request.getURI().toString();
+		Endpoint current = null;
+
+		//Longest match, in case one base URL is a prefix of another
+		for (Endpoint candidate : endpointResolver.getEndpoints(env)) {
+			if (uri.startsWith(candidate.getBaseURL()) && (current == null || candidate.getBaseURL().length() > current.getBaseURL().length())) {
+				current = candidate;
+			}
+		}
+
+		if (current != null && current != endpoint && request instanceof HttpRequestBase) {
+			((HttpRequestBase) request).setURI(URI.create(endpoint.getBaseURL() + uri.substring(current.getBaseURL().length())));
+		}
+
+		return endpoint;
+	}
+
+	/**
+	 * A connection failure is tried on another endpoint right away, without a delay and without counting as a failed
+	 * attempt, as long as there is an endpoint this request has not failed over from yet.
+	 */
+	private boolean canFailOver(Endpoint endpoint, Exception e, int failovers) {
+		return endpoint != null && isConnectionFailure(e) && failovers < endpointResolver.getEndpoints(env).size() - 1;
+	}
+
+	/**
+	 * Records the end of a call in the metrics of the factory.
+	 *
+	 * @return the result, unchanged
+	 */
+	private <T> T callCompleted(Operation operation, long startNanos, int statusCode, int attempts, T result) {
+		metrics.completed(operation, startNanos, statusCode, attempts);
+
+		return result;
+	}
+
+	/**
+	 * @return the context passed to the interceptors, null if there are none
+	 */
+	private RequestContext createContext(Operation operation, HttpUriRequest request, long startNanos) {
+		return interceptors != null ? new RequestContext(operation, request, startNanos) : null;
+	}
+
+	private void beforeSend(RequestContext context) {
+		if (context == null) {
+			return;
+		}
+
+		for (RequestInterceptor interceptor : interceptors) {
+			try {
+				interceptor.beforeSend(context);
+			}
+			catch(RuntimeException e) {
+				logger.debug("Request interceptor failed: {}", e.getMessage(), e);
+			}
+		}
+
+		//Started after the hooks, so the attempt time is the gateway's alone
+		context.attemptStarted();
+	}
+
+	private void afterResponse(RequestContext context, HttpResponse response) {
+		if (context == null) {
+			return;
+		}
+
+		context.responded(response);
+
+		for (RequestInterceptor interceptor : interceptors) {
+			try {
+				interceptor.afterResponse(context);
+			}
+			catch(RuntimeException e) {
+				logger.debug("Request interceptor failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Reports an attempt that failed without a response.  A failure reading a response that was already reported is not
+	 * reported again.
+	 */
+	private void afterFailure(RequestContext context, Exception exception) {
+		if (context == null || context.getResponse() != null) {
+			return;
+		}
+
+		context.failed(exception);
+
+		for (RequestInterceptor interceptor : interceptors) {
+			try {
+				interceptor.afterResponse(context);
+			}
+			catch(RuntimeException e) {
+				logger.debug("Request interceptor failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+
+	private void onRetry(RequestContext context, long delayMillis) {
+		if (context == null) {
+			return;
+		}
+
+		for (RequestInterceptor interceptor : interceptors) {
+			try {
+				interceptor.onRetry(context, delayMillis);
+			}
+			catch(RuntimeException e) {
+				logger.debug("Request interceptor failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param rejectedStatusCode {@link CircuitBreaker#OPEN_STATUS_CODE} or {@link RateLimiter#LIMITED_STATUS_CODE} if the
+	 * call was rejected without being sent, zero if retries were exhausted
+	 */
+	private void onGiveUp(RequestContext context, int rejectedStatusCode) {
+		if (context == null) {
+			return;
+		}
+
+		if (rejectedStatusCode < 0) {
+			context.rejected(rejectedStatusCode);
+		}
+
+		for (RequestInterceptor interceptor : interceptors) {
+			try {
+				interceptor.onGiveUp(context);
+			}
+			catch(RuntimeException e) {
+				logger.debug("Request interceptor failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the request on the pooled client, retrying 500-level responses and connection failures according to the
+	 * {@link RetryPolicy}.  A 429 is retried after its Retry-After time, and the rate limiters are paused for that long.
+	 * The caller is waiting for the result anyway, so waiting for a permit and between attempts happens on the calling
+	 * thread.
+	 *
+	 * @return the result of the handler
+	 * @throws InterruptedException
+	 */
+	protected <T> T execute(Operation operation, HttpUriRequest request, ResponseHandler<T> handler) throws InterruptedException {
+		long startNanos = System.nanoTime();
+		metrics.started(operation, request);
+
+		try {
+			return execute(operation, request, handler, startNanos, createContext(operation, request, startNanos));
+		}
+		catch(InterruptedException e) {
+			metrics.cancelled(operation);
+			throw e;
+		}
+	}
+
+	private <T> T execute(Operation operation, HttpUriRequest request, ResponseHandler<T> handler, long startNanos, RequestContext context)
+			throws InterruptedException {
+		retryPolicy.requestStarted();
+
+		int failureCount = 0;
+		int failovers = 0;
+		int statusCode = 0;
+
+		while (true) {
+			//Wait for a permit before asking the breaker, so a half open probe is never taken by a call that gets rejected
+			long permitNanos = reservePermits();
+
+			if (permitNanos < 0) {
+				onGiveUp(context, RateLimiter.LIMITED_STATUS_CODE);
+
+				return callCompleted(operation, startNanos, RateLimiter.LIMITED_STATUS_CODE, failureCount, handler.giveUp(RateLimiter.LIMITED_STATUS_CODE, failureCount));
+			}
+
+			TimeUnit.NANOSECONDS.sleep(permitNanos);
+
+			//Fail fast while the gateway is known to be degraded
+			if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+				logger.debug("Circuit breaker {} is open, not calling the service.", circuitBreaker.getName());
+				onGiveUp(context, CircuitBreaker.OPEN_STATUS_CODE);
+
+				return callCompleted(operation, startNanos, CircuitBreaker.OPEN_STATUS_CODE, failureCount, handler.giveUp(CircuitBreaker.OPEN_STATUS_CODE, failureCount));
+			}
+
+			Endpoint endpoint = route(request);
+			beforeSend(context);
+			long attemptNanos = System.nanoTime();
+			boolean throttled = false;
+			long retryAfter = -1;
+
+			try {
+				// Call the service
+				HttpResponse response = httpClient.execute(request);
+				statusCode = response.getStatusLine().getStatusCode();
+				afterResponse(context, response);
+
+				// The gateway is healthy, it is just enforcing a quota
+				if (statusCode == TOO_MANY_REQUESTS_STATUS_CODE) {
+					recordOutcome(endpoint, false, attemptNanos);
+					throttled = true;
+					retryAfter = retryAfterMillis(response);
+					logResponse(response);
+				}
+				// Everything but the 500-level Server Error Status Codes is for the handler to interpret
+				else if (Family.familyOf(statusCode) != Response.Status.Family.SERVER_ERROR) {
+					recordOutcome(endpoint, false, attemptNanos);
+					metrics.received(operation, response);
+
+					try {
+						return callCompleted(operation, startNanos, statusCode, failureCount + 1, handler.handle(response, failureCount + 1));
+					}
+					catch(Exception e) {
+						//The attempt is already recorded, a response the handler cannot read is retried as in executeAsync
+						logger.debug("Unable to handle the response: {}", e.getMessage(), e);
+					}
+				}
+				else {
+					recordOutcome(endpoint, true, attemptNanos);
+					logResponse(response);
+				}
+			}
+			catch(Exception e) {
+				recordFailure(endpoint, e, attemptNanos);
+				afterFailure(context, e);
+				logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
+
+				//Another endpoint may be up, do not spend a retry on a host that is down
+				if (canFailOver(endpoint, e, failovers)) {
+					failovers++;
+					onRetry(context, 0);
+					continue;
+				}
+			}
+
+			failureCount++;
+			long delay = nextDelayMillis(request, failureCount, startNanos, retryAfter);
+
+			if (delay < 0) {
+				logger.debug("Too many errors, quiting.");
+				onGiveUp(context, 0);
+
+				return callCompleted(operation, startNanos, statusCode, failureCount, handler.giveUp(statusCode, failureCount));
+			}
+
+			if (throttled) {
+				backOffPermits(delay);
+			}
+
+			onRetry(context, delay);
+
+			//Otherwise pause to provide time for things to recover before trying again.
+			logger.debug("Sleeping for {} milliseconds before reprocessing.", delay);
+
+			Thread.sleep(delay);
+		}
+	}
+
+	/**
+	 * Like {@link #execute(Operation, HttpUriRequest, ResponseHandler)} without blocking the calling thread.  The request is sent on
+	 * the shared non-blocking client, and attempts waiting for a rate limit permit or a retry are scheduled on the shared
+	 * scheduler, so no thread is held while things recover.
+	 *
+	 * @param sent when not null, completed as soon as the first attempt has been written to the connection
+	 * @return {@link CompletableFuture} that completes with the result of the handler
+	 */
+	protected <T> CompletableFuture<T> executeAsync(Operation operation, HttpUriRequest request, ResponseHandler<T> handler, CompletableFuture<Void> sent) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		long startNanos = System.nanoTime();
+
+		metrics.started(operation, request);
+		retryPolicy.requestStarted();
+		clientFactory.trackCall(future, operation);
+		executeAsync(operation, request, handler, sent, future, 0, 0, 0, startNanos, createContext(operation, request, startNanos));
+
+		return future;
+	}
+
+	/**
+	 * Runs the next attempt of an asynchronous call after the delay.  If it cannot be scheduled, or throws, the call
+	 * fails instead of leaving its future incomplete.
+	 */
+	private void scheduleAttempt(Operation operation, CompletableFuture<?> future, Runnable attempt, long delay, TimeUnit unit) {
+		try {
+			getScheduler().schedule(() -> {
+				try {
+					attempt.run();
+				}
+				catch(RuntimeException e) {
+					failAsync(operation, future, e);
+				}
+			}, delay, unit);
+		}
+		catch(RejectedExecutionException | IllegalStateException e) {
+			failAsync(operation, future, e);
+		}
+	}
+
+	private void failAsync(Operation operation, CompletableFuture<?> future, Exception e) {
+		logger.debug("Asynchronous call failed: {}", e.getMessage(), e);
+
+		if(future.completeExceptionally(e)) {
+			metrics.cancelled(operation);
+		}
+	}
+
+	private <T> void executeAsync(final Operation operation, final HttpUriRequest request, final ResponseHandler<T> handler, final CompletableFuture<Void> sent,
+			final CompletableFuture<T> future, final int failureCount, final int failovers, final int lastStatusCode, final long startNanos,
+			final RequestContext context) {
+		long permitNanos = reservePermits();
+
+		if (permitNanos < 0) {
+			onGiveUp(context, RateLimiter.LIMITED_STATUS_CODE);
+			future.complete(callCompleted(operation, startNanos, RateLimiter.LIMITED_STATUS_CODE, failureCount, handler.giveUp(RateLimiter.LIMITED_STATUS_CODE, failureCount)));
+		}
+		else if (permitNanos > 0) {
+			scheduleAttempt(operation, future, () -> sendAsync(operation, request, handler, sent, future, failureCount, failovers, lastStatusCode, startNanos, context), permitNanos, TimeUnit.NANOSECONDS);
+		}
+		else {
+			sendAsync(operation, request, handler, sent, future, failureCount, failovers, lastStatusCode, startNanos, context);
+		}
+	}
+
+	private <T> void sendAsync(final Operation operation, final HttpUriRequest request, final ResponseHandler<T> handler, final CompletableFuture<Void> sent,
+			final CompletableFuture<T> future, final int failureCount, final int failovers, final int lastStatusCode, final long startNanos,
+			final RequestContext context) {
+		//Fail fast while the gateway is known to be degraded
+		if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+			logger.debug("Circuit breaker {} is open, not calling the service.", circuitBreaker.getName());
+			onGiveUp(context, CircuitBreaker.OPEN_STATUS_CODE);
+
+			future.complete(callCompleted(operation, startNanos, CircuitBreaker.OPEN_STATUS_CODE, failureCount, handler.giveUp(CircuitBreaker.OPEN_STATUS_CODE, failureCount)));
+			return;
+		}
+
+		//Before the producer is created, it takes the host from the URI
+		final Endpoint endpoint = route(request);
+		beforeSend(context);
+		final long attemptNanos = System.nanoTime();
+		BasicAsyncRequestProducer requestProducer = new BasicAsyncRequestProducer(URIUtils.extractHost(request.getURI()), request) {
+
+			@Override
+			public void requestCompleted(HttpContext context) {
+				super.requestCompleted(context);
+
+				if(sent != null) {
+					sent.complete(null);
+				}
+			}
+		};
+
+		FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse response) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				boolean serverError = Family.familyOf(statusCode) == Response.Status.Family.SERVER_ERROR;
+				boolean throttled = statusCode == TOO_MANY_REQUESTS_STATUS_CODE;
+
+				//A 429 means the gateway is healthy, it is just enforcing a quota
+				recordOutcome(endpoint, serverError, attemptNanos);
+				afterResponse(context, response);
+
+				try {
+					// Everything but the 500-level Server Error Status Codes is for the handler to interpret
+					if (!serverError && !throttled) {
+						metrics.received(operation, response);
+						future.complete(callCompleted(operation, startNanos, statusCode, failureCount + 1, handler.handle(response, failureCount + 1)));
+						return;
+					}
+
+					logResponse(response);
+				}
+				catch(Exception e) {
+					logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
+				}
+
+				retry(statusCode, throttled, throttled ? retryAfterMillis(response) : -1);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				recordFailure(endpoint, e, attemptNanos);
+				afterFailure(context, e);
+				logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
+
+				//Another endpoint may be up, do not spend a retry on a host that is down
+				if (canFailOver(endpoint, e, failovers)) {
+					onRetry(context, 0);
+					executeAsync(operation, request, handler, sent, future, failureCount, failovers + 1, lastStatusCode, startNanos, context);
+					return;
+				}
+
+				retry(lastStatusCode, false, -1);
+			}
+
+			@Override
+			public void cancelled() {
+				//A cancelled probe must not leave the breaker waiting for an outcome, count it against the gateway to be safe
+				recordOutcome(endpoint, true, attemptNanos);
+				metrics.cancelled(operation);
+				future.cancel(false);
+			}
+
+			private void retry(int statusCode, boolean throttled, long retryAfter) {
+				int failures = failureCount + 1;
+				long delay = nextDelayMillis(request, failures, startNanos, retryAfter);
+
+				if (delay < 0) {
+					logger.debug("Too many errors, quiting.");
+					onGiveUp(context, 0);
+
+					future.complete(callCompleted(operation, startNanos, statusCode, failures, handler.giveUp(statusCode, failures)));
+				}
+				//Otherwise schedule the next attempt instead of sleeping so no thread is held while things recover.
+				else {
+					if (throttled) {
+						backOffPermits(delay);
+					}
+
+					logger.debug("Scheduling retry in {} milliseconds.", delay);
+					onRetry(context, delay);
+
+					scheduleAttempt(operation, future, () -> executeAsync(operation, request, handler, sent, future, failures, failovers, statusCode, startNanos, context), delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		};
+
+		try {
+			getAsyncHttpClient().execute(requestProducer, new BasicAsyncResponseConsumer(), callback);
+		}
+		catch(RuntimeException e) {
+			//Nothing was sent, the factory has been closed or the I/O reactor is not running
+			recordFailure(endpoint, e, attemptNanos);
+			afterFailure(context, e);
+			failAsync(operation, future, e);
+		}
+	}
+
+	/**
+	 * Sends a write request without blocking the calling thread.  The returned future is completed with the same
+	 * success/status/messageId values the blocking write would have produced, including the retry behavior for
+	 * 500-level responses and connection failures.
+	 *
+	 * @param request
+	 * @return {@link CompletableFuture} that completes with the {@link WriteResult}
+	 */
+	protected CompletableFuture<WriteResult> writeAsync(HttpUriRequest request) {
+		return executeAsync(Operation.WRITE, request, WRITE_HANDLER, null);
+	}
+}
@@ -1,32 +1,36 @@
 package edu.northwestern.amq;
 
-import java.io.StringReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.text.MessageFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.Response.Status.Family;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.util.EntityUtils;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.northwestern.amq.ClientMetrics.Operation;
 
 
 /**
@@ -41,22 +45,75 @@ public class AMQConsumer extends AMQClient {
 	private static final boolean DEFAULT_INCLUDE_METADATA = true;
 	private static final boolean DEFAULT_AUTO_ACKNOWLEDGE = false;
 	private static final int DEFAULT_MAX_MESSAGES = 1;
-	private static final String APIGEE_GET_URL_PATTERN = "https://northwestern-{0}.apigee.net/v1/event-hub/queue/{1}/message?includeMetaData={2}&count={3}&autoAcknowledge={4}";
-	private static final String APIGEE_DELETE_URL_PATTERN = "https://northwestern-{0}.apigee.net/v1/event-hub/queue/{1}/message/{2}?fastForward={3}";
-	private static final String APIGEE_MOVE_URL_PATTERN = "https://northwestern-{0}.apigee.net/v1/event-hub/queue/{1}/message/{2}/DLQ/{3}";
-	private static final String APIGEE_WRITE_URL_PATTERN = "https://northwestern-{0}.apigee.net/v1/event-hub/queue/{1}";
+	private static final String FAST_FORWARD_QUERY = "?fastForward=true";
+	private static final String SINGLE_MESSAGE_QUERY = "?fastForward=false";
 
 	private int maxMessages = DEFAULT_MAX_MESSAGES;
 	private MediaType accept = MediaType.APPLICATION_JSON_TYPE;
 	private boolean includeMetaData = DEFAULT_INCLUDE_METADATA;
 	private boolean autoAcknowledge = DEFAULT_AUTO_ACKNOWLEDGE;
-	private HttpClient httpClient = null;
+	private MessageResultDecoder messageResultDecoder = null;
+
+	//Precomputed by initRequests
+	private URI getURI = null;
+	private URI writeURI = null;
+	private String messageURLPrefix = null;
+	private String moveURLSuffix = null;
+	private Header apikeyHeader = null;
+	private Header[] getHeaders = null;
 	
+	/**
+	 * Acknowledgements and moves to the dead letter queue succeed on 2xx, and on 410 GONE which means the message is no longer there.
+	 */
+	private static final ResponseHandler<AcknowledgeResult> ACKNOWLEDGE_HANDLER = new ResponseHandler<AcknowledgeResult>() {
+
+		@Override
+		public AcknowledgeResult handle(HttpResponse response, int attempts) throws Exception {
+			AcknowledgeResult ackResult = new AcknowledgeResult();
+			ackResult.setStatusCode(response.getStatusLine().getStatusCode());
+			ackResult.setAttempts(attempts);
+
+			// Check to make sure we received a response in the 200 Family, or the special status message to indicate the message is no longer there
+			if (Family.familyOf(response.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL
+					|| response.getStatusLine().getStatusCode() == Response.Status.GONE.getStatusCode()) {
+				ackResult.setSuccess(true);
+				EntityUtils.consume(response.getEntity());
+			}
+			// There was an unexpected result that should be handled in some way depending on your use case
+			else {
+				logResponse(response);
+				ackResult.setSuccess(false);
+			}
+
+			return ackResult;
+		}
+
+		@Override
+		public AcknowledgeResult giveUp(int statusCode, int attempts) {
+			AcknowledgeResult ackResult = new AcknowledgeResult();
+			ackResult.setStatusCode(statusCode);
+			ackResult.setAttempts(attempts);
+			ackResult.setSuccess(false);
+
+			return ackResult;
+		}
+	};
+
 	private String messageId = null;
+	//Last message the application was given, differs from messageId when the batch ends with skipped duplicates
+	private String handedOutId = null;
+	private MessageStream openStream = null;
+	private CompletableFuture<Void> pendingAckSent = null;
+	private ConsumerLag consumerLag = null;
+	private long streamLagMillis = 0;
+	private IdempotencyCache idempotencyCache = null;
+	private List<String> unrecordedIds = null;
 
 	public static class ConsumerBuilder {
 		
 		private AMQConsumer consumer = new AMQConsumer();
+		private int prefetchDepth = PrefetchingConsumer.DEFAULT_PREFETCH_DEPTH;
+		private PollScheduler pollScheduler = null;
 		
         public static ConsumerBuilder create() {
             return new ConsumerBuilder();
@@ -80,17 +137,31 @@ public class AMQConsumer extends AMQClient {
         		throw new IllegalArgumentException("Topic is required.");
         	}
 
-        	//Create the HttpClient
-    		// Set the timeout for this request in milliseconds.
-    		//Will wait 10 seconds to get a connection from the connection manager and 6 seconds to connect to the server.
-    		RequestConfig.Builder requestBuilder = RequestConfig.custom().setConnectTimeout(6 * 1000).setConnectionRequestTimeout(10 * 1000);
+        	checkBaseURL(consumer.baseURL);
 
-    		// Create the client used to connect to the service. For performance reasons this can and should be reused across your application
-    		consumer.httpClient = HttpClientBuilder.create().setDefaultRequestConfig(requestBuilder.build()).build();
+        	//Attach to the pooled HttpClient.  For performance reasons this is shared across your application
+        	consumer.initClient();
+        	consumer.messageResultDecoder = new MessageResultDecoder(consumer.clientFactory.getObjectMapper());
         	
             return consumer;
         }
 
+        /**
+         * Builds the consumer and wraps it in a {@link PrefetchingConsumer} that fetches batches ahead of the application.
+         * Prefetched batches are acknowledged when they are buffered, see {@link PrefetchingConsumer} before using this.
+         * 
+         * @return {@link PrefetchingConsumer}
+         */
+        public PrefetchingConsumer buildPrefetching() {
+        	if(prefetchDepth <= 0) {
+        		throw new IllegalArgumentException("Prefetch depth must be greater than zero.");
+        	}
+
+        	PollScheduler scheduler = pollScheduler != null ? pollScheduler : PollScheduler.PollSchedulerBuilder.create().build();
+
+        	return new PrefetchingConsumer(build(), prefetchDepth, scheduler);
+        }
+
         public ConsumerBuilder setAPIKey(String apiKey) {
             consumer.setAPIKey(apiKey);
             return this;
@@ -111,11 +182,46 @@ public class AMQConsumer extends AMQClient {
             return this;
         }
         
+        /**
+         * Sends requests under this URL, for example a proxy or a stub server, instead of the Apigee gateway of the
+         * environment.  Queue paths are appended to it, so it should end with /v1/event-hub/ or its equivalent.
+         */
+        public ConsumerBuilder setBaseURL(String baseURL) {
+            consumer.setBaseURL(baseURL);
+            return this;
+        }
+
         public ConsumerBuilder setMaxAttempts(int maxAttempts) {
             consumer.setMaxAttempts(maxAttempts);
             return this;
         }
 
+        /**
+         * Shares the connection pool, ObjectMapper and scheduler of the given factory.  When not set the
+         * {@link EventHubClientFactory#getDefault() default factory} is used.
+         */
+        public ConsumerBuilder setClientFactory(EventHubClientFactory clientFactory) {
+            consumer.setClientFactory(clientFactory);
+            return this;
+        }
+
+        /**
+         * Overrides the {@link RetryPolicy} of the client factory for this consumer.
+         */
+        public ConsumerBuilder setRetryPolicy(RetryPolicy retryPolicy) {
+            consumer.setRetryPolicy(retryPolicy);
+            return this;
+        }
+
+        /**
+         * Gzips bodies written to the queue of at least this many bytes.  Disabled when not set.  Responses are always
+         * decompressed transparently.
+         */
+        public ConsumerBuilder setCompressionThreshold(int compressionThreshold) {
+            consumer.setCompressionThreshold(compressionThreshold);
+            return this;
+        }
+
         public ConsumerBuilder setMaxMessages(int maxMessages) {
             consumer.setMaxMessages(maxMessages);
             return this;
@@ -146,6 +252,33 @@ public class AMQConsumer extends AMQClient {
             consumer.setAccept(accept);
             return this;
         }
+
+        /**
+         * Skips messages whose id the cache recorded as processed, acknowledging them without handing them out.  Ids
+         * are recorded when the batch is acknowledged, or when a message completes in an {@link AckTracker} or a
+         * {@link MessageListenerContainer}.  The cache can be shared by every consumer of the queue.
+         */
+        public ConsumerBuilder setIdempotencyCache(IdempotencyCache idempotencyCache) {
+            consumer.idempotencyCache = idempotencyCache;
+            return this;
+        }
+
+        /**
+         * Maximum number of batches fetched ahead of the application.  They are acknowledged when fetched, so one more
+         * batch, the one the application is processing, can be lost with them.  Only used by {@link #buildPrefetching()}.
+         */
+        public ConsumerBuilder setPrefetchDepth(int prefetchDepth) {
+            this.prefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        /**
+         * Controls how the prefetch thread backs off while the queue is empty.  Only used by {@link #buildPrefetching()}.
+         */
+        public ConsumerBuilder setPollScheduler(PollScheduler pollScheduler) {
+            this.pollScheduler = pollScheduler;
+            return this;
+        }
 	}
 
 	/**
@@ -171,28 +304,77 @@ public class AMQConsumer extends AMQClient {
 		this.autoAcknowledge = autoAcknowledge;
 	}
 
-	private String buildGetURL() {
-    	MessageFormat mf = new MessageFormat(APIGEE_GET_URL_PATTERN);
+	@Override
+	protected String getEndpointName() {
+		return "queue";
+	}
 
-    	return mf.format(new Object[] { env, topic, includeMetaData, maxMessages, autoAcknowledge });
+	protected boolean isAutoAcknowledge() {
+		return autoAcknowledge;
 	}
 
-	private String buildDeleteURL(String messageId, boolean fastForward) {
-    	MessageFormat mf = new MessageFormat(APIGEE_DELETE_URL_PATTERN);
+	/**
+	 * @return true if messages were handed out that have not been acknowledged or rolled back yet
+	 */
+	protected boolean hasUnsettledBatch() {
+		return !autoAcknowledge && messageId != null;
+	}
 
-    	return mf.format(new Object[] { env, topic, messageId, fastForward });
+	/**
+	 * Creates another consumer with the same configuration and factory but its own acknowledgement state, so several
+	 * threads can poll the same queue.
+	 */
+	protected AMQConsumer copy() {
+		AMQConsumer copy = new AMQConsumer();
+		copy.apikey = apikey;
+		copy.topic = topic;
+		copy.env = env;
+		copy.baseURL = baseURL;
+		copy.maxFailures = maxFailures;
+		copy.retryPolicy = retryPolicy;
+		copy.compressionThreshold = compressionThreshold;
+		copy.maxMessages = maxMessages;
+		copy.accept = accept;
+		copy.includeMetaData = includeMetaData;
+		copy.autoAcknowledge = autoAcknowledge;
+		copy.clientFactory = clientFactory;
+		copy.idempotencyCache = idempotencyCache;
+		copy.initClient();
+		copy.messageResultDecoder = messageResultDecoder;
+
+		return copy;
 	}
-	
-	private String buildMoveURL(String messageId) {
-    	MessageFormat mf = new MessageFormat(APIGEE_MOVE_URL_PATTERN);
 
-    	return mf.format(new Object[] { env, topic, messageId, topic });
+	@Override
+	protected void initClient() {
+		super.initClient();
+		consumerLag = metrics.getConsumerLag(env, topic);
 	}
-	
-	private String buildWriteURL() {
-    	MessageFormat mf = new MessageFormat(APIGEE_WRITE_URL_PATTERN);
 
-    	return mf.format(new Object[] { env, topic });
+	@Override
+	protected void initRequests() {
+		String queueURL = getBaseURL() + "queue/" + encodePathSegment(topic);
+
+		getURI = URI.create(queueURL + "/message?includeMetaData=" + includeMetaData + "&count=" + maxMessages + "&autoAcknowledge=" + autoAcknowledge);
+		writeURI = URI.create(queueURL);
+		messageURLPrefix = queueURL + "/message/";
+		moveURLSuffix = "/DLQ/" + encodePathSegment(topic);
+
+		// Apigee API key used for authentication on Apigee
+		apikeyHeader = new BasicHeader(APIKEY_HEADER_NAME, apikey);
+
+		// Set what type of data you would like to receive
+		getHeaders = new Header[] { new BasicHeader("Accept", accept.getType()), apikeyHeader, new BasicHeader(LIBRARY_HEADER_NAME, LIBRARY_HEADER_VALUE) };
+	}
+
+	/**
+	 * @return the URI of a single message, only the message id is encoded per call
+	 */
+	private URI buildMessageURI(String messageId, String suffix) {
+		String encodedId = encodePathSegment(messageId);
+
+		return URI.create(new StringBuilder(messageURLPrefix.length() + encodedId.length() + suffix.length())
+				.append(messageURLPrefix).append(encodedId).append(suffix).toString());
 	}
 	
 	/**
@@ -202,146 +384,378 @@ public class AMQConsumer extends AMQClient {
 	 * @throws Exception
 	 */
 	public MessageResult getMessage() throws InterruptedException {
+		MessageResult messageResult = (MessageResult) receive(false);
+
+		//A batch made only of duplicates is acknowledged without waiting and the next one fetched straight away
+		while(idempotencyCache != null && messageResult != null && messageResult.hasMessage() && skipDuplicates(messageResult)) {
+			messageResult = (MessageResult) receive(false);
+		}
+
+		return messageResult;
+	}
+
+	/**
+	 * Like {@link #getMessage()}, but returns as soon as the response starts arriving and parses the messages as they
+	 * are iterated instead of materializing the whole batch.  Requesting the next message closes the stream, and the
+	 * messages returned by it must be acknowledged or rolled back first unless autoAcknowledge is set.
+	 * 
+	 * @return {@link MessageStream}
+	 * @throws InterruptedException
+	 */
+	public MessageStream getMessageStream() throws InterruptedException {
+		return (MessageStream) receive(true);
+	}
+
+	private EventHubResult receive(boolean streaming) throws InterruptedException {
+		checkOpen();
 		logger.debug("Entering getMessage()");
 
+		//Closed first, a stream that only read duplicates acknowledges them as it closes.  The last message it handed
+		//out is still the one to acknowledge.
+		closeOpenStream();
+		awaitPendingAcknowledge();
+
 		if(!autoAcknowledge && messageId != null) {
 			throw new IllegalStateException("You should Acknowledge the previous message before requesting a new one.");
 		}
 
-		// Create the POST that will be sent to the server
-		HttpGet getRequest = new HttpGet(buildGetURL());
+		handedOutId = null;
 
-		// Set what type of data you would like to receive
-		getRequest.addHeader("Accept", accept.getType());
+		// Create the GET that will be sent to the server
+		HttpGet getRequest = new HttpGet(getURI);
+		getRequest.setHeaders(getHeaders);
 
-		// Apigee API key used for authentication on Apigee
-		getRequest.addHeader("apikey", apikey);
-		
-		// Apigee API key used for authentication on Apigee
-		getRequest.addHeader("x-amq-library", "AMQLibraryv1");
+		EventHubResult result = execute(Operation.GET, getRequest, new ResponseHandler<EventHubResult>() {
 
-		// Exit condition for the loop. We should exit if the call is successful, or if we hit the maximum number of retries
-		boolean done = false;
-		int failureCount = 0;
-		MessageResult messageResult = null;
-		do {
-			try {
-				// Call the service
-				HttpResponse getResponse = httpClient.execute(getRequest);
-	
+			@Override
+			public EventHubResult handle(HttpResponse getResponse, int attempts) throws Exception {
 				// Check to make sure we received a response in the 200 Family
 				if (Family.familyOf(getResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL) {
-					failureCount = 0;
-					done = true;
-					
+					MessageResult messageResult = null;
+
 					// If response 204, return empty messageResult 
 					if (getResponse.getStatusLine().getStatusCode() == NO_MESSAGE_STATUS_CODE) {
+						EntityUtils.consume(getResponse.getEntity());
 						messageResult = new MessageResult();
 					}
-					
-					// Check to see if the status code is a 204 "No Messages" "No Content" code
-					//If it is 204 than you have no messages.  Returning null?
-					if (getResponse.getStatusLine().getStatusCode() != NO_MESSAGE_STATUS_CODE) {
+					else if(includeMetaData && streaming && messageResultDecoder.isStreamable(getResponse.getEntity())) {
+						//Hand the open response to the stream, messageId is tracked as messages are read.  The blocking
+						//client always returns a CloseableHttpResponse.
+						MessageStream messageStream = messageResultDecoder.stream(AMQConsumer.this, (CloseableHttpResponse) getResponse);
+						messageStream.setAttempts(attempts);
+						openStream = messageStream;
+
+						return messageStream;
+					}
+					else if(includeMetaData) {
+						messageResult = messageResultDecoder.decode(getResponse.getEntity());
+						messageId = messageResult.getLastMessageId();
+					}
+					else {
 						//Pull out the Response body as a String
 						String responseString = EntityUtils.toString(getResponse.getEntity());
 						logger.debug(responseString);
-	
+
 						//Figure out the content-type of the response body
-						ContentType contentType = ContentType.get(getResponse.getEntity());
-						String mimeType = contentType.getMimeType();
-	
-						if(includeMetaData) {
-							if (MediaType.APPLICATION_XML.equalsIgnoreCase(mimeType)) {
-								logger.debug("XML");
-		
-								StringReader xml = new StringReader(responseString);
-								JAXBContext jaxbContext = JAXBContext.newInstance(MessageResult.class);
-								Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-								messageResult = (MessageResult) jaxbUnmarshaller.unmarshal(xml);
-							}
-							else if (MediaType.APPLICATION_JSON.equalsIgnoreCase(mimeType)) {
-								logger.debug("JSON");
-								ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
-								messageResult = mapper.readValue(responseString, MessageResult.class);
-							}
-						}
-						else {
-							messageResult = new MessageResult();
-							Message message = new Message();
-							message.setContentType(mimeType);
-							message.setData(responseString);
-	
-							List<Message> messages = new ArrayList<Message>();
-							messages.add(message);
-	
-							Header additionalMsg = getResponse.getFirstHeader("x-has-additional-message");
-							boolean hasAdditionalMessage = false;
+						String mimeType = ContentType.get(getResponse.getEntity()).getMimeType();
+
+						messageResult = new MessageResult();
+						Message message = new Message();
+						message.setContentType(mimeType);
+						message.setData(responseString);
 
-							if(additionalMsg != null) {
-								hasAdditionalMessage = Boolean.parseBoolean(additionalMsg.getValue());
-							}
+						List<Message> messages = new ArrayList<Message>();
+						messages.add(message);
 
-							messageResult.setMessages(messages);
-							messageResult.hasAdditionalMessage(hasAdditionalMessage);
+						Header additionalMsg = getResponse.getFirstHeader("x-has-additional-message");
+						boolean hasAdditionalMessage = false;
+
+						if(additionalMsg != null) {
+							hasAdditionalMessage = Boolean.parseBoolean(additionalMsg.getValue());
 						}
+
+						messageResult.setMessages(messages);
+						messageResult.hasAdditionalMessage(hasAdditionalMessage);
 						messageId = messageResult.getLastMessageId();
 					}
+
+					messageResult.setAttempts(attempts);
+
+					return messageResult;
 				}
-				// This will capture all the 500-level Server Error Status Codes.
-				else if (Family.familyOf(getResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SERVER_ERROR) {
-					//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-					//of whether the calls were successful or not.
-					failureCount++;
-	
-					//Retrieve the Response Body (if any) and log the body and status code
-					String responseBody = EntityUtils.toString(getResponse.getEntity());
-					logger.debug("Status Code: {}, Response Body: {}", getResponse.getStatusLine().getStatusCode(), responseBody);
-	
-					//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-					if (failureCount >= maxFailures) {
-						logger.debug("Too many errors, quiting.");
-	
-						done = true;
-					}
-					//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-					else {
-						logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
-	
-						Thread.sleep(sleepDuration * failureCount);
-					}
-				}
+
 				// There was an unexpected result that should be handled in some way depending on your use case
-				else {
-					String responseBody = EntityUtils.toString(getResponse.getEntity());
-					logger.debug("Status Code: {}, Response Body: {}", getResponse.getStatusLine().getStatusCode(), responseBody);
-	
-					done = true;
-				}
+				logResponse(getResponse);
+
+				return null;
 			}
-			catch(Exception e) {
-				//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-				//of whether the calls were successful or not.
-				failureCount++;
 
-				//Retrieve the Response Body (if any) and log the body and status code
-				logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
+			@Override
+			public EventHubResult giveUp(int statusCode, int attempts) {
+				return null;
+			}
+		});
 
-				//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-				if (failureCount >= maxFailures) {
-					logger.debug("Too many errors, quiting.");
+		//Streams read from the response are counted as messages are handed out
+		if(result instanceof MessageResult) {
+			fetched(((MessageResult) result).getMessages());
+		}
 
-					done = true;
-				}
-				//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-				else {
-					logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
+		if(streaming) {
+			if(result instanceof MessageStream) {
+				return result;
+			}
 
-					Thread.sleep(sleepDuration * failureCount);
-				}
+			messageId = null;
+			MessageStream messageStream = result != null ? new MessageStream(this, (MessageResult) result) : new MessageStream(this, new MessageResult());
+			openStream = messageStream;
+
+			return messageStream;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Blocks until an asynchronous acknowledgement has at least been sent, so the gateway sees it before the next get.
+	 */
+	private void awaitPendingAcknowledge() throws InterruptedException {
+		if(pendingAckSent != null) {
+			try {
+				pendingAckSent.get();
+			}
+			catch(ExecutionException e) {
+				//Never completed exceptionally, failures are reported through the acknowledgement future
 			}
-		} while (!done);
 
-		return messageResult;
+			pendingAckSent = null;
+		}
+	}
+
+	/**
+	 * Tracks out of order completion of the messages in the batch and acknowledges them as they become contiguous.  See
+	 * {@link AckTracker}.  The batch must be settled through the tracker's finish method.
+	 * 
+	 * @return {@link AckTracker} that moves failed messages to the dead letter queue
+	 * @throws IllegalStateException if autoAcknowledge is set or the batch has already been settled
+	 */
+	public AckTracker trackAcknowledgements(MessageResult messageResult) throws IllegalStateException {
+		return trackAcknowledgements(messageResult, AckTracker.FailurePolicy.DEAD_LETTER, AckTracker.DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Like {@link #trackAcknowledgements(MessageResult)} with the given failure policy and interval in milliseconds between
+	 * acknowledgements through the watermark.
+	 * 
+	 * @return {@link AckTracker}
+	 * @throws IllegalStateException if autoAcknowledge is set or the batch has already been settled
+	 */
+	public AckTracker trackAcknowledgements(MessageResult messageResult, AckTracker.FailurePolicy failurePolicy, long flushIntervalMillis) throws IllegalStateException {
+		checkOpen();
+
+		if(autoAcknowledge || messageId == null || messageResult == null || !messageResult.hasMessage()) {
+			throw new IllegalStateException("There are no messages to acknowledge.");
+		}
+
+		if(flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("Flush interval must be greater than zero.");
+		}
+
+		return new AckTracker(this, messageResult.getMessages(), failurePolicy, flushIntervalMillis);
+	}
+
+	/**
+	 * Called by an {@link AckTracker} once it has settled the batch, so the next batch can be requested.
+	 */
+	protected void batchSettled() {
+		messageId = null;
+
+		//The tracker recorded the messages as they completed
+		forgetHandedOut();
+	}
+
+	/**
+	 * Records the size of a get and the lag of its messages, measured against one clock reading.
+	 */
+	private void fetched(List<Message> messages) {
+		long nowMillis = System.currentTimeMillis();
+		long maxLagMillis = 0;
+
+		if(messages != null) {
+			for(Message message : messages) {
+				maxLagMillis = Math.max(maxLagMillis, consumerLag.record(message, nowMillis));
+			}
+		}
+
+		metrics.fetched(messages != null ? messages.size() : 0);
+		consumerLag.fetched(maxLagMillis);
+	}
+
+	/**
+	 * Removes the messages the {@link IdempotencyCache} has seen from the batch.  They stay covered by the
+	 * acknowledgement, which is through the last message of the whole batch.
+	 *
+	 * @return true if every message was a duplicate and they have been acknowledged, so the next batch can be fetched
+	 * @throws InterruptedException
+	 */
+	private boolean skipDuplicates(MessageResult messageResult) throws InterruptedException {
+		List<Message> messages = messageResult.getMessages();
+		List<Message> remaining = new ArrayList<Message>(messages.size());
+
+		for(Message message : messages) {
+			if(!idempotencyCache.isDuplicate(message)) {
+				remaining.add(message);
+			}
+		}
+
+		if(remaining.size() < messages.size()) {
+			messageResult.setMessages(remaining);
+			messageResult.setMessageCount(remaining.size());
+		}
+
+		if(remaining.isEmpty()) {
+			if(autoAcknowledge) {
+				return true;
+			}
+
+			//Waits for the gateway, a get sent sooner could be handed the same duplicates again
+			AcknowledgeResult ackResult = acknowledgeMessage(messageId, true);
+			messageId = null;
+
+			if(!ackResult.isSuccess()) {
+				//Return the empty batch rather than fetch the duplicates again straight away
+				logger.debug("Unable to acknowledge duplicates, Status Code: {}", ackResult.getStatusCode());
+				return false;
+			}
+
+			return true;
+		}
+
+		for(Message message : remaining) {
+			handedOut(message);
+		}
+
+		handedOutId = remaining.get(remaining.size() - 1).getMessageId();
+
+		return false;
+	}
+
+	/**
+	 * Called by an open {@link MessageStream} for each message before handing it out.
+	 *
+	 * @return true if the message is a duplicate and should be passed over
+	 */
+	protected boolean skipDuplicate(Message message) {
+		if(idempotencyCache == null || !idempotencyCache.isDuplicate(message)) {
+			return false;
+		}
+
+		//Acknowledged with the messages after it
+		this.messageId = message.getMessageId();
+
+		return true;
+	}
+
+	/**
+	 * Acknowledges the duplicates read by a stream without waiting, the next get waits until it has been sent.
+	 */
+	private void acknowledgeDuplicates() {
+		if(!autoAcknowledge && messageId != null) {
+			CompletableFuture<Void> sent = new CompletableFuture<Void>();
+			acknowledgeMessageAsync(messageId, true, sent);
+
+			messageId = null;
+			pendingAckSent = sent;
+		}
+	}
+
+	/**
+	 * Remembers the id of a message handed out, to record it once the batch is acknowledged.  With autoAcknowledge the
+	 * gateway has already removed it, so it is recorded straight away.
+	 */
+	private void handedOut(Message message) {
+		if(autoAcknowledge) {
+			idempotencyCache.record(message.getMessageId());
+		}
+		else {
+			if(unrecordedIds == null) {
+				unrecordedIds = new ArrayList<String>();
+			}
+
+			unrecordedIds.add(message.getMessageId());
+		}
+	}
+
+	/**
+	 * Records the messages handed out as processed.  Called before the acknowledgement is sent, so they are skipped
+	 * when it fails and the batch is delivered again.
+	 */
+	private void recordHandedOut() {
+		if(unrecordedIds != null) {
+			for(String id : unrecordedIds) {
+				idempotencyCache.record(id);
+			}
+
+			unrecordedIds.clear();
+		}
+	}
+
+	private void forgetHandedOut() {
+		if(unrecordedIds != null) {
+			unrecordedIds.clear();
+		}
+	}
+
+	/**
+	 * Records a single message as processed in the {@link IdempotencyCache}, if the consumer has one.
+	 */
+	protected void processed(String messageId) {
+		if(idempotencyCache != null) {
+			idempotencyCache.record(messageId);
+		}
+	}
+
+	/**
+	 * Called by an open {@link MessageStream} each time it hands out a message.
+	 */
+	protected void delivered(Message message) {
+		this.messageId = message.getMessageId();
+		this.handedOutId = messageId;
+
+		if(idempotencyCache != null) {
+			handedOut(message);
+		}
+
+		//Messages decoded up front were recorded with their get
+		if(openStream != null && openStream.isIncremental()) {
+			streamLagMillis = Math.max(streamLagMillis, consumerLag.record(message, System.currentTimeMillis()));
+		}
+	}
+
+	protected void streamClosed(MessageStream messageStream) {
+		if(openStream == messageStream) {
+			openStream = null;
+
+			//Only duplicates were read, nothing was handed out for the application to acknowledge
+			if(messageStream.getDeliveredCount() == 0) {
+				acknowledgeDuplicates();
+			}
+
+			if(messageStream.isIncremental()) {
+				metrics.fetched(Math.max(messageStream.getMessageCount(), messageStream.getDeliveredCount()));
+				consumerLag.fetched(streamLagMillis);
+				streamLagMillis = 0;
+			}
+		}
+	}
+
+	/**
+	 * Acknowledging or rolling back while a stream is open applies to the messages it has handed out so far.
+	 */
+	private void closeOpenStream() {
+		if(openStream != null) {
+			openStream.close();
+		}
 	}
 
 
@@ -366,22 +780,21 @@ public class AMQConsumer extends AMQClient {
 //		}
 //	}
 
-	public void close() {
-
-	}
-	
 	/**
 	 * Use this method to indicate processing of the message was unsuccessful.  This resets internal state so you can safely
 	 * call getMessage again.
 	 * 
 	 */
 	public void rollback() {
+		closeOpenStream();
+
 		if(autoAcknowledge || messageId == null) {
 			//Throw error 
 			throw new IllegalStateException("Message cannot be rollback when autoAcknowledge is true, or there is no message to rollback.");
 		}
 
 		messageId = null;
+		forgetHandedOut();
 	}
 	
 	/**
@@ -391,8 +804,11 @@ public class AMQConsumer extends AMQClient {
 	 * @throws Exception
 	 */
 	public AcknowledgeResult acknowledgeMessage() throws InterruptedException, IllegalStateException {
+		checkOpen();
+		closeOpenStream();
 
 		if(messageId != null) {
+			recordHandedOut();
 			AcknowledgeResult ackResult = acknowledgeMessage(messageId, true);
 			
 			if(ackResult.isSuccess()) {
@@ -405,101 +821,74 @@ public class AMQConsumer extends AMQClient {
 		}
 	}
 	
-	public AcknowledgeResult acknowledgeAsPoison() throws InterruptedException, IllegalStateException {
-		logger.trace("Entering acknowledgeAsPoison, messageID = {}", messageId);
-
-		if(messageId != null) {
-			AcknowledgeResult ackResult = new AcknowledgeResult();
-
-			// Create the POST that will be sent to the server
-			HttpPost postRequest = new HttpPost(buildMoveURL(messageId));
+	/**
+	 * Acknowledge the last message(s) returned without waiting for the response.
+	 * 
+	 * The next getMessage only waits until the acknowledgement has been sent rather than for the full round trip, so the
+	 * acknowledgement overlaps with the next fetch.  Server errors are retried, and 410 GONE counts as success, exactly as
+	 * in {@link #acknowledgeMessage()}.  The consumer no longer tracks the batch once this returns.  If the
+	 * acknowledgement ultimately fails, the future completes with an unsuccessful {@link AcknowledgeResult} and the
+	 * batch stays on the queue to be delivered again.
+	 * 
+	 * @return {@link CompletableFuture} that completes with the {@link AcknowledgeResult}
+	 * @throws IllegalStateException if there is no message to acknowledge
+	 */
+	public CompletableFuture<AcknowledgeResult> acknowledgeMessageAsync() throws IllegalStateException {
+		checkOpen();
+		closeOpenStream();
 
-			// Apigee API key used for authentication on Apigee
-			postRequest.addHeader("apikey", apikey);
+		if(messageId == null) {
+			throw new IllegalStateException("There are no messages to acknowledge.");
+		}
 
-			// Exit condition for the loop. We should exit if the call is successful, or if we hit the maximum number of retries
-			boolean done = false;
-			int failureCount = 0;
+		recordHandedOut();
 
-			do {
-				try {
-					// Call the service
-					HttpResponse postResponse = httpClient.execute(postRequest);
+		CompletableFuture<Void> sent = new CompletableFuture<Void>();
+		CompletableFuture<AcknowledgeResult> future = acknowledgeMessageAsync(messageId, true, sent);
 
-					//Set the status code.  If we retry for some reason this will get overwritten
-					ackResult.setStatusCode(postResponse.getStatusLine().getStatusCode());
+		messageId = null;
+		pendingAckSent = sent;
 
-					// Check to make sure we received a response in the 200 Family
-					if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL) {
-						failureCount = 0;
-						done = true;
-						ackResult.setSuccess(true);
-					}
-					// Special status message to indicate the message is no longer there
-					else if (postResponse.getStatusLine().getStatusCode() == Response.Status.GONE.getStatusCode()) {
-						failureCount = 0;
-						done = true;
-						ackResult.setSuccess(true);
-					}
-					// This will capture all the 500-level Server Error Status Codes.
-					else if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SERVER_ERROR) {
-						//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-						//of whether the calls were successful or not.
-						failureCount++;
-
-						//Retrieve the Response Body (if any) and log the body and status code
-						String responseBody = EntityUtils.toString(postResponse.getEntity());
-						logger.debug("Status Code: {}, Response Body: {}", postResponse.getStatusLine().getStatusCode(), responseBody);
-
-						//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-						if (failureCount >= maxFailures) {
-							logger.debug("Too many errors, quiting.");
-
-							done = true;
-							ackResult.setSuccess(false);
-						}
-						//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-						else {
-							logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
-		
-							Thread.sleep(sleepDuration * failureCount);
-						}
-					}
-					// There was an unexpected result that should be handled in some way depending on your use case
-					else {
-						String responseBody = EntityUtils.toString(postResponse.getEntity());
-						logger.debug("Status Code: {}, Response Body: {}", postResponse.getStatusLine().getStatusCode(), responseBody);
+		return future;
+	}
 
-						done = true;
-						ackResult.setSuccess(false);
-					}
-				}
-				catch(Exception e) {
-					//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-					//of whether the calls were successful or not.
-					failureCount++;
+	/**
+	 * Same as {@link #acknowledgeMessageAsync()}, also notifying the callback once the acknowledgement completes.
+	 * 
+	 * @param callback
+	 * @return {@link CompletableFuture} that completes with the {@link AcknowledgeResult}
+	 * @throws IllegalStateException if there is no message to acknowledge
+	 */
+	public CompletableFuture<AcknowledgeResult> acknowledgeMessageAsync(final FutureCallback<AcknowledgeResult> callback) throws IllegalStateException {
+		CompletableFuture<AcknowledgeResult> future = acknowledgeMessageAsync();
 
-					//Retrieve the Response Body (if any) and log the body and status code
-					logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
+		future.whenComplete((ackResult, e) -> {
+			if(ackResult != null) {
+				callback.completed(ackResult);
+			}
+			else if(e instanceof CancellationException) {
+				callback.cancelled();
+			}
+			else {
+				callback.failed(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+			}
+		});
 
-					//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-					if (failureCount >= maxFailures) {
-						logger.debug("Too many errors, quiting.");
+		return future;
+	}
 
-						done = true;
-						ackResult.setSuccess(false);
-					}
-					//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-					else {
-						logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
+	public AcknowledgeResult acknowledgeAsPoison() throws InterruptedException, IllegalStateException {
+		checkOpen();
+		closeOpenStream();
+		logger.trace("Entering acknowledgeAsPoison, messageID = {}", messageId);
 
-						Thread.sleep(sleepDuration * failureCount);
-					}
-				}
-			} while (!done);
+		if(messageId != null) {
+			//A duplicate skipped at the end of the batch was already processed, the failed message is the last handed out
+			AcknowledgeResult ackResult = acknowledgeAsPoison(handedOutId != null ? handedOutId : messageId);
 
 			if(ackResult.isSuccess()) {
 				messageId = null;
+				forgetHandedOut();
 			}
 			return ackResult;
 		}
@@ -508,6 +897,20 @@ public class AMQConsumer extends AMQClient {
 		}
 	}
 
+	/**
+	 * Moves a single message to the dead letter queue
+	 * 
+	 * @return {@link AcknowledgeResult}
+	 * @throws InterruptedException
+	 */
+	protected AcknowledgeResult acknowledgeAsPoison(String messageId) throws InterruptedException {
+		// Create the POST that will be sent to the server
+		HttpPost postRequest = new HttpPost(buildMessageURI(messageId, moveURLSuffix));
+		postRequest.addHeader(apikeyHeader);
+
+		return execute(Operation.POISON, postRequest, ACKNOWLEDGE_HANDLER);
+	}
+
 	/**
 	 * Acknowledge the last message(s) returned
 	 * 
@@ -515,194 +918,177 @@ public class AMQConsumer extends AMQClient {
 	 * @throws InterruptedException
 	 */
 	protected AcknowledgeResult acknowledgeMessage(String messageId, boolean fastForward) throws InterruptedException {
-		AcknowledgeResult acknowledgeResult = new AcknowledgeResult();
+		return execute(Operation.ACK, buildDeleteRequest(messageId, fastForward), ACKNOWLEDGE_HANDLER);
+	}
+
+	protected HttpDelete buildDeleteRequest(String messageId, boolean fastForward) {
+		// Create the DELETE that will be sent to the server
+		HttpDelete deleteRequest = new HttpDelete(buildMessageURI(messageId, fastForward ? FAST_FORWARD_QUERY : SINGLE_MESSAGE_QUERY));
+		deleteRequest.addHeader(apikeyHeader);
+
+		return deleteRequest;
+	}
 
+	/**
+	 * Acknowledge the given message without waiting for the response, leaving the consumer state alone.
+	 * 
+	 * @param sent completed once the request has been written, or once the acknowledgement completes if it never is
+	 * @return {@link CompletableFuture} that completes with the {@link AcknowledgeResult}
+	 */
+	protected CompletableFuture<AcknowledgeResult> acknowledgeMessageAsync(String messageId, boolean fastForward, final CompletableFuture<Void> sent) {
+		CompletableFuture<AcknowledgeResult> future = executeAsync(Operation.ACK, buildDeleteRequest(messageId, fastForward), ACKNOWLEDGE_HANDLER, sent);
+
+		//If the request never made it onto the wire do not leave anyone waiting for it
+		future.whenComplete((ackResult, e) -> sent.complete(null));
+
+		return future;
+	}
+
+	private HttpPost buildWriteRequest(HttpEntity entity, ContentType contentType) {
 		// Create the POST that will be sent to the server
-		HttpDelete deleteRequest = new HttpDelete(buildDeleteURL(messageId, fastForward));
+		HttpPost postRequest = new HttpPost(writeURI);
+		postRequest.setEntity(entity);
+		postRequest.addHeader(apikeyHeader);
+		postRequest.addHeader("Content-Type", contentType.toString());
 
-		// Apigee API key used for authentication on Apigee
-		deleteRequest.addHeader("apikey", apikey);
+		return postRequest;
+	}
 
-		// Exit condition for the loop. We should exit if the call is successful, or if we hit the maximum number of retries
-		boolean done = false;
-		int failureCount = 0;
+	private static Charset charsetOf(ContentType contentType) {
+		return charsetOf(contentType.getMimeType(), contentType.getCharset());
+	}
 
-		do {
-			try {
-				// Call the service
-				HttpResponse deleteResponse = httpClient.execute(deleteRequest);
+	/**
+	 * Writes the message to the queue without blocking the calling thread.  See {@link AMQPublisher#writeToTopicAsync(String)}.
+	 * 
+	 * @param message
+	 * @param contentType
+	 * @return {@link CompletableFuture} that completes with the {@link WriteResult}
+	 * @throws IllegalStateException if the message is null or blank
+	 * @throws UnsupportedEncodingException
+	 */
+	public CompletableFuture<WriteResult> writeToQueueAsync(String message, ContentType contentType) throws IllegalStateException, UnsupportedEncodingException {
+		checkOpen();
 
-				//Set the status code.  If we retry for some reason this will get overwritten
-				acknowledgeResult.setStatusCode(deleteResponse.getStatusLine().getStatusCode());
+		if(!isBlank(message)) {
+			return writeAsync(buildWriteRequest(buildEntity(message, charsetOf(contentType)), contentType));
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
 
-				// Check to make sure we received a response in the 200 Family
-				if (Family.familyOf(deleteResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL) {
-					failureCount = 0;
-					done = true;
-					acknowledgeResult.setSuccess(true);
-				}
-				// Special status message to indicate the message is no longer there
-				else if (deleteResponse.getStatusLine().getStatusCode() == Response.Status.GONE.getStatusCode()) {
-					failureCount = 0;
-					done = true;
-					acknowledgeResult.setSuccess(true);
-				}
-				// This will capture all the 500-level Server Error Status Codes.
-				else if (Family.familyOf(deleteResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SERVER_ERROR) {
-					//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-					//of whether the calls were successful or not.
-					failureCount++;
-
-					//Retrieve the Response Body (if any) and log the body and status code
-					String responseBody = EntityUtils.toString(deleteResponse.getEntity());
-					logger.debug("Status Code: {}, Response Body: {}", deleteResponse.getStatusLine().getStatusCode(), responseBody);
-
-					//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-					if (failureCount >= maxFailures) {
-						logger.debug("Too many errors, quiting.");
-
-						done = true;
-						acknowledgeResult.setSuccess(false);
-					}
-					//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-					else {
-						logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
+	/**
+	 * Writes the message to the queue, encoded in the charset of the content type.  JSON without a declared charset is
+	 * sent as UTF-8, anything else as ISO-8859-1.
+	 *
+	 * @param message
+	 * @param contentType
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null or blank
+	 * @throws UnsupportedEncodingException
+	 */
+	public WriteResult writeToQueue(String message, ContentType contentType) throws InterruptedException, IllegalStateException, UnsupportedEncodingException {
+		checkOpen();
 	
-						Thread.sleep(sleepDuration * failureCount);
-					}
-				}
-				// There was an unexpected result that should be handled in some way depending on your use case
-				else {
-					String responseBody = EntityUtils.toString(deleteResponse.getEntity());
-					logger.debug("Status Code: {}, Response Body: {}", deleteResponse.getStatusLine().getStatusCode(), responseBody);
+		if(!isBlank(message)) {
+			return write(buildEntity(message, charsetOf(contentType)), contentType);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
 
-					done = true;
-					acknowledgeResult.setSuccess(false);
-				}
-			}
-			catch(Exception e) {
-				//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-				//of whether the calls were successful or not.
-				failureCount++;
+	/**
+	 * Writes an already encoded message to the queue.  See {@link AMQPublisher#writeToTopic(byte[])}.
+	 *
+	 * @param message
+	 * @param contentType
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null or blank
+	 */
+	public WriteResult writeToQueue(byte[] message, ContentType contentType) throws InterruptedException, IllegalStateException {
+		checkOpen();
 
-				//Retrieve the Response Body (if any) and log the body and status code
-				logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
+		if(!isBlank(message)) {
+			return write(buildEntity(message), contentType);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
 
-				//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-				if (failureCount >= maxFailures) {
-					logger.debug("Too many errors, quiting.");
+	/**
+	 * Writes the remaining bytes of the buffer to the queue without copying them.  See {@link AMQPublisher#writeToTopic(ByteBuffer)}.
+	 *
+	 * @param message
+	 * @param contentType
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null or blank
+	 */
+	public WriteResult writeToQueue(ByteBuffer message, ContentType contentType) throws InterruptedException, IllegalStateException {
+		checkOpen();
 
-					done = true;
-					acknowledgeResult.setSuccess(false);
-				}
-				//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-				else {
-					logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
+		if(!isBlank(message)) {
+			return write(buildEntity(message), contentType);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
 
-					Thread.sleep(sleepDuration * failureCount);
-				}
-			}
-		} while (!done);
+	/**
+	 * Writes the stream to the queue with chunked transfer encoding, without retries.  See {@link AMQPublisher#writeToTopic(InputStream)}.
+	 *
+	 * @param message
+	 * @param contentType
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null
+	 */
+	public WriteResult writeToQueue(InputStream message, ContentType contentType) throws InterruptedException, IllegalStateException {
+		checkOpen();
 
-		return acknowledgeResult;
+		if(message != null) {
+			return write(buildEntity(message), contentType);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null.");
+		}
 	}
 
-	public WriteResult writeToQueue(String message, ContentType contentType) throws InterruptedException, IllegalStateException, UnsupportedEncodingException {
-	
-		if(message != null && message.trim().length() > 0) {
-			WriteResult writeResult = new WriteResult();
-	
-			// Create the POST that will be sent to the server
-			HttpPost postRequest = new HttpPost(buildWriteURL());
-			StringEntity input = new StringEntity(message);
-			postRequest.setEntity(input);
-	
-			// Apigee API key used for authentication on Apigee
-			postRequest.addHeader("apikey", apikey);
-			postRequest.addHeader("Content-Type", contentType.getMimeType());
-	
-			// Exit condition for the loop. We should exit if the call is successful, or if we hit the maximum number of retries
-			boolean done = false;
-			int failureCount = 0;
-	
-			do {
-				try {
-					// Call the service
-					HttpResponse postResponse = httpClient.execute(postRequest);
-	
-					//Set the status code.  If we retry for some reason this will get overwritten
-					writeResult.setStatusCode(postResponse.getStatusLine().getStatusCode());
-	
-					// Check to make sure we received a response in the 200 Family
-					if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL) {
-						failureCount = 0;
-						done = true;
-						writeResult.setSuccess(true);
-					}
-					// This will capture all the 500-level Server Error Status Codes.
-					else if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SERVER_ERROR) {
-						//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-						//of whether the calls were successful or not.
-						failureCount++;
-	
-						//Retrieve the Response Body (if any) and log the body and status code
-						String responseBody = EntityUtils.toString(postResponse.getEntity());
-						logger.debug("Status Code: {}, Response Body: {}", postResponse.getStatusLine().getStatusCode(), responseBody);
-	
-						//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-						if (failureCount >= maxFailures) {
-							logger.debug("Too many errors, quiting.");
-	
-							done = true;
-							writeResult.setSuccess(false);
-						}
-						//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-						else {
-							logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
-		
-							Thread.sleep(sleepDuration * failureCount);
-						}
-					}
-					// There was an unexpected result that should be handled in some way depending on your use case
-					else {
-						String responseBody = EntityUtils.toString(postResponse.getEntity());
-						logger.debug("Status Code: {}, Response Body: {}", postResponse.getStatusLine().getStatusCode(), responseBody);
-	
-						done = true;
-						writeResult.setSuccess(false);
-					}
-				}
-				catch(Exception e) {
-					//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-					//of whether the calls were successful or not.
-					failureCount++;
-	
-					//Retrieve the Response Body (if any) and log the body and status code
-					logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
-	
-					//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-					if (failureCount >= maxFailures) {
-						logger.debug("Too many errors, quiting.");
-	
-						done = true;
-						writeResult.setSuccess(false);
-					}
-					//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-					else {
-						logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
-	
-						Thread.sleep(sleepDuration * failureCount);
-					}
-				}
-			} while (!done);
-	
-			if(writeResult.isSuccess()) {
-				messageId = null;
-			}
-			return writeResult;
+	/**
+	 * Writes the file to the queue, streamed from a FileChannel.  See {@link AMQPublisher#writeToTopic(Path)}.
+	 *
+	 * @param message
+	 * @param contentType
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the file is null or empty
+	 * @throws IOException if the file cannot be read
+	 */
+	public WriteResult writeToQueue(Path message, ContentType contentType) throws InterruptedException, IllegalStateException, IOException {
+		checkOpen();
+
+		HttpEntity entity = message != null ? buildEntity(message) : null;
+
+		if(entity != null && entity.getContentLength() > 0) {
+			return write(entity, contentType);
 		}
 		else {
-			throw new IllegalStateException("Message cannot be null or blank.");
+			throw new IllegalStateException("Message cannot be null or empty.");
+		}
+	}
+
+	private WriteResult write(HttpEntity entity, ContentType contentType) throws InterruptedException {
+		WriteResult writeResult = execute(Operation.WRITE, buildWriteRequest(entity, contentType), WRITE_HANDLER);
+
+		if(writeResult.isSuccess()) {
+			messageId = null;
 		}
+		return writeResult;
 	}
 }
\ No newline at end of file
@@ -1,20 +1,23 @@
 package edu.northwestern.amq;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.text.MessageFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
-import javax.ws.rs.core.Response.Status.Family;
 
 import org.apache.http.Header;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.message.BasicHeader;
+
+import edu.northwestern.amq.ClientMetrics.Operation;
 
 /**
  * This represents the actions that can be taken by a consumer against a Queue.
@@ -24,14 +27,24 @@ import org.apache.http.util.EntityUtils;
  */
 public class AMQPublisher extends AMQClient {
 
-	private static final String APIGEE_WRITE_TO_TOPIC_URL_PATTERN = "https://northwestern-{0}.apigee.net/v1/event-hub/topic/{1}";
-
 	private MediaType contentType = null;
-	private HttpClient httpClient = null;
+	private Charset charset = null;
+	private URI writeURI = null;
+	private Header[] writeHeaders = null;
 	
 	public static class PublisherBuilder {
 		
 		private AMQPublisher publisher = new AMQPublisher();
+		private int maxBatchMessages = BatchingPublisher.DEFAULT_MAX_BATCH_MESSAGES;
+		private long maxBatchBytes = BatchingPublisher.DEFAULT_MAX_BATCH_BYTES;
+		private long lingerMillis = BatchingPublisher.DEFAULT_LINGER_MILLIS;
+		private int maxInFlight = BatchingPublisher.DEFAULT_MAX_IN_FLIGHT;
+		private int maxPendingMessages = BatchingPublisher.DEFAULT_MAX_PENDING_MESSAGES;
+		private Path spoolDirectory = null;
+		private int spoolSegmentBytes = SpoolingPublisher.DEFAULT_SEGMENT_BYTES;
+		private long maxSpoolBytes = SpoolingPublisher.DEFAULT_MAX_SPOOL_BYTES;
+		private PublishSpool.FsyncPolicy fsyncPolicy = SpoolingPublisher.DEFAULT_FSYNC_POLICY;
+		private long fsyncIntervalMillis = SpoolingPublisher.DEFAULT_FSYNC_INTERVAL_MILLIS;
 		
         public static PublisherBuilder create() {
             return new PublisherBuilder();
@@ -55,17 +68,69 @@ public class AMQPublisher extends AMQClient {
         		throw new IllegalArgumentException("ContentType is required.");
         	}
 
-        	//Create the HttpClient
-    		// Set the timeout for this request in milliseconds.
-    		//Will wait 10 seconds to get a connection from the connection manager and 6 seconds to connect to the server.
-    		RequestConfig.Builder requestBuilder = RequestConfig.custom().setConnectTimeout(6 * 1000).setConnectionRequestTimeout(10 * 1000);
+        	checkBaseURL(publisher.baseURL);
+
+        	//Encode String messages in the declared charset, throws IllegalArgumentException if it is not supported
+        	String charsetName = publisher.contentType.getParameters().get(MediaType.CHARSET_PARAMETER);
+        	publisher.charset = charsetOf(publisher.contentType.getType() + "/" + publisher.contentType.getSubtype(), charsetName != null ? Charset.forName(charsetName) : null);
 
-    		// Create the client used to connect to the service. For performance reasons this can and should be reused across your application
-    		publisher.httpClient = HttpClientBuilder.create().setDefaultRequestConfig(requestBuilder.build()).build();
+        	//Attach to the pooled HttpClient.  For performance reasons this is shared across your application
+        	publisher.initClient();
         	
             return publisher;
         }
 
+        /**
+         * Builds the publisher and wraps it in a {@link BatchingPublisher} that collects messages and flushes them
+         * from a background thread.
+         * 
+         * @return {@link BatchingPublisher}
+         */
+        public BatchingPublisher buildBatching() {
+        	if(maxBatchMessages <= 0 || maxBatchBytes <= 0 || lingerMillis < 0 || maxInFlight <= 0) {
+        		throw new IllegalArgumentException("Batch size, batch bytes and max in flight must be greater than zero and linger cannot be negative.");
+        	}
+
+        	if(maxPendingMessages < maxBatchMessages) {
+        		throw new IllegalArgumentException("Max pending messages cannot be less than the batch size.");
+        	}
+
+        	return new BatchingPublisher(build(), maxBatchMessages, maxBatchBytes, lingerMillis, maxInFlight, maxPendingMessages);
+        }
+
+        /**
+         * Builds the publisher and wraps it in a {@link SpoolingPublisher} that appends messages to a spool in the
+         * {@link #setSpoolDirectory(Path) spool directory} and publishes them from a background thread.  Messages
+         * left in the directory by an earlier publisher are sent first.
+         *
+         * @return {@link SpoolingPublisher}
+         * @throws IOException if the spool directory cannot be used
+         * @throws IllegalStateException if another publisher has the spool directory open
+         */
+        public SpoolingPublisher buildSpooling() throws IOException, IllegalStateException {
+        	if(spoolDirectory == null) {
+        		throw new IllegalArgumentException("Spool directory is required.");
+        	}
+
+        	if(spoolSegmentBytes <= 0 || maxSpoolBytes < spoolSegmentBytes || fsyncPolicy == null) {
+        		throw new IllegalArgumentException("Segment bytes must be greater than zero, max spool bytes at least one segment and the fsync policy is required.");
+        	}
+
+        	if(fsyncPolicy == PublishSpool.FsyncPolicy.INTERVAL && fsyncIntervalMillis <= 0) {
+        		throw new IllegalArgumentException("Fsync interval must be greater than zero.");
+        	}
+
+        	PublishSpool spool = new PublishSpool(spoolDirectory, spoolSegmentBytes, maxSpoolBytes, fsyncPolicy);
+
+        	try {
+        		return new SpoolingPublisher(build(), spool, fsyncPolicy == PublishSpool.FsyncPolicy.INTERVAL ? fsyncIntervalMillis : 0);
+        	}
+        	catch(RuntimeException e) {
+        		spool.close();
+        		throw e;
+        	}
+        }
+
         public PublisherBuilder setAPIKey(String apiKey) {
             publisher.setAPIKey(apiKey);
             return this;
@@ -86,15 +151,131 @@ public class AMQPublisher extends AMQClient {
             return this;
         }
         
+        /**
+         * Sends requests under this URL, for example a proxy or a stub server, instead of the Apigee gateway of the
+         * environment.  Topic paths are appended to it, so it should end with /v1/event-hub/ or its equivalent.
+         */
+        public PublisherBuilder setBaseURL(String baseURL) {
+            publisher.setBaseURL(baseURL);
+            return this;
+        }
+
         public PublisherBuilder setMaxAttempts(int maxAttempts) {
             publisher.setMaxAttempts(maxAttempts);
             return this;
         }
 
+        /**
+         * Shares the connection pool, ObjectMapper and scheduler of the given factory.  When not set the
+         * {@link EventHubClientFactory#getDefault() default factory} is used.
+         */
+        public PublisherBuilder setClientFactory(EventHubClientFactory clientFactory) {
+            publisher.setClientFactory(clientFactory);
+            return this;
+        }
+
+        /**
+         * Overrides the {@link RetryPolicy} of the client factory for this publisher.
+         */
+        public PublisherBuilder setRetryPolicy(RetryPolicy retryPolicy) {
+            publisher.setRetryPolicy(retryPolicy);
+            return this;
+        }
+
+        /**
+         * Gzips message bodies of at least this many bytes.  Disabled when not set.
+         */
+        public PublisherBuilder setCompressionThreshold(int compressionThreshold) {
+            publisher.setCompressionThreshold(compressionThreshold);
+            return this;
+        }
+
         public PublisherBuilder setContentType(MediaType contentType) {
             publisher.setContentType(contentType);
             return this;
         }
+
+        /**
+         * Maximum number of messages collected before a batch is flushed.  Only used by {@link #buildBatching()}.
+         */
+        public PublisherBuilder setMaxBatchMessages(int maxBatchMessages) {
+            this.maxBatchMessages = maxBatchMessages;
+            return this;
+        }
+
+        /**
+         * Maximum number of payload bytes, encoded in the charset of the content type, collected before a batch is
+         * flushed.  Only used by {@link #buildBatching()}.
+         */
+        public PublisherBuilder setMaxBatchBytes(long maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * Maximum time in milliseconds the first message of a batch waits before the batch is flushed.  Only used by {@link #buildBatching()}.
+         */
+        public PublisherBuilder setLingerMillis(long lingerMillis) {
+            this.lingerMillis = lingerMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of batched writes outstanding against the gateway at once.  Only used by {@link #buildBatching()}.
+         */
+        public PublisherBuilder setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Maximum number of messages waiting to be flushed, writes beyond it are rejected with
+         * {@link RateLimiter#LIMITED_STATUS_CODE} until the flusher catches up.  Only used by {@link #buildBatching()}.
+         */
+        public PublisherBuilder setMaxPendingMessages(int maxPendingMessages) {
+            this.maxPendingMessages = maxPendingMessages;
+            return this;
+        }
+
+        /**
+         * Directory of the spool, used by one publisher at a time.  Required by {@link #buildSpooling()}.
+         */
+        public PublisherBuilder setSpoolDirectory(Path spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        /**
+         * Size of the files the spool is made of, the largest message it takes is 12 bytes smaller.  Only used by {@link #buildSpooling()}.
+         */
+        public PublisherBuilder setSpoolSegmentBytes(int spoolSegmentBytes) {
+            this.spoolSegmentBytes = spoolSegmentBytes;
+            return this;
+        }
+
+        /**
+         * Disk space the spool can use, writes are refused once it is full.  Only used by {@link #buildSpooling()}.
+         */
+        public PublisherBuilder setMaxSpoolBytes(long maxSpoolBytes) {
+            this.maxSpoolBytes = maxSpoolBytes;
+            return this;
+        }
+
+        /**
+         * When spooled messages are forced to disk.  Only used by {@link #buildSpooling()}.
+         */
+        public PublisherBuilder setFsyncPolicy(PublishSpool.FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        /**
+         * Time in milliseconds between forces of the {@link PublishSpool.FsyncPolicy#INTERVAL} policy.  Only used by {@link #buildSpooling()}.
+         */
+        public PublisherBuilder setFsyncIntervalMillis(long fsyncIntervalMillis) {
+            this.fsyncIntervalMillis = fsyncIntervalMillis;
+            return this;
+        }
 	}
 
 	/**
@@ -104,116 +285,189 @@ public class AMQPublisher extends AMQClient {
 
 	}
 
+	@Override
+	protected String getEndpointName() {
+		return "topic";
+	}
+
 	private void setContentType(MediaType contentType) {
 		this.contentType = contentType;
 	}
+
+	protected Charset getCharset() {
+		return charset;
+	}
 	
-	private String buildWriteURL() {
-    	MessageFormat mf = new MessageFormat(APIGEE_WRITE_TO_TOPIC_URL_PATTERN);
+	@Override
+	protected void initRequests() {
+		writeURI = URI.create(getBaseURL() + "topic/" + encodePathSegment(topic));
+
+		// Apigee API key used for authentication on Apigee
+		writeHeaders = new Header[] { new BasicHeader(APIKEY_HEADER_NAME, apikey), new BasicHeader("Content-Type", formatContentType()) };
+	}
+
+	/**
+	 * Formats the content type directly, MediaType.toString() needs a JAX-RS implementation on the classpath.
+	 */
+	private String formatContentType() {
+		StringBuilder value = new StringBuilder(contentType.getType()).append('/').append(contentType.getSubtype());
+
+		for(Map.Entry<String, String> parameter : contentType.getParameters().entrySet()) {
+			value.append("; ").append(parameter.getKey()).append('=').append(parameter.getValue());
+		}
+
+		return value.toString();
+	}
+
+	protected HttpPost buildWriteRequest(HttpEntity entity) {
+		// Create the POST that will be sent to the server
+		HttpPost postRequest = new HttpPost(writeURI);
+		postRequest.setEntity(entity);
+		postRequest.setHeaders(writeHeaders);
+
+		return postRequest;
+	}
+
+	/**
+	 * Publishes the message without blocking the calling thread.  The request is sent on a shared non-blocking HTTP
+	 * engine and retries are scheduled on a shared scheduler, so the future completes with the same
+	 * success/status/messageId values {@link #writeToTopic(String)} would have returned.
+	 * 
+	 * @param message
+	 * @return {@link CompletableFuture} that completes with the {@link WriteResult}
+	 * @throws IllegalStateException if the message is null or blank
+	 * @throws UnsupportedEncodingException
+	 */
+	public CompletableFuture<WriteResult> writeToTopicAsync(String message) throws IllegalStateException, UnsupportedEncodingException {
+		checkOpen();
+
+		if(!isBlank(message)) {
+			return writeAsync(buildWriteRequest(buildEntity(message, charset)));
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
+
+	/**
+	 * Publishes an already encoded message without blocking the calling thread.  The array is sent as is, it must not be
+	 * changed until the future completes.
+	 *
+	 * @param message
+	 * @return {@link CompletableFuture} that completes with the {@link WriteResult}
+	 * @throws IllegalStateException if the message is null or blank
+	 */
+	public CompletableFuture<WriteResult> writeToTopicAsync(byte[] message) throws IllegalStateException {
+		checkOpen();
 
-    	return mf.format(new Object[] { env, topic, });
+		if(!isBlank(message)) {
+			return writeAsync(buildWriteRequest(buildEntity(message)));
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
 	}
 
+	/**
+	 * Publishes the message, encoded in the charset of the content type.  JSON without a declared charset is sent as
+	 * UTF-8, anything else as ISO-8859-1.
+	 *
+	 * @param message
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null or blank
+	 * @throws UnsupportedEncodingException
+	 */
 	public WriteResult writeToTopic(String message) throws InterruptedException, IllegalStateException, UnsupportedEncodingException {
+		checkOpen();
 
-		if(message != null && message.trim().length() > 0) {
-			WriteResult writeResult = new WriteResult();
+		if(!isBlank(message)) {
+			return execute(Operation.WRITE, buildWriteRequest(buildEntity(message, charset)), WRITE_HANDLER);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
 
-			// Create the POST that will be sent to the server
-			HttpPost postRequest = new HttpPost(buildWriteURL());
-			StringEntity input = new StringEntity(message);
-			postRequest.setEntity(input);
-	
-			// Apigee API key used for authentication on Apigee
-			postRequest.addHeader("apikey", apikey);
-			postRequest.addHeader("Content-Type", contentType.toString());
-	
-			// Exit condition for the loop. We should exit if the call is successful, or if we hit the maximum number of retries
-			boolean done = false;
-			int failureCount = 0;
-	
-			do {
-				try {
-					// Call the service
-					HttpResponse postResponse = httpClient.execute(postRequest);
-	
-					//Set the status code.  If we retry for some reason this will get overwritten
-					writeResult.setStatusCode(postResponse.getStatusLine().getStatusCode());
-	
-					// Check to make sure we received a response in the 200 Family
-					if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SUCCESSFUL) {
-						failureCount = 0;
-						done = true;
-						writeResult.setSuccess(true);
-
-						Header messageIdHeader = postResponse.getFirstHeader(MESSAGE_ID_HEADER_NAME);
-						
-						if(messageIdHeader != null) {
-							writeResult.setMessageId(messageIdHeader.getValue());
-						}
-					}
-					// This will capture all the 500-level Server Error Status Codes.
-					else if (Family.familyOf(postResponse.getStatusLine().getStatusCode()) == Response.Status.Family.SERVER_ERROR) {
-						//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-						//of whether the calls were successful or not.
-						failureCount++;
-	
-						//Retrieve the Response Body (if any) and log the body and status code
-						String responseBody = EntityUtils.toString(postResponse.getEntity());
-						logger.debug("Status Code: {}, Response Body: {}", postResponse.getStatusLine().getStatusCode(), responseBody);
-	
-						//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-						if (failureCount >= maxFailures) {
-							logger.debug("Too many errors, quiting.");
-	
-							done = true;
-							writeResult.setSuccess(false);
-						}
-						//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-						else {
-							logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
-
-							Thread.sleep(sleepDuration * failureCount);
-						}
-					}
-					// There was an unexpected result that should be handled in some way depending on your use case
-					else {
-						String responseBody = EntityUtils.toString(postResponse.getEntity());
-						logger.debug("Status Code: {}, Response Body: {}", postResponse.getStatusLine().getStatusCode(), responseBody);
-	
-						done = true;
-						writeResult.setSuccess(false);
-					}
-				}
-				catch(Exception e) {
-					//Increment the failure counter.  Once we hit the retry limit we will want to break from the loop regardless
-					//of whether the calls were successful or not.
-					failureCount++;
-	
-					//Retrieve the Response Body (if any) and log the body and status code
-					logger.debug("Status Code: {}, Response Body: {}", e.getMessage(), e);
-	
-					//If we have reached the max number of retries we should log that and set the flag to true so we will break 
-					if (failureCount >= maxFailures) {
-						logger.debug("Too many errors, quiting.");
-	
-						done = true;
-						writeResult.setSuccess(false);
-					}
-					//Otherwise pause the application for a the SLEEP_DURATION to provide time for things to recover before trying again.
-					else {
-						logger.debug("Sleeping for {} milliseconds before reprocessing.", (sleepDuration * failureCount));
-	
-						Thread.sleep(sleepDuration * failureCount);
-					}
-				}
-			} while (!done);
-	
-			return writeResult;
+	/**
+	 * Publishes an already encoded message.  The array is sent as is, it must not be changed until the write completes.
+	 *
+	 * @param message
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null or blank
+	 */
+	public WriteResult writeToTopic(byte[] message) throws InterruptedException, IllegalStateException {
+		checkOpen();
+
+		if(!isBlank(message)) {
+			return execute(Operation.WRITE, buildWriteRequest(buildEntity(message)), WRITE_HANDLER);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+	}
+
+	/**
+	 * Publishes the remaining bytes of the buffer without copying them.  The buffer's position is not changed, and its
+	 * content must not be changed until the write completes.
+	 *
+	 * @param message
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null or blank
+	 */
+	public WriteResult writeToTopic(ByteBuffer message) throws InterruptedException, IllegalStateException {
+		checkOpen();
+
+		if(!isBlank(message)) {
+			return execute(Operation.WRITE, buildWriteRequest(buildEntity(message)), WRITE_HANDLER);
 		}
 		else {
 			throw new IllegalStateException("Message cannot be null or blank.");
 		}
 	}
 
+	/**
+	 * Publishes the stream with chunked transfer encoding.  The stream can only be read once, so the write is not
+	 * retried if it fails after the body was sent, and it is never compressed.  The caller closes the stream.
+	 *
+	 * @param message
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the message is null
+	 */
+	public WriteResult writeToTopic(InputStream message) throws InterruptedException, IllegalStateException {
+		checkOpen();
+
+		if(message != null) {
+			return execute(Operation.WRITE, buildWriteRequest(buildEntity(message)), WRITE_HANDLER);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null.");
+		}
+	}
+
+	/**
+	 * Publishes the file, streamed from a FileChannel so it is never loaded onto the heap.  Files are never compressed.
+	 *
+	 * @param message
+	 * @return {@link WriteResult}
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the file is null or empty
+	 * @throws IOException if the file cannot be read
+	 */
+	public WriteResult writeToTopic(Path message) throws InterruptedException, IllegalStateException, IOException {
+		checkOpen();
+
+		HttpEntity entity = message != null ? buildEntity(message) : null;
+
+		if(entity != null && entity.getContentLength() > 0) {
+			return execute(Operation.WRITE, buildWriteRequest(entity), WRITE_HANDLER);
+		}
+		else {
+			throw new IllegalStateException("Message cannot be null or empty.");
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,270 @@
+package edu.northwestern.amq;
+
+import java.io.Closeable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledges a batch whose messages complete in any order, for example when they are processed in parallel.
+ *
+ * The gateway acknowledges with fastForward, meaning everything up to and including a message id.  The tracker therefore
+ * keeps a watermark: the number of messages from the start of the batch that are all complete.  A background task
+ * acknowledges through the watermark every flush interval, so progress is committed while slower messages are still
+ * being processed, and a crash only redelivers what is past the watermark.
+ *
+ * A message that fails is handled according to the {@link FailurePolicy}.  {@link #finish()} acknowledges whatever is
+ * left and releases the consumer so the next batch can be requested.  Messages beyond the watermark at that point are
+ * redelivered.
+ *
+ * Completion methods are thread safe.  Instances are created via {@link AMQConsumer#trackAcknowledgements(MessageResult)}.
+ *
+ */
+public class AckTracker implements Closeable {
+
+	protected static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 500;
+
+	/**
+	 * What to do with a message that failed.
+	 */
+	public enum FailurePolicy {
+		/**
+		 * Move the message to the dead letter queue, then treat it as complete so the watermark can move past it.
+		 * If the move fails the message holds the watermark as with REDELIVER.
+		 */
+		DEAD_LETTER,
+
+		/**
+		 * Hold the watermark at the failed message so it, and everything after it, is delivered again.
+		 */
+		REDELIVER
+	}
+
+	private final AMQConsumer consumer;
+	private final FailurePolicy failurePolicy;
+	private final String[] messageIds;
+	private final Map<String, Integer> positions;
+	private final BitSet complete;
+	private final ScheduledFuture<?> flushTask;
+
+	private int watermark = 0;
+	private int acknowledged = 0;
+	private int deadLetterCount = 0;
+	private int heldCount = 0;
+	private int holdPosition;
+	private CompletableFuture<AcknowledgeResult> inFlight = null;
+	private boolean finished = false;
+
+	protected AckTracker(AMQConsumer consumer, List<Message> messages, FailurePolicy failurePolicy, long flushIntervalMillis) {
+		this.consumer = consumer;
+		this.failurePolicy = failurePolicy;
+		this.messageIds = new String[messages.size()];
+		this.positions = new HashMap<String, Integer>(messages.size() * 2);
+		this.complete = new BitSet(messages.size());
+		this.holdPosition = messages.size();
+
+		for(int i = 0; i < messageIds.length; i++) {
+			messageIds[i] = messages.get(i).getMessageId();
+			positions.put(messageIds[i], i);
+		}
+
+		this.flushTask = consumer.getScheduler().scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Marks the message as successfully processed.
+	 */
+	public void complete(Message message) {
+		complete(message.getMessageId());
+	}
+
+	public synchronized void complete(String messageId) {
+		complete.set(position(messageId));
+		consumer.processed(messageId);
+
+		//Advance over every contiguous completed message, but never past a failed one
+		watermark = Math.min(complete.nextClearBit(watermark), holdPosition);
+
+		notifyAll();
+	}
+
+	/**
+	 * Marks the message as failed and applies the {@link FailurePolicy}.  With DEAD_LETTER this moves the message to the
+	 * dead letter queue on the calling thread before the watermark may pass it.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void fail(Message message) throws InterruptedException {
+		fail(message.getMessageId());
+	}
+
+	public void fail(String messageId) throws InterruptedException {
+		if(failurePolicy == FailurePolicy.DEAD_LETTER) {
+			position(messageId);
+
+			if(consumer.acknowledgeAsPoison(messageId).isSuccess()) {
+				synchronized(this) {
+					deadLetterCount++;
+				}
+
+				complete(messageId);
+				return;
+			}
+
+			AMQClient.logger.debug("Unable to move message {} to the dead letter queue, it will be redelivered.", messageId);
+		}
+
+		hold(messageId);
+	}
+
+	private synchronized void hold(String messageId) {
+		//Nothing at or after this message can be acknowledged any more.  It is not complete so the watermark is not past it.
+		holdPosition = Math.min(holdPosition, position(messageId));
+		heldCount++;
+
+		notifyAll();
+	}
+
+	private Integer position(String messageId) {
+		Integer position = positions.get(messageId);
+
+		if(position == null) {
+			throw new IllegalArgumentException("Message " + messageId + " is not part of this batch.");
+		}
+
+		return position;
+	}
+
+	/**
+	 * Sends an acknowledgement through the watermark if it has moved and none is already in flight.
+	 */
+	private synchronized void flush() {
+		if(finished || inFlight != null || watermark <= acknowledged) {
+			return;
+		}
+
+		final int through = watermark;
+
+		inFlight = consumer.acknowledgeMessageAsync(messageIds[through - 1], true, new CompletableFuture<Void>());
+		inFlight.whenComplete((ackResult, e) -> acknowledged(through, ackResult));
+	}
+
+	private synchronized void acknowledged(int through, AcknowledgeResult ackResult) {
+		inFlight = null;
+
+		if(ackResult != null && ackResult.isSuccess()) {
+			acknowledged = Math.max(acknowledged, through);
+		}
+		else {
+			AMQClient.logger.debug("Unable to acknowledge through message {}, will retry on the next flush.", messageIds[through - 1]);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Stops the periodic acknowledgements, acknowledges through the watermark and releases the consumer.  Messages past
+	 * the watermark, those not completed and those held by a failure, are delivered again.
+	 *
+	 * @return the result of the final acknowledgement, null if there was nothing left to acknowledge
+	 * @throws InterruptedException
+	 */
+	public AcknowledgeResult finish() throws InterruptedException {
+		int through;
+
+		synchronized(this) {
+			if(finished) {
+				return null;
+			}
+
+			finished = true;
+			flushTask.cancel(false);
+
+			while(inFlight != null) {
+				wait();
+			}
+
+			through = watermark > acknowledged ? watermark : 0;
+		}
+
+		AcknowledgeResult ackResult = null;
+
+		if(through > 0) {
+			ackResult = consumer.acknowledgeMessage(messageIds[through - 1], true);
+
+			if(ackResult.isSuccess()) {
+				synchronized(this) {
+					acknowledged = through;
+				}
+			}
+		}
+
+		consumer.batchSettled();
+
+		return ackResult;
+	}
+
+	@Override
+	public void close() {
+		try {
+			finish();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return number of messages from the start of the batch that are all complete
+	 */
+	public synchronized int getWatermark() {
+		return watermark;
+	}
+
+	/**
+	 * @return number of messages from the start of the batch the server has confirmed as acknowledged
+	 */
+	public synchronized int getAcknowledgedCount() {
+		return acknowledged;
+	}
+
+	public synchronized int getCompletedCount() {
+		return complete.cardinality();
+	}
+
+	public synchronized int getDeadLetterCount() {
+		return deadLetterCount;
+	}
+
+	public int getMessageCount() {
+		return messageIds.length;
+	}
+
+	/**
+	 * Waits until every message has completed or failed, or the timeout expires.  Useful before {@link #finish()}.
+	 *
+	 * @return true if every message completed, false on timeout or if any message is held for redelivery
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		synchronized(this) {
+			while(complete.cardinality() + heldCount < messageIds.length) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+				if(remaining <= 0) {
+					return false;
+				}
+
+				wait(remaining);
+			}
+
+			return heldCount == 0;
+		}
+	}
+}
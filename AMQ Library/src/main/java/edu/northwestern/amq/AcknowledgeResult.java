@@ -5,6 +5,7 @@ public class AcknowledgeResult implements EventHubResult {
 
 	private boolean success;
 	private int statusCode;
+	private int attempts;
 
 	public boolean isSuccess() {
 		return success;
@@ -21,4 +22,15 @@ public class AcknowledgeResult implements EventHubResult {
 	public void setStatusCode(int statusCode) {
 		this.statusCode = statusCode;
 	}
+
+	/**
+	 * @return number of requests made, including retries
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,271 @@
+package edu.northwestern.amq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects messages written to a topic and flushes them from a background thread once the batch reaches the maximum
+ * message count, the maximum number of bytes, or has been waiting for the linger time, whichever comes first.
+ *
+ * The EventHub gateway accepts a single message per write, so a flush sends every message in the batch concurrently over
+ * the shared non-blocking HTTP engine (bounded by the maximum in-flight setting) rather than one at a time from the caller.
+ * Each caller still receives its own {@link WriteResult} with the message id assigned by the gateway.
+ *
+ * Messages wait in memory until they are flushed, so their number is bounded.  A write made while the maximum number of
+ * messages is pending, because the gateway is slower than the producer, is rejected with
+ * {@link RateLimiter#LIMITED_STATUS_CODE} instead of growing the heap.
+ *
+ * Instances are created via {@link AMQPublisher.PublisherBuilder#buildBatching()}.
+ *
+ */
+public class BatchingPublisher {
+
+	protected static final int DEFAULT_MAX_BATCH_MESSAGES = 100;
+	protected static final long DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+	protected static final long DEFAULT_LINGER_MILLIS = 50;
+	protected static final int DEFAULT_MAX_IN_FLIGHT = 100;
+	protected static final int DEFAULT_MAX_PENDING_MESSAGES = 10000;
+
+	private final AMQPublisher publisher;
+	private final int maxBatchMessages;
+	private final long maxBatchBytes;
+	private final long lingerMillis;
+	private final int maxPendingMessages;
+	private final Semaphore inFlight;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition batchReady = lock.newCondition();
+	private final Thread flushThread;
+
+	private List<PendingMessage> pending = new ArrayList<PendingMessage>();
+	private long pendingBytes = 0;
+	private long firstPendingNanos = 0;
+	private boolean flushRequested = false;
+	private volatile boolean closed = false;
+
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong messageCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong sizeTriggeredCount = new AtomicLong();
+	private final AtomicLong lingerTriggeredCount = new AtomicLong();
+	private final AtomicLong completedBatchCount = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private static class PendingMessage {
+		private final byte[] message;
+		private final CompletableFuture<WriteResult> future = new CompletableFuture<WriteResult>();
+
+		private PendingMessage(byte[] message) {
+			this.message = message;
+		}
+	}
+
+	protected BatchingPublisher(AMQPublisher publisher, int maxBatchMessages, long maxBatchBytes, long lingerMillis, int maxInFlight, int maxPendingMessages) {
+		this.publisher = publisher;
+		this.maxBatchMessages = maxBatchMessages;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerMillis = lingerMillis;
+		this.maxPendingMessages = maxPendingMessages;
+		this.inFlight = new Semaphore(maxInFlight);
+
+		flushThread = AMQClient.daemonThreadFactory("amq-batch-" + publisher.topic).newThread(this::flushLoop);
+		flushThread.start();
+	}
+
+	/**
+	 * Adds the message to the current batch.  The returned future completes once the batch containing this message
+	 * has been flushed and the gateway has responded for this message, or straight away with
+	 * {@link RateLimiter#LIMITED_STATUS_CODE} if the maximum number of messages is already pending.
+	 *
+	 * @param message
+	 * @return {@link CompletableFuture} that completes with the {@link WriteResult} for this message
+	 * @throws IllegalStateException if the message is null or blank, or the publisher has been closed
+	 */
+	public CompletableFuture<WriteResult> writeToTopic(String message) throws IllegalStateException {
+		if(AMQClient.isBlank(message)) {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+
+		//Encoded once here, so the batch is sized in the bytes that are sent
+		PendingMessage pendingMessage = new PendingMessage(message.getBytes(publisher.getCharset()));
+
+		lock.lock();
+		try {
+			if(closed) {
+				throw new IllegalStateException("Publisher has been closed.");
+			}
+
+			if(pending.size() >= maxPendingMessages) {
+				rejectedCount.incrementAndGet();
+				pendingMessage.future.complete(AMQClient.WRITE_HANDLER.giveUp(RateLimiter.LIMITED_STATUS_CODE, 0));
+
+				return pendingMessage.future;
+			}
+
+			if(pending.isEmpty()) {
+				firstPendingNanos = System.nanoTime();
+			}
+
+			pending.add(pendingMessage);
+			pendingBytes += pendingMessage.message.length;
+
+			if(pending.size() == 1 || isFull()) {
+				batchReady.signal();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+
+		return pendingMessage.future;
+	}
+
+	/**
+	 * Flushes the current batch without waiting for the linger time.  The method returns once the batch has been
+	 * handed to the background thread, use the futures returned by {@link #writeToTopic(String)} to wait for the results.
+	 */
+	public void flush() {
+		lock.lock();
+		try {
+			flushRequested = true;
+			batchReady.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes anything that is pending and stops the background thread.  Messages written after this call are rejected.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		lock.lock();
+		try {
+			closed = true;
+			batchReady.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		flushThread.join();
+	}
+
+	public BatchingStats getStats() {
+		return new BatchingStats(batchCount.get(), messageCount.get(), byteCount.get(), maxBatchMessages, sizeTriggeredCount.get(),
+				lingerTriggeredCount.get(), completedBatchCount.get(), totalFlushNanos.get(), maxFlushNanos.get(), rejectedCount.get());
+	}
+
+	private boolean isFull() {
+		return pending.size() >= maxBatchMessages || pendingBytes >= maxBatchBytes;
+	}
+
+	private void flushLoop() {
+		while(true) {
+			List<PendingMessage> batch;
+			long batchBytes;
+
+			lock.lock();
+			try {
+				//Wait until the batch is full, it has lingered long enough, or somebody asked for it
+				while(!closed && !flushRequested && !isFull()) {
+					if(pending.isEmpty()) {
+						batchReady.await();
+					}
+					else {
+						long remaining = TimeUnit.MILLISECONDS.toNanos(lingerMillis) - (System.nanoTime() - firstPendingNanos);
+
+						if(remaining <= 0) {
+							break;
+						}
+						batchReady.awaitNanos(remaining);
+					}
+				}
+
+				if(pending.isEmpty()) {
+					flushRequested = false;
+
+					if(closed) {
+						return;
+					}
+					continue;
+				}
+
+				if(isFull()) {
+					sizeTriggeredCount.incrementAndGet();
+				}
+				else if(!flushRequested && !closed) {
+					lingerTriggeredCount.incrementAndGet();
+				}
+
+				batch = pending;
+				batchBytes = pendingBytes;
+				pending = new ArrayList<PendingMessage>();
+				pendingBytes = 0;
+				flushRequested = false;
+			}
+			catch(InterruptedException e) {
+				AMQClient.logger.debug("Batch flush thread interrupted, quiting.");
+				Thread.currentThread().interrupt();
+				return;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			send(batch, batchBytes);
+		}
+	}
+
+	private void send(List<PendingMessage> batch, long batchBytes) {
+		final long start = System.nanoTime();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[batch.size()];
+
+		batchCount.incrementAndGet();
+		messageCount.addAndGet(batch.size());
+		byteCount.addAndGet(batchBytes);
+
+		for(int i = 0; i < batch.size(); i++) {
+			final PendingMessage pendingMessage = batch.get(i);
+
+			//Bound the number of outstanding requests so a large burst does not starve the connection pool
+			inFlight.acquireUninterruptibly();
+
+			try {
+				futures[i] = publisher.writeToTopicAsync(pendingMessage.message).whenComplete((writeResult, e) -> {
+					inFlight.release();
+
+					if(e != null) {
+						pendingMessage.future.completeExceptionally(e);
+					}
+					else {
+						pendingMessage.future.complete(writeResult);
+					}
+				});
+			}
+			catch(RuntimeException e) {
+				inFlight.release();
+				pendingMessage.future.completeExceptionally(e);
+				futures[i] = pendingMessage.future;
+			}
+		}
+
+		CompletableFuture.allOf(futures).whenComplete((ignored, e) -> {
+			long elapsed = System.nanoTime() - start;
+
+			completedBatchCount.incrementAndGet();
+			totalFlushNanos.addAndGet(elapsed);
+			maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+		});
+	}
+}
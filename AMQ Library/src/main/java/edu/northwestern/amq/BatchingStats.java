@@ -0,0 +1,90 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time view of the batches flushed by a {@link BatchingPublisher}.
+ *
+ */
+public class BatchingStats {
+
+	private final long batchCount;
+	private final long messageCount;
+	private final long byteCount;
+	private final int maxBatchMessages;
+	private final long sizeTriggeredCount;
+	private final long lingerTriggeredCount;
+	private final long completedBatchCount;
+	private final long totalFlushNanos;
+	private final long maxFlushNanos;
+	private final long rejectedCount;
+
+	protected BatchingStats(long batchCount, long messageCount, long byteCount, int maxBatchMessages, long sizeTriggeredCount,
+			long lingerTriggeredCount, long completedBatchCount, long totalFlushNanos, long maxFlushNanos, long rejectedCount) {
+		this.batchCount = batchCount;
+		this.messageCount = messageCount;
+		this.byteCount = byteCount;
+		this.maxBatchMessages = maxBatchMessages;
+		this.sizeTriggeredCount = sizeTriggeredCount;
+		this.lingerTriggeredCount = lingerTriggeredCount;
+		this.completedBatchCount = completedBatchCount;
+		this.totalFlushNanos = totalFlushNanos;
+		this.maxFlushNanos = maxFlushNanos;
+		this.rejectedCount = rejectedCount;
+	}
+
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * @return number of batches flushed because they reached the maximum message count or bytes
+	 */
+	public long getSizeTriggeredCount() {
+		return sizeTriggeredCount;
+	}
+
+	/**
+	 * @return number of batches flushed because the linger time expired
+	 */
+	public long getLingerTriggeredCount() {
+		return lingerTriggeredCount;
+	}
+
+	/**
+	 * @return number of writes rejected because the maximum number of messages was pending
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	public double getAverageBatchSize() {
+		return batchCount == 0 ? 0 : (double) messageCount / batchCount;
+	}
+
+	/**
+	 * @return average batch size as a fraction of the maximum number of messages per batch
+	 */
+	public double getAverageBatchFill() {
+		return getAverageBatchSize() / maxBatchMessages;
+	}
+
+	/**
+	 * @return average time between a batch being flushed and the last of its messages completing, in milliseconds
+	 */
+	public double getAverageFlushLatencyMillis() {
+		return completedBatchCount == 0 ? 0 : (double) totalFlushNanos / completedBatchCount / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public double getMaxFlushLatencyMillis() {
+		return (double) maxFlushNanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
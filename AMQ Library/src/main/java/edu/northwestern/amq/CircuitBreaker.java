@@ -0,0 +1,350 @@
+package edu.northwestern.amq;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops clients from hammering a degraded gateway.
+ *
+ * The breaker records the outcome of the last windowSize calls.  Once at least minimumCalls have been recorded and
+ * either the share of failed calls (I/O errors and 5xx responses) or the share of calls slower than the slow call
+ * threshold reaches its limit, the breaker opens.  While open every call fails fast without a request being sent, with
+ * {@link #OPEN_STATUS_CODE} as its status.  After the open duration a limited number of probe calls are let through
+ * (half open); if they all succeed the breaker closes again, a single failure opens it again.
+ *
+ * One breaker is shared by every client of an {@link EventHubClientFactory} using the same environment and endpoint,
+ * see {@link EventHubClientFactory.FactoryBuilder#setCircuitBreaker(CircuitBreaker)}.  {@link #getState()} is a single
+ * volatile read, so it is cheap enough to check before doing expensive work.
+ *
+ * Instances are created via the {@link BreakerBuilder}.
+ *
+ */
+public class CircuitBreaker {
+
+	/**
+	 * Status code of results for calls rejected because the breaker is open.  Not an HTTP status.
+	 */
+	public static final int OPEN_STATUS_CODE = -1;
+
+	protected static final int DEFAULT_WINDOW_SIZE = 50;
+	protected static final int DEFAULT_MINIMUM_CALLS = 20;
+	protected static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+	protected static final long DEFAULT_SLOW_CALL_MILLIS = 10 * 1000;
+	protected static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 0.8;
+	protected static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+	protected static final int DEFAULT_HALF_OPEN_PROBES = 3;
+
+	public enum State {
+		/**
+		 * Calls go through and their outcomes are recorded.
+		 */
+		CLOSED,
+
+		/**
+		 * Calls fail fast.
+		 */
+		OPEN,
+
+		/**
+		 * A limited number of probe calls go through to test whether the gateway has recovered.
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * Notified whenever a breaker changes state.  Called on the thread that recorded the outcome causing the change.
+	 */
+	public interface StateListener {
+		void onStateChange(CircuitBreaker circuitBreaker, State from, State to);
+	}
+
+	private String name = "default";
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private int minimumCalls = DEFAULT_MINIMUM_CALLS;
+	private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+	private long slowCallNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_CALL_MILLIS);
+	private double slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+	private long openNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_MILLIS);
+	private int halfOpenProbes = DEFAULT_HALF_OPEN_PROBES;
+	private final List<StateListener> listeners = new CopyOnWriteArrayList<StateListener>();
+
+	private volatile State state = State.CLOSED;
+	private volatile long openUntilNanos = 0;
+
+	//Ring buffer of outcomes, guarded by this
+	private boolean[] failed;
+	private boolean[] slow;
+	private int recorded = 0;
+	private int next = 0;
+	private int failedCount = 0;
+	private int slowCount = 0;
+	private int probesPermitted = 0;
+	private int probesSucceeded = 0;
+	private long rejectedCount = 0;
+
+	public static class BreakerBuilder {
+
+		private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+		public static BreakerBuilder create() {
+			return new BreakerBuilder();
+		}
+
+		public CircuitBreaker build() {
+			//Verify the object was completely instantiated.
+			if(circuitBreaker.windowSize <= 0 || circuitBreaker.minimumCalls <= 0 || circuitBreaker.minimumCalls > circuitBreaker.windowSize) {
+				throw new IllegalArgumentException("Window size and minimum calls must be greater than zero and minimum calls cannot exceed the window size.");
+			}
+
+			if(circuitBreaker.failureRateThreshold <= 0 || circuitBreaker.failureRateThreshold > 1
+					|| circuitBreaker.slowCallRateThreshold <= 0 || circuitBreaker.slowCallRateThreshold > 1) {
+				throw new IllegalArgumentException("Rate thresholds must be greater than zero and at most one.");
+			}
+
+			if(circuitBreaker.halfOpenProbes <= 0) {
+				throw new IllegalArgumentException("Half open probes must be greater than zero.");
+			}
+
+			circuitBreaker.reset();
+
+			return circuitBreaker;
+		}
+
+		/**
+		 * Number of most recent calls the rates are calculated over.
+		 */
+		public BreakerBuilder setWindowSize(int windowSize) {
+			circuitBreaker.windowSize = windowSize;
+			return this;
+		}
+
+		/**
+		 * Calls that must be recorded before the breaker can open.
+		 */
+		public BreakerBuilder setMinimumCalls(int minimumCalls) {
+			circuitBreaker.minimumCalls = minimumCalls;
+			return this;
+		}
+
+		public BreakerBuilder setFailureRateThreshold(double failureRateThreshold) {
+			circuitBreaker.failureRateThreshold = failureRateThreshold;
+			return this;
+		}
+
+		/**
+		 * Calls taking longer than this count as slow.
+		 */
+		public BreakerBuilder setSlowCallMillis(long slowCallMillis) {
+			circuitBreaker.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+			return this;
+		}
+
+		public BreakerBuilder setSlowCallRateThreshold(double slowCallRateThreshold) {
+			circuitBreaker.slowCallRateThreshold = slowCallRateThreshold;
+			return this;
+		}
+
+		/**
+		 * How long the breaker stays open before probing.
+		 */
+		public BreakerBuilder setOpenMillis(long openMillis) {
+			circuitBreaker.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+			return this;
+		}
+
+		/**
+		 * Number of successful probe calls needed to close the breaker again.
+		 */
+		public BreakerBuilder setHalfOpenProbes(int halfOpenProbes) {
+			circuitBreaker.halfOpenProbes = halfOpenProbes;
+			return this;
+		}
+
+		public BreakerBuilder addStateListener(StateListener listener) {
+			circuitBreaker.listeners.add(listener);
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link BreakerBuilder}
+	 */
+	private CircuitBreaker() {
+
+	}
+
+	/**
+	 * @return a closed breaker with the same settings and listeners
+	 */
+	public CircuitBreaker copy(String name) {
+		CircuitBreaker copy = new CircuitBreaker();
+		copy.name = name;
+		copy.windowSize = windowSize;
+		copy.minimumCalls = minimumCalls;
+		copy.failureRateThreshold = failureRateThreshold;
+		copy.slowCallNanos = slowCallNanos;
+		copy.slowCallRateThreshold = slowCallRateThreshold;
+		copy.openNanos = openNanos;
+		copy.halfOpenProbes = halfOpenProbes;
+		copy.listeners.addAll(listeners);
+		copy.reset();
+
+		return copy;
+	}
+
+	private synchronized void reset() {
+		failed = new boolean[windowSize];
+		slow = new boolean[windowSize];
+		recorded = 0;
+		next = 0;
+		failedCount = 0;
+		slowCount = 0;
+	}
+
+	/**
+	 * @return true if a call may be sent now.  A true result while half open uses up one of the probes, so the call
+	 * must be followed by {@link #onSuccess(long)} or {@link #onFailure(long)}.
+	 */
+	public boolean tryAcquirePermission() {
+		//Fast path, no locking while the gateway is healthy
+		if(state == State.CLOSED) {
+			return true;
+		}
+
+		State from = null;
+		boolean permitted;
+
+		synchronized(this) {
+			if(state == State.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+				from = transition(State.HALF_OPEN);
+			}
+
+			permitted = state == State.CLOSED || (state == State.HALF_OPEN && probesPermitted < halfOpenProbes);
+
+			if(permitted && state == State.HALF_OPEN) {
+				probesPermitted++;
+			}
+			else if(!permitted) {
+				rejectedCount++;
+			}
+		}
+
+		fire(from, State.HALF_OPEN);
+
+		return permitted;
+	}
+
+	public void onSuccess(long durationNanos) {
+		record(false, durationNanos);
+	}
+
+	public void onFailure(long durationNanos) {
+		record(true, durationNanos);
+	}
+
+	private void record(boolean failure, long durationNanos) {
+		State from = null;
+		State to = null;
+
+		synchronized(this) {
+			if(state == State.HALF_OPEN) {
+				if(failure) {
+					to = State.OPEN;
+				}
+				else if(++probesSucceeded >= halfOpenProbes) {
+					to = State.CLOSED;
+				}
+			}
+			else if(state == State.CLOSED) {
+				boolean isSlow = durationNanos > slowCallNanos;
+
+				if(recorded == windowSize) {
+					//Drop the oldest outcome
+					failedCount -= failed[next] ? 1 : 0;
+					slowCount -= slow[next] ? 1 : 0;
+				}
+				else {
+					recorded++;
+				}
+
+				failed[next] = failure;
+				slow[next] = isSlow;
+				failedCount += failure ? 1 : 0;
+				slowCount += isSlow ? 1 : 0;
+				next = (next + 1) % windowSize;
+
+				if(recorded >= minimumCalls && (failedCount >= failureRateThreshold * recorded || slowCount >= slowCallRateThreshold * recorded)) {
+					to = State.OPEN;
+				}
+			}
+
+			if(to != null) {
+				from = transition(to);
+			}
+		}
+
+		fire(from, to);
+	}
+
+	/**
+	 * @return the previous state
+	 */
+	private State transition(State to) {
+		State from = state;
+
+		if(to == State.OPEN) {
+			openUntilNanos = System.nanoTime() + openNanos;
+		}
+		else {
+			reset();
+		}
+
+		probesPermitted = 0;
+		probesSucceeded = 0;
+		state = to;
+
+		AMQClient.logger.debug("Circuit breaker {} changed from {} to {}", name, from, to);
+
+		return from;
+	}
+
+	private void fire(State from, State to) {
+		if(from != null && from != to) {
+			for(StateListener listener : listeners) {
+				try {
+					listener.onStateChange(this, from, to);
+				}
+				catch(RuntimeException e) {
+					AMQClient.logger.debug("Circuit breaker listener failed: {}", e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	public void addStateListener(StateListener listener) {
+		listeners.add(listener);
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return true while calls are being rejected.  Unlike {@link #tryAcquirePermission()} this never changes state.
+	 */
+	public boolean isOpen() {
+		return state == State.OPEN && System.nanoTime() - openUntilNanos < 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of calls rejected without being sent
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+}
@@ -0,0 +1,282 @@
+package edu.northwestern.amq;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Latency, attempts, outcomes and payload sizes of every call made by the clients of an {@link EventHubClientFactory},
+ * per operation.  Recording only adds to striped counters and bucket counts, so it takes no lock and calls on different
+ * threads do not contend.  {@link #getStats(Operation)} takes a snapshot, {@link MicrometerMetricsBinder} publishes the
+ * same numbers to Micrometer.
+ *
+ * A call is counted once however many attempts it took.  Its latency runs from the call until the result is known,
+ * waiting for rate limit permits and between retries included.  Consumers also record the lag of the messages they
+ * receive per queue, see {@link #getLagStats()}.
+ *
+ */
+public class ClientMetrics {
+
+	public enum Operation {
+		WRITE, GET, ACK, POISON
+	}
+
+	public enum Outcome {
+		/** 200-level response */
+		SUCCESSFUL,
+		/** 400-level response */
+		CLIENT_ERROR,
+		/** 500-level response, retries were exhausted */
+		SERVER_ERROR,
+		/** Never sent because the circuit breaker was open or a rate limiter rejected it */
+		REJECTED,
+		/** No response was received, the last attempt failed with an I/O error */
+		NO_RESPONSE,
+		/** 100 or 300-level response */
+		OTHER;
+
+		public static Outcome of(int statusCode) {
+			if(statusCode < 0) {
+				return REJECTED;
+			}
+
+			switch(statusCode / 100) {
+			case 0:
+				return NO_RESPONSE;
+			case 2:
+				return SUCCESSFUL;
+			case 4:
+				return CLIENT_ERROR;
+			case 5:
+				return SERVER_ERROR;
+			default:
+				return OTHER;
+			}
+		}
+	}
+
+	/**
+	 * Live counters of one operation.
+	 */
+	protected static class Recorder {
+
+		private final LongAdder callCount = new LongAdder();
+		private final LongAdder inFlight = new LongAdder();
+		private final LongAdder retriedCallCount = new LongAdder();
+		private final LongAdder[] outcomeCounts = new LongAdder[Outcome.values().length];
+		private final Histogram latencyNanos = new Histogram();
+		private final Histogram attempts = new Histogram();
+		private final Histogram payloadBytes = new Histogram();
+		private final Histogram messagesPerFetch = new Histogram();
+		private final LongAdder emptyFetchCount = new LongAdder();
+
+		protected Recorder() {
+			for(int i = 0; i < outcomeCounts.length; i++) {
+				outcomeCounts[i] = new LongAdder();
+			}
+		}
+
+		protected long getCallCount() {
+			return callCount.sum();
+		}
+
+		protected long getInFlight() {
+			return inFlight.sum();
+		}
+
+		protected long getRetriedCallCount() {
+			return retriedCallCount.sum();
+		}
+
+		protected long getOutcomeCount(Outcome outcome) {
+			return outcomeCounts[outcome.ordinal()].sum();
+		}
+
+		protected Histogram getLatencyNanos() {
+			return latencyNanos;
+		}
+
+		protected Histogram getAttempts() {
+			return attempts;
+		}
+
+		protected Histogram getPayloadBytes() {
+			return payloadBytes;
+		}
+
+		protected Histogram getMessagesPerFetch() {
+			return messagesPerFetch;
+		}
+
+		protected long getEmptyFetchCount() {
+			return emptyFetchCount.sum();
+		}
+	}
+
+	private final Map<Operation, Recorder> recorders = new EnumMap<Operation, Recorder>(Operation.class);
+	private final ConcurrentMap<String, ConsumerLag> consumerLags = new ConcurrentHashMap<String, ConsumerLag>();
+	private final List<Consumer<ConsumerLag>> lagListeners = new CopyOnWriteArrayList<Consumer<ConsumerLag>>();
+
+	public ClientMetrics() {
+		for(Operation operation : Operation.values()) {
+			recorders.put(operation, new Recorder());
+		}
+	}
+
+	protected Recorder getRecorder(Operation operation) {
+		return recorders.get(operation);
+	}
+
+	/**
+	 * Counts the call as in flight and records the size of its body, when it has one of a known size.
+	 */
+	protected void started(Operation operation, HttpUriRequest request) {
+		Recorder recorder = recorders.get(operation);
+		recorder.inFlight.increment();
+
+		if(request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+
+			if(entity instanceof AMQClient.CompressedEntity) {
+				recorder.payloadBytes.record(((AMQClient.CompressedEntity) entity).getUncompressedLength());
+			}
+			else if(entity != null && entity.getContentLength() >= 0) {
+				recorder.payloadBytes.record(entity.getContentLength());
+			}
+		}
+	}
+
+	/**
+	 * Records the size of the body of a get response, when the server sent its length.
+	 */
+	protected void received(Operation operation, HttpResponse response) {
+		if(operation == Operation.GET && response.getEntity() != null && response.getEntity().getContentLength() >= 0) {
+			recorders.get(operation).payloadBytes.record(response.getEntity().getContentLength());
+		}
+	}
+
+	/**
+	 * @param statusCode status of the last response, zero if none was received, negative if the call was rejected
+	 * @param attempts number of requests sent, zero if the call was rejected before the first one
+	 */
+	protected void completed(Operation operation, long startNanos, int statusCode, int attempts) {
+		Recorder recorder = recorders.get(operation);
+		recorder.inFlight.decrement();
+		recorder.callCount.increment();
+		recorder.outcomeCounts[Outcome.of(statusCode).ordinal()].increment();
+		recorder.latencyNanos.record(System.nanoTime() - startNanos);
+		recorder.attempts.record(attempts);
+
+		if(attempts > 1) {
+			recorder.retriedCallCount.increment();
+		}
+	}
+
+	/**
+	 * The call was cancelled or interrupted, it no longer counts as in flight and has no outcome.
+	 */
+	protected void cancelled(Operation operation) {
+		recorders.get(operation).inFlight.decrement();
+	}
+
+	/**
+	 * @param messageCount number of messages returned by one get, zero when the queue was empty
+	 */
+	protected void fetched(int messageCount) {
+		Recorder recorder = recorders.get(Operation.GET);
+		recorder.messagesPerFetch.record(messageCount);
+
+		if(messageCount == 0) {
+			recorder.emptyFetchCount.increment();
+		}
+	}
+
+	/**
+	 * @return the lag shared by every consumer of the queue in the environment
+	 */
+	protected ConsumerLag getConsumerLag(AMQClient.Environment env, String queue) {
+		ConsumerLag consumerLag = consumerLags.get(env + "/" + queue);
+
+		if(consumerLag == null) {
+			ConsumerLag created = new ConsumerLag(env + "/" + queue);
+			consumerLag = consumerLags.putIfAbsent(created.getName(), created);
+
+			if(consumerLag == null) {
+				consumerLag = created;
+
+				for(Consumer<ConsumerLag> listener : lagListeners) {
+					listener.accept(created);
+				}
+			}
+		}
+
+		return consumerLag;
+	}
+
+	/**
+	 * Calls the listener with the lag of every queue consumed so far and of every queue consumed later, so meters can be
+	 * added as queues appear.
+	 */
+	protected void addLagListener(Consumer<ConsumerLag> listener) {
+		lagListeners.add(listener);
+
+		for(ConsumerLag consumerLag : consumerLags.values()) {
+			listener.accept(consumerLag);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the lag of every queue consumed, by environment and queue as in "dev/my.queue"
+	 */
+	public Map<String, LagStats> getLagStats() {
+		Map<String, LagStats> stats = new TreeMap<String, LagStats>();
+
+		for(ConsumerLag consumerLag : consumerLags.values()) {
+			stats.put(consumerLag.getName(), consumerLag.getStats());
+		}
+
+		return stats;
+	}
+
+	/**
+	 * @return a snapshot of the operation
+	 */
+	public OperationStats getStats(Operation operation) {
+		Recorder recorder = recorders.get(operation);
+		long[] outcomeCounts = new long[Outcome.values().length];
+
+		for(Outcome outcome : Outcome.values()) {
+			outcomeCounts[outcome.ordinal()] = recorder.getOutcomeCount(outcome);
+		}
+
+		return new OperationStats(operation, recorder.getCallCount(), recorder.getInFlight(), recorder.getRetriedCallCount(), outcomeCounts,
+				recorder.latencyNanos.getValuesAtPercentiles(OperationStats.PERCENTILES), recorder.latencyNanos.getMean(), recorder.latencyNanos.getMax(),
+				recorder.attempts.getSum(), recorder.attempts.getMax(), recorder.payloadBytes.getCount(), recorder.payloadBytes.getSum(),
+				recorder.payloadBytes.getMax(), recorder.messagesPerFetch.getCount(), recorder.messagesPerFetch.getSum(), recorder.messagesPerFetch.getMax(),
+				recorder.getEmptyFetchCount());
+	}
+
+	/**
+	 * @return a snapshot of every operation
+	 */
+	public Map<Operation, OperationStats> getStats() {
+		Map<Operation, OperationStats> stats = new EnumMap<Operation, OperationStats>(Operation.class);
+
+		for(Operation operation : Operation.values()) {
+			stats.put(operation, getStats(operation));
+		}
+
+		return stats;
+	}
+}
@@ -0,0 +1,84 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end lag of the messages received from one queue, shared by every consumer of the queue in an
+ * {@link EventHubClientFactory}.  The lag of a message is the time from its delivery date until a consumer received
+ * it, so it covers the time spent waiting in the queue, which is what consumers should be scaled on.
+ *
+ * The current lag is the largest lag of the latest get, zero once a get finds the queue empty.  Recording takes no
+ * lock.  Lag depends on the clocks of the gateway and the consumer agreeing; a message that appears to come from the
+ * future counts as no lag.
+ *
+ */
+public class ConsumerLag {
+
+	private final String name;
+	private final Histogram lagMillis = new Histogram();
+	private final LongAdder messageCount = new LongAdder();
+	private final LongAdder redeliveredCount = new LongAdder();
+	private volatile long currentLagMillis = 0;
+
+	protected ConsumerLag(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return environment and queue, as in "dev/my.queue"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return lag of the message, negative if it has no delivery date
+	 */
+	protected long record(Message message, long nowMillis) {
+		messageCount.increment();
+
+		if(message.getDeliveryAttempts() > 1) {
+			redeliveredCount.increment();
+		}
+
+		long deliveryMillis = message.getDeliveryTimeMillis();
+
+		if(deliveryMillis < 0) {
+			return -1;
+		}
+
+		long lag = Math.max(0, nowMillis - deliveryMillis);
+		lagMillis.record(lag);
+
+		return lag;
+	}
+
+	/**
+	 * @param maxLagMillis largest lag of the messages of a get, zero if it returned none
+	 */
+	protected void fetched(long maxLagMillis) {
+		currentLagMillis = Math.max(0, maxLagMillis);
+	}
+
+	protected Histogram getLagMillis() {
+		return lagMillis;
+	}
+
+	protected long getMessageCount() {
+		return messageCount.sum();
+	}
+
+	protected long getRedeliveredCount() {
+		return redeliveredCount.sum();
+	}
+
+	protected long getCurrentLagMillis() {
+		return currentLagMillis;
+	}
+
+	public LagStats getStats() {
+		long[] percentiles = lagMillis.getValuesAtPercentiles(OperationStats.PERCENTILES);
+
+		return new LagStats(name, messageCount.sum(), redeliveredCount.sum(), currentLagMillis, percentiles, lagMillis.getMean(), lagMillis.getMax());
+	}
+}
@@ -0,0 +1,93 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time view of a {@link MessageListenerContainer} and the queue it consumes.
+ *
+ */
+public class ContainerStats {
+
+	private final String queue;
+	private final long pollCount;
+	private final long emptyPollCount;
+	private final long processedCount;
+	private final long failedCount;
+	private final long deadLetterCount;
+	private final long droppedCount;
+	private final long rollbackCount;
+	private final long elapsedNanos;
+
+	protected ContainerStats(String queue, long pollCount, long emptyPollCount, long processedCount, long failedCount, long deadLetterCount,
+			long droppedCount, long rollbackCount, long elapsedNanos) {
+		this.queue = queue;
+		this.pollCount = pollCount;
+		this.emptyPollCount = emptyPollCount;
+		this.processedCount = processedCount;
+		this.failedCount = failedCount;
+		this.deadLetterCount = deadLetterCount;
+		this.droppedCount = droppedCount;
+		this.rollbackCount = rollbackCount;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public String getQueue() {
+		return queue;
+	}
+
+	public long getPollCount() {
+		return pollCount;
+	}
+
+	public long getEmptyPollCount() {
+		return emptyPollCount;
+	}
+
+	/**
+	 * @return number of polls that returned a batch
+	 */
+	public long getBatchCount() {
+		return pollCount - emptyPollCount;
+	}
+
+	/**
+	 * @return number of messages the listener processed without throwing
+	 */
+	public long getProcessedCount() {
+		return processedCount;
+	}
+
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	public long getDeadLetterCount() {
+		return deadLetterCount;
+	}
+
+	/**
+	 * @return number of failed messages acknowledged without being processed, by {@link MessageListenerContainer.ErrorPolicy#ACKNOWLEDGE}
+	 * or because the consumer has autoAcknowledge
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public long getRollbackCount() {
+		return rollbackCount;
+	}
+
+	/**
+	 * @return polls per second across all poll threads since the container was started
+	 */
+	public double getPollRate() {
+		return elapsedNanos == 0 ? 0 : pollCount / ((double) elapsedNanos / TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * @return successfully processed messages per second since the container was started
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : processedCount / ((double) elapsedNanos / TimeUnit.SECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,112 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One candidate gateway of an {@link EndpointResolver}, with an exponentially weighted moving average of the latency
+ * and error rate of the attempts sent to it.
+ *
+ * An endpoint is ejected for a while when it refuses a connection, or when its error rate reaches the threshold.  Once
+ * the ejection ends its error rate starts over, so the next attempts decide whether it is back.
+ *
+ */
+public class Endpoint {
+
+	private final String baseURL;
+	private final double smoothing;
+	private final double errorRateThreshold;
+	private final long ejectNanos;
+
+	private volatile double latencyNanos = 0;
+	private volatile double errorRate = 0;
+	private volatile long ejectedUntilNanos = 0;
+	private volatile boolean ejected = false;
+	private long requestCount = 0;
+	private long failedCount = 0;
+	private long ejectionCount = 0;
+
+	/**
+	 * @param baseURL root of the gateway URLs, a trailing slash is added if it is missing
+	 * @param smoothing weight of the latest attempt in the averages, between 0 and 1
+	 * @param errorRateThreshold average error rate from which the endpoint is ejected
+	 * @param ejectMillis time an ejected endpoint is skipped
+	 */
+	protected Endpoint(String baseURL, double smoothing, double errorRateThreshold, long ejectMillis) {
+		this.baseURL = baseURL.endsWith("/") ? baseURL : baseURL + "/";
+		this.smoothing = smoothing;
+		this.errorRateThreshold = errorRateThreshold;
+		this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMillis);
+	}
+
+	public String getBaseURL() {
+		return baseURL;
+	}
+
+	/**
+	 * @return false while the endpoint is ejected
+	 */
+	public boolean isAvailable() {
+		//Fast path, no locking while the endpoint is healthy
+		if(!ejected) {
+			return true;
+		}
+
+		synchronized(this) {
+			if(ejected && System.nanoTime() - ejectedUntilNanos >= 0) {
+				ejected = false;
+				errorRate = 0;
+			}
+
+			return !ejected;
+		}
+	}
+
+	/**
+	 * @return the average latency, zero until the first attempt completed so new endpoints are tried first
+	 */
+	public double getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	protected long getEjectedUntilNanos() {
+		return ejectedUntilNanos;
+	}
+
+	public void onSuccess(long durationNanos) {
+		record(durationNanos, false, false);
+	}
+
+	/**
+	 * @param connectionFailure the endpoint could not be reached at all, it is ejected right away
+	 */
+	public void onFailure(long durationNanos, boolean connectionFailure) {
+		record(durationNanos, true, connectionFailure);
+	}
+
+	private synchronized void record(long durationNanos, boolean failure, boolean connectionFailure) {
+		requestCount++;
+
+		//A refused connection says nothing about the latency of the endpoint
+		if(!connectionFailure) {
+			latencyNanos = latencyNanos == 0 ? durationNanos : latencyNanos + smoothing * (durationNanos - latencyNanos);
+		}
+
+		errorRate += smoothing * ((failure ? 1 : 0) - errorRate);
+
+		if(failure) {
+			failedCount++;
+
+			if(!ejected && (connectionFailure || errorRate >= errorRateThreshold)) {
+				ejected = true;
+				ejectedUntilNanos = System.nanoTime() + ejectNanos;
+				ejectionCount++;
+
+				AMQClient.logger.debug("Ejecting endpoint {} for {} milliseconds.", baseURL, TimeUnit.NANOSECONDS.toMillis(ejectNanos));
+			}
+		}
+	}
+
+	public synchronized EndpointStats getStats() {
+		return new EndpointStats(baseURL, latencyNanos, errorRate, ejected && System.nanoTime() - ejectedUntilNanos < 0, requestCount, failedCount, ejectionCount);
+	}
+}
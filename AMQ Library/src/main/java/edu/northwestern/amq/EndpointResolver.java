@@ -0,0 +1,29 @@
+package edu.northwestern.amq;
+
+import java.util.List;
+
+/**
+ * Chooses the gateway each attempt of a request is sent to, out of several candidate base URLs per environment, for
+ * example regional proxies or a sidecar.  Clients record the outcome of every attempt on the {@link Endpoint} they
+ * were given, so the resolver can steer traffic away from slow or failing endpoints.
+ *
+ * A resolver is shared by every client of an {@link EventHubClientFactory}, so implementations must be thread safe.
+ * Clients given their own base URL do not use it.
+ *
+ * @see LatencyAwareEndpointResolver
+ */
+public interface EndpointResolver {
+
+	/**
+	 * @return the candidates for the environment, the first one is the primary.  Empty if the resolver does not serve
+	 * the environment, the client then talks to the Apigee gateway.
+	 */
+	List<Endpoint> getEndpoints(AMQClient.Environment env);
+
+	/**
+	 * Called before every attempt, including retries.
+	 *
+	 * @return one of the candidates of the environment, never null for an environment the resolver serves
+	 */
+	Endpoint select(AMQClient.Environment env);
+}
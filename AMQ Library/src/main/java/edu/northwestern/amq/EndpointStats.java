@@ -0,0 +1,69 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time view of an {@link Endpoint}.
+ *
+ */
+public class EndpointStats {
+
+	private final String baseURL;
+	private final double latencyNanos;
+	private final double errorRate;
+	private final boolean ejected;
+	private final long requestCount;
+	private final long failedCount;
+	private final long ejectionCount;
+
+	protected EndpointStats(String baseURL, double latencyNanos, double errorRate, boolean ejected, long requestCount, long failedCount,
+			long ejectionCount) {
+		this.baseURL = baseURL;
+		this.latencyNanos = latencyNanos;
+		this.errorRate = errorRate;
+		this.ejected = ejected;
+		this.requestCount = requestCount;
+		this.failedCount = failedCount;
+		this.ejectionCount = ejectionCount;
+	}
+
+	public String getBaseURL() {
+		return baseURL;
+	}
+
+	/**
+	 * @return moving average of the attempt latency in milliseconds
+	 */
+	public double getLatencyMillis() {
+		return latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * @return moving average of the attempts that failed, between 0 and 1
+	 */
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	public boolean isEjected() {
+		return ejected;
+	}
+
+	/**
+	 * @return number of attempts sent to the endpoint, retries included
+	 */
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * @return number of times the endpoint was taken out of rotation
+	 */
+	public long getEjectionCount() {
+		return ejectionCount;
+	}
+}
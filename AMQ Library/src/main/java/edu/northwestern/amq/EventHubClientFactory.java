@@ -0,0 +1,634 @@
+package edu.northwestern.amq;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Owns the resources that can and should be shared by every publisher and consumer in the application: one pooled
+ * HTTP client, one non-blocking HTTP client (started on first use), one Jackson {@link ObjectMapper} and one scheduler
+ * used for retries and background work.  It also counts the bytes every client sends and receives, see
+ * {@link #getTransferStats()}, and records the latency and outcome of their calls, see {@link #getMetrics()}.
+ *
+ * Builders use {@link #getDefault()} unless a factory is supplied with setClientFactory, so applications running many
+ * topic clients share a single connection pool.  Closing the factory releases the pools and threads; clients built from
+ * it cannot be used afterwards.
+ *
+ */
+public class EventHubClientFactory implements Closeable {
+
+	protected static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+	protected static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+	protected static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+	protected static final long DEFAULT_MAX_IDLE_MILLIS = 60 * 1000;
+	protected static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 6 * 1000;
+	protected static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 10 * 1000;
+	protected static final int DEFAULT_SCHEDULER_THREADS = 1;
+
+	private static EventHubClientFactory defaultFactory = null;
+
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+	private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+	private long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS;
+	private int schedulerThreads = DEFAULT_SCHEDULER_THREADS;
+	private RetryPolicy retryPolicy = null;
+	private CircuitBreaker circuitBreaker = null;
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private EndpointResolver endpointResolver = null;
+	private RateLimiter apiKeyRateLimiter = null;
+	private RateLimiter topicRateLimiter = null;
+	private final List<RequestInterceptor> interceptors = new ArrayList<RequestInterceptor>();
+	private final ConcurrentMap<String, RateLimiter> apiKeyRateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+	private final ConcurrentMap<String, RateLimiter> topicRateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+	private final ConcurrentMap<CompletableFuture<?>, ClientMetrics.Operation> pendingCalls = new ConcurrentHashMap<CompletableFuture<?>, ClientMetrics.Operation>();
+
+	private PoolingHttpClientConnectionManager connectionManager = null;
+	private CloseableHttpClient httpClient = null;
+	private PoolingNHttpClientConnectionManager asyncConnectionManager = null;
+	private volatile CloseableHttpAsyncClient asyncHttpClient = null;
+	private ObjectMapper objectMapper = null;
+	private ScheduledThreadPoolExecutor scheduler = null;
+	private volatile boolean closed = false;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong compressedRequestCount = new AtomicLong();
+	private final AtomicLong requestBytes = new AtomicLong();
+	private final AtomicLong requestWireBytes = new AtomicLong();
+	private final AtomicLong responseBytes = new AtomicLong();
+	private final AtomicLong responseWireBytes = new AtomicLong();
+	private final ClientMetrics metrics = new ClientMetrics();
+
+	public static class FactoryBuilder {
+
+		private EventHubClientFactory factory = new EventHubClientFactory();
+
+		public static FactoryBuilder create() {
+			return new FactoryBuilder();
+		}
+
+		public EventHubClientFactory build() {
+			//Verify the object was completely instantiated.
+			if(factory.maxConnectionsPerRoute <= 0 || factory.maxConnectionsTotal <= 0) {
+				throw new IllegalArgumentException("Connection limits must be greater than zero.");
+			}
+
+			if(factory.maxConnectionsPerRoute > factory.maxConnectionsTotal) {
+				throw new IllegalArgumentException("Maximum connections per route cannot exceed the maximum total connections.");
+			}
+
+			if(factory.schedulerThreads <= 0) {
+				throw new IllegalArgumentException("Scheduler threads must be greater than zero.");
+			}
+
+			factory.init();
+
+			return factory;
+		}
+
+		public FactoryBuilder setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+			factory.maxConnectionsPerRoute = maxConnectionsPerRoute;
+			return this;
+		}
+
+		public FactoryBuilder setMaxConnectionsTotal(int maxConnectionsTotal) {
+			factory.maxConnectionsTotal = maxConnectionsTotal;
+			return this;
+		}
+
+		/**
+		 * How long an idle connection is kept alive when the server does not send a Keep-Alive timeout.
+		 */
+		public FactoryBuilder setKeepAliveMillis(long keepAliveMillis) {
+			factory.keepAliveMillis = keepAliveMillis;
+			return this;
+		}
+
+		/**
+		 * Connections idle for longer than this are evicted from the pool by a background thread.
+		 */
+		public FactoryBuilder setMaxIdleMillis(long maxIdleMillis) {
+			factory.maxIdleMillis = maxIdleMillis;
+			return this;
+		}
+
+		public FactoryBuilder setConnectTimeout(int connectTimeout) {
+			factory.connectTimeout = connectTimeout;
+			return this;
+		}
+
+		public FactoryBuilder setConnectionRequestTimeout(int connectionRequestTimeout) {
+			factory.connectionRequestTimeout = connectionRequestTimeout;
+			return this;
+		}
+
+		public FactoryBuilder setSchedulerThreads(int schedulerThreads) {
+			factory.schedulerThreads = schedulerThreads;
+			return this;
+		}
+
+		/**
+		 * Retry policy used by clients that are not given their own.  Defaults to an
+		 * {@link ExponentialBackoffRetryPolicy} with a {@link RetryBudget} shared by every client of the factory.
+		 */
+		public FactoryBuilder setRetryPolicy(RetryPolicy retryPolicy) {
+			factory.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * Enables circuit breaking.  The settings and listeners of the given breaker are copied into one breaker per
+		 * environment and endpoint, shared by every client of the factory.  Disabled when not set.
+		 */
+		public FactoryBuilder setCircuitBreaker(CircuitBreaker circuitBreaker) {
+			factory.circuitBreaker = circuitBreaker;
+			return this;
+		}
+
+		/**
+		 * Spreads requests over several gateways per environment, shared by every client of the factory that was not
+		 * given its own base URL.  When not set, or for an environment the resolver has no endpoints for, clients talk to
+		 * the Apigee gateway.
+		 */
+		public FactoryBuilder setEndpointResolver(EndpointResolver endpointResolver) {
+			factory.endpointResolver = endpointResolver;
+			return this;
+		}
+
+		/**
+		 * Enables rate limiting per API key.  The settings of the given limiter are copied into one limiter per API key,
+		 * shared by every client of the factory using that key.  Disabled when not set.
+		 */
+		public FactoryBuilder setApiKeyRateLimiter(RateLimiter apiKeyRateLimiter) {
+			factory.apiKeyRateLimiter = apiKeyRateLimiter;
+			return this;
+		}
+
+		/**
+		 * Enables rate limiting per topic (or queue).  The settings of the given limiter are copied into one limiter per
+		 * environment and topic, shared by every client of the factory using that topic.  Disabled when not set.
+		 */
+		public FactoryBuilder setTopicRateLimiter(RateLimiter topicRateLimiter) {
+			factory.topicRateLimiter = topicRateLimiter;
+			return this;
+		}
+
+		/**
+		 * Adds an interceptor called around every attempt of every client of the factory, after the ones already added.
+		 */
+		public FactoryBuilder addInterceptor(RequestInterceptor interceptor) {
+			if(interceptor == null) {
+				throw new IllegalArgumentException("Interceptor is required.");
+			}
+
+			factory.interceptors.add(interceptor);
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link FactoryBuilder}
+	 */
+	private EventHubClientFactory() {
+
+	}
+
+	/**
+	 * @return the factory shared by every client that was not given one explicitly.  A new one is created if the
+	 * previous default was closed.
+	 */
+	public static synchronized EventHubClientFactory getDefault() {
+		if(defaultFactory == null || defaultFactory.closed) {
+			defaultFactory = FactoryBuilder.create().build();
+		}
+
+		return defaultFactory;
+	}
+
+	private void init() {
+		scheduler = new ScheduledThreadPoolExecutor(schedulerThreads, AMQClient.daemonThreadFactory("amq-scheduler"));
+		scheduler.setRemoveOnCancelPolicy(true);
+
+		if(retryPolicy == null) {
+			retryPolicy = ExponentialBackoffRetryPolicy.PolicyBuilder.create().setRetryBudget(new RetryBudget()).build();
+		}
+
+		objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		connectionManager.setMaxTotal(maxConnectionsTotal);
+
+		//Responses are decompressed transparently (the client sends Accept-Encoding: gzip,deflate).  The first interceptor
+		//sees the body as received and the last one sees it after decompression.  The client keeps one interceptor per
+		//class, so the two must be separate lambdas.
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(buildRequestConfig())
+				.setKeepAliveStrategy(buildKeepAliveStrategy())
+				.addInterceptorLast(requestCounter())
+				.addInterceptorFirst((HttpResponse response, HttpContext context) -> countResponse(response, responseWireBytes))
+				.addInterceptorLast((HttpResponse response, HttpContext context) -> countResponse(response, responseBytes))
+				.evictExpiredConnections()
+				.evictIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	private HttpRequestInterceptor requestCounter() {
+		return (HttpRequest request, HttpContext context) -> {
+			HttpEntity entity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+
+			if(entity != null) {
+				long wireBytes = Math.max(0, entity.getContentLength());
+
+				requestCount.incrementAndGet();
+				requestWireBytes.addAndGet(wireBytes);
+
+				if(entity instanceof AMQClient.CompressedEntity) {
+					compressedRequestCount.incrementAndGet();
+					requestBytes.addAndGet(((AMQClient.CompressedEntity) entity).getUncompressedLength());
+				}
+				else {
+					requestBytes.addAndGet(wireBytes);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Counts the response body bytes into the counter as they are read.
+	 */
+	private static void countResponse(HttpResponse response, AtomicLong counter) {
+		if(response.getEntity() != null) {
+			response.setEntity(new CountingEntity(response.getEntity(), counter));
+		}
+	}
+
+	private static class CountingEntity extends HttpEntityWrapper {
+
+		private final AtomicLong counter;
+
+		CountingEntity(HttpEntity wrappedEntity, AtomicLong counter) {
+			super(wrappedEntity);
+			this.counter = counter;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(super.getContent()) {
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+
+					if(b >= 0) {
+						counter.incrementAndGet();
+					}
+
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+
+					if(n > 0) {
+						counter.addAndGet(n);
+					}
+
+					return n;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					long skipped = super.skip(n);
+					counter.addAndGet(skipped);
+
+					return skipped;
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(OutputStream outStream) throws IOException {
+			//Go through getContent so the bytes are counted
+			try(InputStream content = getContent()) {
+				byte[] buffer = new byte[4096];
+				int n;
+
+				while((n = content.read(buffer)) != -1) {
+					outStream.write(buffer, 0, n);
+				}
+			}
+		}
+	}
+
+	private RequestConfig buildRequestConfig() {
+		return RequestConfig.custom().setConnectTimeout(connectTimeout).setConnectionRequestTimeout(connectionRequestTimeout).build();
+	}
+
+	/**
+	 * Honor the Keep-Alive timeout sent by the server, otherwise fall back to the configured keep alive.
+	 */
+	private ConnectionKeepAliveStrategy buildKeepAliveStrategy() {
+		return (HttpResponse response, HttpContext context) -> {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+
+			while(it.hasNext()) {
+				HeaderElement element = it.nextElement();
+
+				if(element.getValue() != null && "timeout".equalsIgnoreCase(element.getName())) {
+					try {
+						return Long.parseLong(element.getValue()) * 1000;
+					}
+					catch(NumberFormatException e) {
+						AMQClient.logger.debug("Invalid Keep-Alive timeout: {}", element.getValue());
+					}
+				}
+			}
+
+			return keepAliveMillis;
+		};
+	}
+
+	private synchronized void startAsyncHttpClient() {
+		//Checked again under the lock, a reactor started after close() would never be shut down
+		checkOpen();
+
+		if(asyncHttpClient != null) {
+			return;
+		}
+
+		try {
+			DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT, AMQClient.daemonThreadFactory("amq-io"));
+
+			asyncConnectionManager = new PoolingNHttpClientConnectionManager(ioReactor);
+			asyncConnectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+			asyncConnectionManager.setMaxTotal(maxConnectionsTotal);
+		}
+		catch(IOReactorException e) {
+			throw new IllegalStateException("Unable to start the asynchronous HTTP client.", e);
+		}
+
+		//The non-blocking client does not decompress, so it does not ask for compressed responses.  Its responses are
+		//buffered before they are handed over, so the body length is known up front.
+		CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+				.setConnectionManager(asyncConnectionManager)
+				.setDefaultRequestConfig(buildRequestConfig())
+				.setKeepAliveStrategy(buildKeepAliveStrategy())
+				.addInterceptorLast(requestCounter())
+				.addInterceptorLast((HttpResponse response, HttpContext context) -> {
+					long length = response.getEntity() != null ? Math.max(0, response.getEntity().getContentLength()) : 0;
+
+					responseBytes.addAndGet(length);
+					responseWireBytes.addAndGet(length);
+				})
+				.setThreadFactory(AMQClient.daemonThreadFactory("amq-io-dispatch"))
+				.build();
+
+		//The non-blocking pool has no built in evictor so expire idle connections on the shared scheduler.  Scheduled
+		//before the reactor threads are started, so nothing is left running if it is rejected.
+		final PoolingNHttpClientConnectionManager manager = asyncConnectionManager;
+		long evictionInterval = Math.max(maxIdleMillis / 2, 1000);
+		Future<?> evictionTask = scheduler.scheduleWithFixedDelay(() -> {
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS);
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+
+		try {
+			client.start();
+		}
+		catch(RuntimeException e) {
+			evictionTask.cancel(false);
+			throw e;
+		}
+
+		asyncHttpClient = client;
+	}
+
+	private void checkOpen() {
+		if(closed) {
+			throw new IllegalStateException("EventHubClientFactory has been closed.");
+		}
+	}
+
+	/**
+	 * Keeps the future of an asynchronous call until it completes, so {@link #close()} can fail it when the attempt
+	 * that would have completed it is dropped.
+	 */
+	protected void trackCall(CompletableFuture<?> future, ClientMetrics.Operation operation) {
+		pendingCalls.put(future, operation);
+		future.whenComplete((result, e) -> pendingCalls.remove(future));
+
+		//Closed while it was added, close() may have missed it
+		if(closed) {
+			failCall(future, operation);
+		}
+	}
+
+	private void failCall(CompletableFuture<?> future, ClientMetrics.Operation operation) {
+		if(future.completeExceptionally(new IllegalStateException("EventHubClientFactory has been closed."))) {
+			metrics.cancelled(operation);
+		}
+	}
+
+	public CloseableHttpClient getHttpClient() {
+		checkOpen();
+
+		return httpClient;
+	}
+
+	/**
+	 * @return the shared non-blocking HTTP client, starting its I/O reactor on first use
+	 */
+	public CloseableHttpAsyncClient getAsyncHttpClient() {
+		checkOpen();
+
+		if(asyncHttpClient == null) {
+			startAsyncHttpClient();
+		}
+
+		return asyncHttpClient;
+	}
+
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+
+	/**
+	 * @return the retry policy used by clients that were not given their own
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @return the breaker shared by every client of this factory calling the endpoint in the environment, null if
+	 * circuit breaking is not enabled
+	 */
+	public CircuitBreaker getCircuitBreaker(AMQClient.Environment env, String endpoint) {
+		if(circuitBreaker == null) {
+			return null;
+		}
+
+		return circuitBreakers.computeIfAbsent(env + "/" + endpoint, circuitBreaker::copy);
+	}
+
+	/**
+	 * @return the resolver shared by every client of this factory, null if requests go to a single gateway
+	 */
+	public EndpointResolver getEndpointResolver() {
+		return endpointResolver;
+	}
+
+	/**
+	 * @return the interceptors called around every attempt, in order, empty if there are none
+	 */
+	public List<RequestInterceptor> getInterceptors() {
+		return Collections.unmodifiableList(interceptors);
+	}
+
+	/**
+	 * @return the limiter shared by every client of this factory using the API key, null if API key rate limiting is not
+	 * enabled
+	 */
+	public RateLimiter getApiKeyRateLimiter(String apikey) {
+		if(apiKeyRateLimiter == null) {
+			return null;
+		}
+
+		//Keep the key itself out of the limiter name, it shows up in the logs
+		return apiKeyRateLimiters.computeIfAbsent(apikey, key -> apiKeyRateLimiter.copy("apikey-" + Integer.toHexString(key.hashCode())));
+	}
+
+	/**
+	 * @return the limiter shared by every client of this factory using the topic in the environment, null if topic rate
+	 * limiting is not enabled
+	 */
+	public RateLimiter getTopicRateLimiter(AMQClient.Environment env, String topic) {
+		if(topicRateLimiter == null) {
+			return null;
+		}
+
+		return topicRateLimiters.computeIfAbsent(env + "/" + topic, topicRateLimiter::copy);
+	}
+
+	public ScheduledThreadPoolExecutor getScheduler() {
+		checkOpen();
+
+		return scheduler;
+	}
+
+	/**
+	 * @return leased, pending (waiting for a lease), available and maximum connections of the blocking pool
+	 */
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * @return leased, pending (waiting for a lease), available and maximum connections of the non-blocking pool, or
+	 * null if no asynchronous request has been made yet
+	 */
+	public synchronized PoolStats getAsyncPoolStats() {
+		return asyncConnectionManager != null ? asyncConnectionManager.getTotalStats() : null;
+	}
+
+	/**
+	 * @return bytes sent and received by every client of this factory, before and after compression
+	 */
+	public TransferStats getTransferStats() {
+		return new TransferStats(requestCount.get(), compressedRequestCount.get(), requestBytes.get(), requestWireBytes.get(),
+				responseBytes.get(), responseWireBytes.get());
+	}
+
+	/**
+	 * @return latency, attempts and outcomes of the calls made by every client of this factory
+	 */
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes both connection pools, the idle connection evictors and the scheduler.  In flight requests are aborted, and
+	 * asynchronous calls still running complete exceptionally with an IllegalStateException.
+	 */
+	@Override
+	public synchronized void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+
+		//Cancel the tasks that will never run, the calls waiting on them are failed below
+		for(Runnable task : scheduler.shutdownNow()) {
+			((Future<?>) task).cancel(false);
+		}
+
+		try {
+			httpClient.close();
+		}
+		catch(IOException e) {
+			AMQClient.logger.debug("Error closing the HTTP client: {}", e.getMessage(), e);
+		}
+
+		if(asyncHttpClient != null) {
+			try {
+				asyncHttpClient.close();
+			}
+			catch(IOException e) {
+				AMQClient.logger.debug("Error closing the asynchronous HTTP client: {}", e.getMessage(), e);
+			}
+		}
+
+		for(Map.Entry<CompletableFuture<?>, ClientMetrics.Operation> call : pendingCalls.entrySet()) {
+			failCall(call.getKey(), call.getValue());
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries with exponential backoff and full jitter: the wait before retry n is random between zero and
+ * min(maxDelay, baseDelay * 2^(n-1)), which keeps a fleet of clients from retrying in lockstep after a shared failure.
+ *
+ * Retries stop once the next attempt would start after the per call deadline, or when the optional {@link RetryBudget}
+ * has no retries left.  A Retry-After from the server is the least the policy waits, and it gives up when the server
+ * asks for more than the maximum delay.
+ *
+ * Instances are created via the {@link PolicyBuilder}.
+ *
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+	protected static final long DEFAULT_BASE_DELAY_MILLIS = 200;
+	protected static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 1000;
+	protected static final long DEFAULT_DEADLINE_MILLIS = 30 * 1000;
+
+	private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+	private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+	private RetryBudget retryBudget = null;
+
+	public static class PolicyBuilder {
+
+		private ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy();
+
+		public static PolicyBuilder create() {
+			return new PolicyBuilder();
+		}
+
+		public ExponentialBackoffRetryPolicy build() {
+			//Verify the object was completely instantiated.
+			if(policy.baseDelayMillis <= 0 || policy.maxDelayMillis < policy.baseDelayMillis) {
+				throw new IllegalArgumentException("Base delay must be greater than zero and cannot exceed the maximum delay.");
+			}
+
+			if(policy.deadlineMillis < 0) {
+				throw new IllegalArgumentException("Deadline cannot be negative.");
+			}
+
+			return policy;
+		}
+
+		public PolicyBuilder setBaseDelayMillis(long baseDelayMillis) {
+			policy.baseDelayMillis = baseDelayMillis;
+			return this;
+		}
+
+		public PolicyBuilder setMaxDelayMillis(long maxDelayMillis) {
+			policy.maxDelayMillis = maxDelayMillis;
+			return this;
+		}
+
+		/**
+		 * Maximum time in milliseconds from the first attempt of a call to the start of its last retry.  Zero disables the deadline.
+		 */
+		public PolicyBuilder setDeadlineMillis(long deadlineMillis) {
+			policy.deadlineMillis = deadlineMillis;
+			return this;
+		}
+
+		/**
+		 * Caps retries as a fraction of requests.  The budget can be shared between policies.
+		 */
+		public PolicyBuilder setRetryBudget(RetryBudget retryBudget) {
+			policy.retryBudget = retryBudget;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link PolicyBuilder}
+	 */
+	private ExponentialBackoffRetryPolicy() {
+
+	}
+
+	@Override
+	public void requestStarted() {
+		if(retryBudget != null) {
+			retryBudget.requestStarted();
+		}
+	}
+
+	@Override
+	public long nextDelayMillis(int failures, long elapsedMillis) {
+		return nextDelayMillis(failures, elapsedMillis, 0);
+	}
+
+	@Override
+	public long nextDelayMillis(int failures, long elapsedMillis, long retryAfterMillis) {
+		if(retryAfterMillis > maxDelayMillis) {
+			AMQClient.logger.debug("Server asked to wait {} milliseconds, longer than the maximum delay, not retrying.", retryAfterMillis);
+			return -1;
+		}
+
+		//Shift at most 30 places so the ceiling cannot overflow
+		long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failures - 1, 30));
+		long delay = Math.max(retryAfterMillis, ThreadLocalRandom.current().nextLong(ceiling + 1));
+
+		if(deadlineMillis > 0 && elapsedMillis + delay > deadlineMillis) {
+			return -1;
+		}
+
+		if(retryBudget != null && !retryBudget.tryAcquire()) {
+			AMQClient.logger.debug("Retry budget exhausted, not retrying.");
+			return -1;
+		}
+
+		return delay;
+	}
+
+	public RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+}
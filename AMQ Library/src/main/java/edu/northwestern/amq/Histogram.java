@@ -0,0 +1,122 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, recorded without locks.  Values are counted in log-linear buckets, eight per
+ * power of two, so any percentile is reported within 12.5% of the recorded value while the whole range of a long
+ * fits in 488 counters.
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+
+		//Only new maximums pay for a compare and set
+		long currentMax;
+
+		while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+			//Lost the race, check against the new maximum
+		}
+	}
+
+	private static int indexOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the highest value that falls in the bucket
+	 */
+	private static long upperBoundOf(int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long total = count.sum();
+
+		return total == 0 ? 0 : (double) sum.sum() / total;
+	}
+
+	/**
+	 * Reads the counters once, so the percentiles of a snapshot are consistent with each other.
+	 *
+	 * @param percentiles between 0 and 1
+	 * @return the values at the percentiles, in the same order, zero if nothing was recorded
+	 */
+	public long[] getValuesAtPercentiles(double... percentiles) {
+		long[] bucketCounts = new long[BUCKETS];
+		long total = 0;
+
+		for(int i = 0; i < BUCKETS; i++) {
+			bucketCounts[i] = counts.get(i);
+			total += bucketCounts[i];
+		}
+
+		long[] values = new long[percentiles.length];
+		long maxValue = max.get();
+
+		for(int p = 0; p < percentiles.length && total > 0; p++) {
+			long rank = Math.max(1, (long) Math.ceil(percentiles[p] * total));
+			long seen = 0;
+
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += bucketCounts[i];
+
+				if(seen >= rank) {
+					values[p] = Math.min(upperBoundOf(i), maxValue);
+					break;
+				}
+			}
+		}
+
+		return values;
+	}
+
+	public long getValueAtPercentile(double percentile) {
+		return getValuesAtPercentiles(percentile)[0];
+	}
+}
@@ -0,0 +1,439 @@
+package edu.northwestern.amq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Remembers the ids of messages that were processed so a consumer can skip them when they are delivered again, which
+ * happens when a batch is rolled back after some of its messages succeeded or when an acknowledgement fails after the
+ * messages were processed.
+ *
+ * The most recent ids are kept exactly, as 64 bit hashes in a ring and an open addressing table of primitive longs.
+ * Older ids are only in a pair of Bloom filters that take turns being cleared, so a window of up to the configured
+ * number of ids is remembered in a fixed amount of memory.  A Bloom filter can report an id it never saw, so a match
+ * that is only in the Bloom filters counts as a duplicate only for a message that has been delivered before.  A first
+ * delivery is never skipped on a false positive.
+ *
+ * The cache is thread safe and can be shared by every consumer of a queue.  When a persistence path is set, the cache is
+ * loaded from it when built and saved to it by {@link #save()} and {@link #close()}.
+ *
+ * Instances are created via the {@link CacheBuilder}.
+ *
+ */
+public class IdempotencyCache implements Closeable {
+
+	protected static final int DEFAULT_RECENT_IDS = 100000;
+	protected static final long DEFAULT_WINDOW_IDS = 1000000;
+	protected static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+	private static final int FILE_MAGIC = 0x414d5149;
+	private static final int FILE_VERSION = 1;
+
+	private int recentIds = DEFAULT_RECENT_IDS;
+	private long windowIds = DEFAULT_WINDOW_IDS;
+	private double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+	private Path persistencePath = null;
+
+	//Recent ids, oldest first from head, and the table to look them up
+	private long[] ring;
+	private int head = 0;
+	private int size = 0;
+	private long[] table;
+	private int tableMask;
+
+	//Ids inserted in the current generation, which becomes the previous one once it holds half the window
+	private long[] currentBits;
+	private long[] previousBits;
+	private long bloomBits;
+	private int hashCount;
+	private long generationIds;
+	private long currentCount = 0;
+
+	private long checkedCount = 0;
+	private long recentHitCount = 0;
+	private long windowHitCount = 0;
+	private long firstDeliveryWindowHitCount = 0;
+	private long recordedCount = 0;
+
+	public static class CacheBuilder {
+
+		private IdempotencyCache cache = new IdempotencyCache();
+
+		public static CacheBuilder create() {
+			return new CacheBuilder();
+		}
+
+		public IdempotencyCache build() {
+			//Verify the object was completely instantiated.
+			if(cache.recentIds <= 0 || cache.windowIds < cache.recentIds) {
+				throw new IllegalArgumentException("Recent ids must be greater than zero and cannot exceed the window.");
+			}
+
+			if(cache.falsePositiveRate <= 0 || cache.falsePositiveRate >= 1) {
+				throw new IllegalArgumentException("False positive rate must be between zero and one.");
+			}
+
+			cache.allocate();
+
+			if(cache.persistencePath != null) {
+				cache.load();
+			}
+
+			return cache;
+		}
+
+		/**
+		 * Number of the most recent ids remembered exactly.
+		 */
+		public CacheBuilder setRecentIds(int recentIds) {
+			cache.recentIds = recentIds;
+			return this;
+		}
+
+		/**
+		 * Number of ids remembered in the Bloom filters, at least this many and at most twice as many are remembered.
+		 */
+		public CacheBuilder setWindowIds(long windowIds) {
+			cache.windowIds = windowIds;
+			return this;
+		}
+
+		/**
+		 * Chance that an id never recorded matches the Bloom filters while they are full.
+		 */
+		public CacheBuilder setFalsePositiveRate(double falsePositiveRate) {
+			cache.falsePositiveRate = falsePositiveRate;
+			return this;
+		}
+
+		/**
+		 * File the cache is loaded from and saved to, so it survives restarts.  Not persisted when not set.
+		 */
+		public CacheBuilder setPersistencePath(Path persistencePath) {
+			cache.persistencePath = persistencePath;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link CacheBuilder}
+	 */
+	private IdempotencyCache() {
+
+	}
+
+	private void allocate() {
+		ring = new long[recentIds];
+		table = new long[Integer.highestOneBit(recentIds) << 2];
+		tableMask = table.length - 1;
+
+		//Both generations are checked, so each gets half the false positive rate
+		generationIds = Math.max(1, windowIds / 2);
+		double ln2 = Math.log(2);
+		bloomBits = Math.max(64, (long) Math.ceil(-generationIds * Math.log(falsePositiveRate / 2) / (ln2 * ln2)));
+		hashCount = Math.max(1, (int) Math.round((double) bloomBits / generationIds * ln2));
+
+		if(bloomBits > (long) Integer.MAX_VALUE * 64) {
+			throw new IllegalArgumentException("Window of " + windowIds + " ids is too large for the false positive rate.");
+		}
+
+		currentBits = new long[(int) ((bloomBits + 63) / 64)];
+		previousBits = new long[currentBits.length];
+	}
+
+	/**
+	 * 64 bit FNV-1a of the id, mixed so the halves can serve as independent hashes.  Zero marks an empty slot of the
+	 * table, so it is never returned.
+	 */
+	private static long hash(String messageId) {
+		long hash = 0xcbf29ce484222325L;
+
+		for(int i = 0; i < messageId.length(); i++) {
+			hash ^= messageId.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash != 0 ? hash : 1;
+	}
+
+	private int slot(long hash) {
+		int slot = (int) hash & tableMask;
+
+		while(table[slot] != 0 && table[slot] != hash) {
+			slot = (slot + 1) & tableMask;
+		}
+
+		return slot;
+	}
+
+	private void removeFromTable(long hash) {
+		int slot = slot(hash);
+
+		if(table[slot] == 0) {
+			return;
+		}
+
+		//Shift back the entries of the probe sequence so lookups never stop at the hole
+		int next = slot;
+
+		while(true) {
+			table[slot] = 0;
+
+			while(true) {
+				next = (next + 1) & tableMask;
+
+				if(table[next] == 0) {
+					return;
+				}
+
+				int home = (int) table[next] & tableMask;
+
+				if(slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+					break;
+				}
+			}
+
+			table[slot] = table[next];
+			slot = next;
+		}
+	}
+
+	private boolean addRecent(long hash) {
+		int slot = slot(hash);
+
+		if(table[slot] == hash) {
+			return false;
+		}
+
+		if(size == ring.length) {
+			removeFromTable(ring[head]);
+			slot = slot(hash);
+		}
+		else {
+			size++;
+		}
+
+		table[slot] = hash;
+		ring[head] = hash;
+		head = (head + 1) % ring.length;
+
+		return true;
+	}
+
+	private boolean inBloom(long[] bits, long hash) {
+		long h1 = hash & 0xffffffffL;
+		long h2 = hash >>> 32;
+
+		for(int i = 0; i < hashCount; i++) {
+			long bit = (h1 + i * h2) % bloomBits;
+
+			if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void addBloom(long hash) {
+		if(currentCount >= generationIds) {
+			long[] cleared = previousBits;
+			Arrays.fill(cleared, 0);
+			previousBits = currentBits;
+			currentBits = cleared;
+			currentCount = 0;
+		}
+
+		long h1 = hash & 0xffffffffL;
+		long h2 = hash >>> 32;
+
+		for(int i = 0; i < hashCount; i++) {
+			long bit = (h1 + i * h2) % bloomBits;
+			currentBits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+
+		currentCount++;
+	}
+
+	/**
+	 * @return true if the message was processed before and should be skipped
+	 */
+	public boolean isDuplicate(Message message) {
+		String messageId = message.getMessageId();
+
+		if(messageId == null) {
+			return false;
+		}
+
+		long hash = hash(messageId);
+
+		synchronized(this) {
+			checkedCount++;
+
+			if(table[slot(hash)] == hash) {
+				recentHitCount++;
+				return true;
+			}
+
+			if(inBloom(currentBits, hash) || inBloom(previousBits, hash)) {
+				if(message.getDeliveryAttempts() > 1) {
+					windowHitCount++;
+					return true;
+				}
+
+				firstDeliveryWindowHitCount++;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Remembers the message as processed.
+	 */
+	public void record(String messageId) {
+		if(messageId == null) {
+			return;
+		}
+
+		long hash = hash(messageId);
+
+		synchronized(this) {
+			if(addRecent(hash)) {
+				addBloom(hash);
+				recordedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Writes the cache to the persistence path through a temporary file, so a crash while saving leaves the previous
+	 * copy.  Does nothing if no path was set.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if(persistencePath == null) {
+			return;
+		}
+
+		Path temporary = persistencePath.resolveSibling(persistencePath.getFileName() + ".tmp");
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(bloomBits);
+			out.writeInt(hashCount);
+			out.writeLong(currentCount);
+
+			out.writeInt(size);
+			for(int i = 0; i < size; i++) {
+				out.writeLong(ring[(head - size + i + ring.length) % ring.length]);
+			}
+
+			for(long word : currentBits) {
+				out.writeLong(word);
+			}
+
+			for(long word : previousBits) {
+				out.writeLong(word);
+			}
+		}
+
+		Files.move(temporary, persistencePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads a saved cache.  The Bloom filters are only restored if they were saved with the same size, the recent ids
+	 * always are.  A missing or damaged file leaves the cache empty.
+	 */
+	private void load() {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(persistencePath)))) {
+			if(in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				AMQClient.logger.warn("Ignoring {}, it is not a saved idempotency cache.", persistencePath);
+				return;
+			}
+
+			long savedBloomBits = in.readLong();
+			int savedHashCount = in.readInt();
+			long savedCurrentCount = in.readLong();
+
+			int savedSize = in.readInt();
+			long[] hashes = new long[savedSize];
+
+			for(int i = 0; i < savedSize; i++) {
+				hashes[i] = in.readLong();
+			}
+
+			boolean sameBloom = savedBloomBits == bloomBits && savedHashCount == hashCount;
+
+			if(sameBloom) {
+				for(int i = 0; i < currentBits.length; i++) {
+					currentBits[i] = in.readLong();
+				}
+
+				for(int i = 0; i < previousBits.length; i++) {
+					previousBits[i] = in.readLong();
+				}
+
+				currentCount = savedCurrentCount;
+			}
+			else {
+				AMQClient.logger.info("Idempotency cache settings changed, only the recent ids of {} are restored.", persistencePath);
+			}
+
+			//Oldest first, so the most recent survive if the ring is now smaller
+			for(long hash : hashes) {
+				if(addRecent(hash) && !sameBloom) {
+					addBloom(hash);
+				}
+			}
+		}
+		catch(NoSuchFileException e) {
+			//Nothing saved yet
+		}
+		catch(IOException e) {
+			AMQClient.logger.warn("Unable to load the idempotency cache from {}, starting empty.", persistencePath, e);
+			Arrays.fill(table, 0);
+			Arrays.fill(currentBits, 0);
+			Arrays.fill(previousBits, 0);
+			head = 0;
+			size = 0;
+			currentCount = 0;
+		}
+	}
+
+	/**
+	 * Saves the cache if a persistence path was set.
+	 */
+	@Override
+	public void close() throws IOException {
+		save();
+	}
+
+	/**
+	 * @return bytes of heap taken by the ids, fixed when the cache is built
+	 */
+	public long getMemoryBytes() {
+		return 8L * (ring.length + table.length + currentBits.length + previousBits.length);
+	}
+
+	public synchronized IdempotencyStats getStats() {
+		return new IdempotencyStats(checkedCount, recentHitCount, windowHitCount, firstDeliveryWindowHitCount, recordedCount, size, getMemoryBytes());
+	}
+}
@@ -0,0 +1,84 @@
+package edu.northwestern.amq;
+
+/**
+ * Point in time view of an {@link IdempotencyCache}.
+ *
+ */
+public class IdempotencyStats {
+
+	private final long checkedCount;
+	private final long recentHitCount;
+	private final long windowHitCount;
+	private final long firstDeliveryWindowHitCount;
+	private final long recordedCount;
+	private final int recentIdCount;
+	private final long memoryBytes;
+
+	protected IdempotencyStats(long checkedCount, long recentHitCount, long windowHitCount, long firstDeliveryWindowHitCount, long recordedCount,
+			int recentIdCount, long memoryBytes) {
+		this.checkedCount = checkedCount;
+		this.recentHitCount = recentHitCount;
+		this.windowHitCount = windowHitCount;
+		this.firstDeliveryWindowHitCount = firstDeliveryWindowHitCount;
+		this.recordedCount = recordedCount;
+		this.recentIdCount = recentIdCount;
+		this.memoryBytes = memoryBytes;
+	}
+
+	/**
+	 * @return number of messages checked
+	 */
+	public long getCheckedCount() {
+		return checkedCount;
+	}
+
+	/**
+	 * @return number of messages skipped, found in the recent ids or in the Bloom filters
+	 */
+	public long getDuplicateCount() {
+		return recentHitCount + windowHitCount;
+	}
+
+	/**
+	 * @return share of the messages checked that were skipped, between 0 and 1
+	 */
+	public double getHitRate() {
+		return checkedCount == 0 ? 0 : (double) getDuplicateCount() / checkedCount;
+	}
+
+	/**
+	 * @return number of messages skipped because their id was one of the recent ids
+	 */
+	public long getRecentHitCount() {
+		return recentHitCount;
+	}
+
+	/**
+	 * @return number of redelivered messages skipped because their id matched the Bloom filters
+	 */
+	public long getWindowHitCount() {
+		return windowHitCount;
+	}
+
+	/**
+	 * @return number of first deliveries that matched the Bloom filters and were let through, the false positives
+	 */
+	public long getFirstDeliveryWindowHitCount() {
+		return firstDeliveryWindowHitCount;
+	}
+
+	/**
+	 * @return number of ids recorded as processed
+	 */
+	public long getRecordedCount() {
+		return recordedCount;
+	}
+
+	public int getRecentIdCount() {
+		return recentIdCount;
+	}
+
+	public long getMemoryBytes() {
+		return memoryBytes;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.northwestern.amq;
+
+/**
+ * Point in time view of a {@link ConsumerLag}.  Percentiles are within 12.5% of the recorded values and only include
+ * messages that had a delivery date.
+ *
+ */
+public class LagStats {
+
+	private final String name;
+	private final long messageCount;
+	private final long redeliveredCount;
+	private final long currentLagMillis;
+	private final long[] lagMillis;
+	private final double meanLagMillis;
+	private final long maxLagMillis;
+
+	protected LagStats(String name, long messageCount, long redeliveredCount, long currentLagMillis, long[] lagMillis, double meanLagMillis,
+			long maxLagMillis) {
+		this.name = name;
+		this.messageCount = messageCount;
+		this.redeliveredCount = redeliveredCount;
+		this.currentLagMillis = currentLagMillis;
+		this.lagMillis = lagMillis;
+		this.meanLagMillis = meanLagMillis;
+		this.maxLagMillis = maxLagMillis;
+	}
+
+	/**
+	 * @return environment and queue, as in "dev/my.queue"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of messages received
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return number of messages received that had been delivered before
+	 */
+	public long getRedeliveredCount() {
+		return redeliveredCount;
+	}
+
+	/**
+	 * @return share of the messages received that had been delivered before, between 0 and 1
+	 */
+	public double getRedeliveryRate() {
+		return messageCount == 0 ? 0 : (double) redeliveredCount / messageCount;
+	}
+
+	/**
+	 * @return largest lag of the latest get, zero if it found the queue empty
+	 */
+	public long getCurrentLagMillis() {
+		return currentLagMillis;
+	}
+
+	public long getLagP50Millis() {
+		return lagMillis[0];
+	}
+
+	public long getLagP90Millis() {
+		return lagMillis[1];
+	}
+
+	public long getLagP99Millis() {
+		return lagMillis[2];
+	}
+
+	public long getLagP999Millis() {
+		return lagMillis[3];
+	}
+
+	public double getMeanLagMillis() {
+		return meanLagMillis;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+}
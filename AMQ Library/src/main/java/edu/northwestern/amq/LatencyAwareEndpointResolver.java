@@ -0,0 +1,150 @@
+package edu.northwestern.amq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link EndpointResolver} that sends every attempt to the available endpoint with the lowest average latency.  Only
+ * the endpoint in use is measured, so when it slows down past the last measurement of another one, traffic moves
+ * there.  Endpoints that have never been used have no latency yet and are tried first.
+ *
+ * When every endpoint of the environment is ejected the one whose ejection ends first is used, so a request is never
+ * refused by the resolver itself.  TEST and QA share their endpoints.
+ *
+ */
+public class LatencyAwareEndpointResolver implements EndpointResolver {
+
+	protected static final double DEFAULT_SMOOTHING = 0.2;
+	protected static final double DEFAULT_ERROR_RATE_THRESHOLD = 0.5;
+	protected static final long DEFAULT_EJECT_MILLIS = 10 * 1000;
+
+	private double smoothing = DEFAULT_SMOOTHING;
+	private double errorRateThreshold = DEFAULT_ERROR_RATE_THRESHOLD;
+	private long ejectMillis = DEFAULT_EJECT_MILLIS;
+	private final Map<String, List<String>> baseURLs = new ConcurrentHashMap<String, List<String>>();
+	private final Map<String, List<Endpoint>> endpoints = new ConcurrentHashMap<String, List<Endpoint>>();
+
+	public static class ResolverBuilder {
+
+		private LatencyAwareEndpointResolver resolver = new LatencyAwareEndpointResolver();
+
+		public static ResolverBuilder create() {
+			return new ResolverBuilder();
+		}
+
+		public LatencyAwareEndpointResolver build() {
+			//Verify the object was completely instantiated.
+			if(resolver.baseURLs.isEmpty()) {
+				throw new IllegalArgumentException("At least one endpoint is required.");
+			}
+
+			if(resolver.smoothing <= 0 || resolver.smoothing > 1 || resolver.errorRateThreshold <= 0 || resolver.errorRateThreshold > 1) {
+				throw new IllegalArgumentException("Smoothing and error rate threshold must be greater than zero and at most one.");
+			}
+
+			if(resolver.ejectMillis < 0) {
+				throw new IllegalArgumentException("Eject time cannot be negative.");
+			}
+
+			for(Map.Entry<String, List<String>> entry : resolver.baseURLs.entrySet()) {
+				List<Endpoint> candidates = new ArrayList<Endpoint>();
+
+				for(String baseURL : entry.getValue()) {
+					candidates.add(new Endpoint(baseURL, resolver.smoothing, resolver.errorRateThreshold, resolver.ejectMillis));
+				}
+
+				resolver.endpoints.put(entry.getKey(), Collections.unmodifiableList(candidates));
+			}
+
+			return resolver;
+		}
+
+		/**
+		 * Adds a candidate for the environment, the first one added is the primary.
+		 *
+		 * @throws IllegalArgumentException if the URL is not an absolute http or https URL
+		 */
+		public ResolverBuilder addEndpoint(AMQClient.Environment env, String baseURL) {
+			if(env == null || baseURL == null) {
+				throw new IllegalArgumentException("Environment and base URL are required.");
+			}
+
+			AMQClient.checkBaseURL(baseURL);
+			resolver.baseURLs.computeIfAbsent(env.toString(), key -> new ArrayList<String>()).add(baseURL);
+			return this;
+		}
+
+		/**
+		 * Weight of the latest attempt in the latency and error rate averages, between 0 and 1.
+		 */
+		public ResolverBuilder setSmoothing(double smoothing) {
+			resolver.smoothing = smoothing;
+			return this;
+		}
+
+		/**
+		 * Average error rate, between 0 and 1, from which an endpoint is ejected.  A refused connection ejects it right away.
+		 */
+		public ResolverBuilder setErrorRateThreshold(double errorRateThreshold) {
+			resolver.errorRateThreshold = errorRateThreshold;
+			return this;
+		}
+
+		/**
+		 * Time in milliseconds an ejected endpoint is skipped before it is tried again.
+		 */
+		public ResolverBuilder setEjectMillis(long ejectMillis) {
+			resolver.ejectMillis = ejectMillis;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link ResolverBuilder}
+	 */
+	private LatencyAwareEndpointResolver() {
+
+	}
+
+	@Override
+	public List<Endpoint> getEndpoints(AMQClient.Environment env) {
+		List<Endpoint> candidates = endpoints.get(env.toString());
+
+		return candidates != null ? candidates : Collections.<Endpoint>emptyList();
+	}
+
+	@Override
+	public Endpoint select(AMQClient.Environment env) {
+		Endpoint fastest = null;
+		Endpoint soonest = null;
+
+		for(Endpoint endpoint : getEndpoints(env)) {
+			if(endpoint.isAvailable()) {
+				if(fastest == null || endpoint.getLatencyNanos() < fastest.getLatencyNanos()) {
+					fastest = endpoint;
+				}
+			}
+			else if(soonest == null || endpoint.getEjectedUntilNanos() - soonest.getEjectedUntilNanos() < 0) {
+				soonest = endpoint;
+			}
+		}
+
+		return fastest != null ? fastest : soonest;
+	}
+
+	/**
+	 * @return a snapshot of every endpoint of the environment, in the order they were added
+	 */
+	public List<EndpointStats> getStats(AMQClient.Environment env) {
+		List<EndpointStats> stats = new ArrayList<EndpointStats>();
+
+		for(Endpoint endpoint : getEndpoints(env)) {
+			stats.add(endpoint.getStats());
+		}
+
+		return stats;
+	}
+}
@@ -1,11 +1,21 @@
 package edu.northwestern.amq;
 
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class Message {
 
+	//Thread safe, unlike SimpleDateFormat, so one instance serves every message
+	private static final DateTimeFormatter DELIVERY_DATE_FORMATTER = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+	private static final long NOT_PARSED = Long.MIN_VALUE;
+
 	private String data;
 	private String deliveryDate;
+	private long deliveryTimeMillis = NOT_PARSED;
 	private String expirationDate;
 	private int deliveryAttempts;
 	private String contentType;
@@ -49,6 +59,32 @@ public class Message {
 
 	public void setDeliveryDate(String deliveryDate) {
 		this.deliveryDate = deliveryDate;
+		this.deliveryTimeMillis = NOT_PARSED;
+	}
+
+	/**
+	 * Parses the delivery date on first use and keeps the result.
+	 *
+	 * @return the delivery date in milliseconds since the epoch, negative if the message has no valid delivery date
+	 */
+	@JsonIgnore
+	public long getDeliveryTimeMillis() {
+		if(deliveryTimeMillis == NOT_PARSED) {
+			long millis = -1;
+
+			if(deliveryDate != null) {
+				try {
+					millis = DELIVERY_DATE_FORMATTER.parse(deliveryDate, Instant::from).toEpochMilli();
+				}
+				catch(DateTimeParseException e) {
+					AMQClient.logger.debug("Invalid delivery date: {}", deliveryDate);
+				}
+			}
+
+			deliveryTimeMillis = millis;
+		}
+
+		return deliveryTimeMillis;
 	}
 
 	@JsonProperty("expirationDate")
@@ -0,0 +1,17 @@
+package edu.northwestern.amq;
+
+/**
+ * Callback invoked by a {@link MessageListenerContainer} for each message received from the queue.
+ *
+ */
+public interface MessageListener {
+
+	/**
+	 * Process a single message.  Returning normally marks the message as processed, throwing marks it as failed and
+	 * the container's {@link MessageListenerContainer.ErrorPolicy} decides what happens to it.
+	 *
+	 * @param message
+	 * @throws Exception
+	 */
+	void onMessage(Message message) throws Exception;
+}
@@ -0,0 +1,422 @@
+package edu.northwestern.amq;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the get, process, acknowledge loop for a queue so applications only supply a {@link MessageListener}.
+ *
+ * Each poll thread owns a consumer (the one supplied plus copies of it) and hands the messages of every batch to a
+ * shared pool of handler threads, running at most the configured concurrency of them at once per batch.  Once every
+ * message of the batch has finished the batch is settled: acknowledged if all succeeded, otherwise according to the
+ * {@link ErrorPolicy}.  A failed message that has already been delivered the maximum number of times is moved to the
+ * dead letter queue whatever the policy, so a poison message cannot block the queue forever.
+ *
+ * A get without autoAcknowledge leaves the batch at the head of the queue until it is settled, so a second poll thread
+ * would be handed the same batch.  More than one poll thread is only allowed for a consumer with autoAcknowledge,
+ * otherwise the parallelism comes from the handler threads.  The gateway removes a batch from the queue as it hands it
+ * to a consumer with autoAcknowledge, so a failed message cannot be rolled back or moved to the dead letter queue.  Such
+ * a consumer only works with {@link ErrorPolicy#ACKNOWLEDGE} and no maximum number of deliveries, and its failed
+ * messages are counted as dropped.
+ *
+ * Instances are created via the {@link ContainerBuilder}.
+ *
+ */
+public class MessageListenerContainer implements Closeable {
+
+	protected static final int DEFAULT_POLL_THREADS = 1;
+	protected static final int DEFAULT_HANDLER_THREADS = Runtime.getRuntime().availableProcessors();
+	protected static final int DEFAULT_MAX_DELIVERY_ATTEMPTS = 5;
+	protected static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * What to do with a batch when one or more of its messages fail.
+	 */
+	public enum ErrorPolicy {
+		/**
+		 * Roll the batch back so every message in it, including the ones that succeeded, is delivered again.
+		 */
+		ROLLBACK,
+
+		/**
+		 * Acknowledge the batch anyway, dropping the failed messages.  The only policy for a consumer with
+		 * autoAcknowledge, the gateway has already removed the batch.
+		 */
+		ACKNOWLEDGE,
+
+		/**
+		 * Move each failed message to the dead letter queue and acknowledge the rest of the batch.
+		 */
+		DEAD_LETTER
+	}
+
+	private AMQConsumer consumer = null;
+	private MessageListener messageListener = null;
+	private int pollThreads = DEFAULT_POLL_THREADS;
+	private int handlerThreads = DEFAULT_HANDLER_THREADS;
+	private int concurrency = 0;
+	private int maxDeliveryAttempts = DEFAULT_MAX_DELIVERY_ATTEMPTS;
+	private PollScheduler pollScheduler = null;
+	private ErrorPolicy errorPolicy = null;
+
+	private final List<Thread> pollers = new ArrayList<Thread>();
+	private final List<AMQConsumer> consumers = new ArrayList<AMQConsumer>();
+	private ExecutorService handlerPool = null;
+	private volatile boolean running = false;
+	private CountDownLatch stopSignal = null;
+	private long startNanos = 0;
+
+	private final AtomicLong pollCount = new AtomicLong();
+	private final AtomicLong emptyPollCount = new AtomicLong();
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong deadLetterCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong rollbackCount = new AtomicLong();
+
+	public static class ContainerBuilder {
+
+		private MessageListenerContainer container = new MessageListenerContainer();
+		private boolean maxDeliveryAttemptsSet = false;
+
+		public static ContainerBuilder create() {
+			return new ContainerBuilder();
+		}
+
+		public MessageListenerContainer build() {
+			//Verify the object was completely instantiated.
+			if(container.consumer == null) {
+				throw new IllegalArgumentException("Consumer is required.");
+			}
+
+			if(container.messageListener == null) {
+				throw new IllegalArgumentException("MessageListener is required.");
+			}
+
+			if(container.pollThreads <= 0 || container.handlerThreads <= 0 || container.concurrency < 0) {
+				throw new IllegalArgumentException("Poll threads and handler threads must be greater than zero and concurrency cannot be negative.");
+			}
+
+			if(container.maxDeliveryAttempts < 0) {
+				throw new IllegalArgumentException("Max delivery attempts cannot be negative.");
+			}
+
+			if(container.consumer.isAutoAcknowledge()) {
+				if((container.errorPolicy != null && container.errorPolicy != ErrorPolicy.ACKNOWLEDGE) || (maxDeliveryAttemptsSet && container.maxDeliveryAttempts > 0)) {
+					throw new IllegalArgumentException("A consumer with autoAcknowledge can only drop failed messages, use ErrorPolicy.ACKNOWLEDGE without max delivery attempts.");
+				}
+
+				container.errorPolicy = ErrorPolicy.ACKNOWLEDGE;
+				container.maxDeliveryAttempts = 0;
+			}
+			else if(container.pollThreads > 1) {
+				throw new IllegalArgumentException("More than one poll thread requires a consumer with autoAcknowledge.");
+			}
+
+			if(container.errorPolicy == null) {
+				container.errorPolicy = ErrorPolicy.ROLLBACK;
+			}
+
+			if(container.pollScheduler == null) {
+				container.pollScheduler = PollScheduler.PollSchedulerBuilder.create().build();
+			}
+
+			if(container.concurrency == 0) {
+				container.concurrency = container.handlerThreads;
+			}
+
+			return container;
+		}
+
+		public ContainerBuilder setConsumer(AMQConsumer consumer) {
+			container.consumer = consumer;
+			return this;
+		}
+
+		public ContainerBuilder setMessageListener(MessageListener messageListener) {
+			container.messageListener = messageListener;
+			return this;
+		}
+
+		/**
+		 * Number of threads polling the queue, each with its own consumer.  Only a consumer with autoAcknowledge can be
+		 * polled by more than one thread, without it every poller would get the batch at the head of the queue.  Failed
+		 * messages of such a consumer are dropped, see {@link ErrorPolicy#ACKNOWLEDGE}.
+		 */
+		public ContainerBuilder setPollThreads(int pollThreads) {
+			container.pollThreads = pollThreads;
+			return this;
+		}
+
+		/**
+		 * Size of the thread pool that runs the listener, shared by all poll threads.  Defaults to the number of cores.
+		 */
+		public ContainerBuilder setHandlerThreads(int handlerThreads) {
+			container.handlerThreads = handlerThreads;
+			return this;
+		}
+
+		/**
+		 * Maximum number of messages from one batch processed at the same time.  Defaults to the number of handler threads.
+		 */
+		public ContainerBuilder setConcurrency(int concurrency) {
+			container.concurrency = concurrency;
+			return this;
+		}
+
+		/**
+		 * Failed messages delivered this many times are moved to the dead letter queue.  Zero disables the check.  Not
+		 * available for a consumer with autoAcknowledge.
+		 */
+		public ContainerBuilder setMaxDeliveryAttempts(int maxDeliveryAttempts) {
+			container.maxDeliveryAttempts = maxDeliveryAttempts;
+			maxDeliveryAttemptsSet = true;
+			return this;
+		}
+
+		/**
+		 * Defaults to {@link ErrorPolicy#ROLLBACK}, or {@link ErrorPolicy#ACKNOWLEDGE} for a consumer with autoAcknowledge.
+		 */
+		public ContainerBuilder setErrorPolicy(ErrorPolicy errorPolicy) {
+			container.errorPolicy = errorPolicy;
+			return this;
+		}
+
+		/**
+		 * Controls how poll threads back off while the queue is empty.  Every poll thread gets its own copy.
+		 */
+		public ContainerBuilder setPollScheduler(PollScheduler pollScheduler) {
+			container.pollScheduler = pollScheduler;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link ContainerBuilder}
+	 */
+	private MessageListenerContainer() {
+
+	}
+
+	/**
+	 * Starts the poll threads and the handler pool.
+	 */
+	public synchronized void start() {
+		if(running) {
+			throw new IllegalStateException("Container is already running.");
+		}
+
+		running = true;
+		stopSignal = new CountDownLatch(1);
+		startNanos = System.nanoTime();
+		handlerPool = Executors.newFixedThreadPool(handlerThreads, AMQClient.daemonThreadFactory("amq-handler-" + consumer.topic));
+
+		for(int i = 0; i < pollThreads; i++) {
+			final AMQConsumer pollConsumer = i == 0 ? consumer : consumer.copy();
+			final PollScheduler pollerScheduler = pollScheduler.copy();
+			consumers.add(pollConsumer);
+
+			Thread poller = AMQClient.daemonThreadFactory("amq-poll-" + consumer.topic + "-" + i).newThread(() -> pollLoop(pollConsumer, pollerScheduler));
+			pollers.add(poller);
+			poller.start();
+		}
+	}
+
+	private void pollLoop(AMQConsumer pollConsumer, PollScheduler pollerScheduler) {
+		final CountDownLatch stopped = stopSignal;
+
+		while(running) {
+			try {
+				MessageResult messageResult = pollConsumer.getMessage();
+				pollCount.incrementAndGet();
+				long delay = pollerScheduler.record(messageResult);
+
+				if(messageResult == null || !messageResult.hasMessage()) {
+					emptyPollCount.incrementAndGet();
+
+					//Back off, but wake up straight away when the container is stopped
+					stopped.await(delay, TimeUnit.MILLISECONDS);
+					continue;
+				}
+
+				settle(pollConsumer, process(pollConsumer, messageResult.getMessages()));
+			}
+			catch(InterruptedException e) {
+				//Stopped in the middle of a batch, leave it on the queue so the consumer can be polled again
+				if(pollConsumer.hasUnsettledBatch()) {
+					pollConsumer.rollback();
+				}
+
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch(RuntimeException e) {
+				AMQClient.logger.debug("Error in the listener container: {}", e.getMessage(), e);
+
+				if(pollConsumer.isClosed()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the listener for every message of the batch on the handler pool and waits for all of them.
+	 *
+	 * @return the messages that failed
+	 */
+	private List<Message> process(final AMQConsumer pollConsumer, List<Message> messages) throws InterruptedException {
+		final List<Message> failed = Collections.synchronizedList(new ArrayList<Message>());
+		final CountDownLatch latch = new CountDownLatch(messages.size());
+		final Semaphore permits = new Semaphore(concurrency);
+
+		for(final Message message : messages) {
+			permits.acquire();
+
+			try {
+				handlerPool.execute(() -> {
+					try {
+						messageListener.onMessage(message);
+						processedCount.incrementAndGet();
+
+						//Skipped if the batch is delivered again, even when another message makes it roll back
+						pollConsumer.processed(message.getMessageId());
+					}
+					catch(Exception e) {
+						AMQClient.logger.debug("Listener failed for message {}: {}", message.getMessageId(), e.getMessage(), e);
+
+						failedCount.incrementAndGet();
+						failed.add(message);
+					}
+					finally {
+						permits.release();
+						latch.countDown();
+					}
+				});
+			}
+			catch(RejectedExecutionException e) {
+				//The container is shutting down, treat what was not started as failed so it is not acknowledged
+				permits.release();
+				failed.add(message);
+				latch.countDown();
+			}
+		}
+
+		latch.await();
+
+		return failed;
+	}
+
+	private void settle(AMQConsumer pollConsumer, List<Message> failed) throws InterruptedException {
+		if(pollConsumer.isAutoAcknowledge()) {
+			//The server already removed the batch, there is nothing left to settle
+			droppedCount.addAndGet(failed.size());
+			return;
+		}
+
+		boolean rollback = false;
+		int dropped = 0;
+
+		for(Message message : failed) {
+			boolean poison = maxDeliveryAttempts > 0 && message.getDeliveryAttempts() >= maxDeliveryAttempts;
+
+			if(poison || errorPolicy == ErrorPolicy.DEAD_LETTER) {
+				AcknowledgeResult poisonResult = pollConsumer.acknowledgeAsPoison(message.getMessageId());
+
+				if(poisonResult.isSuccess()) {
+					deadLetterCount.incrementAndGet();
+				}
+				else {
+					//Leave it on the queue rather than lose it
+					rollback = true;
+				}
+			}
+			else if(errorPolicy == ErrorPolicy.ROLLBACK) {
+				rollback = true;
+			}
+			else {
+				dropped++;
+			}
+		}
+
+		if(!rollback) {
+			AcknowledgeResult ackResult = pollConsumer.acknowledgeMessage();
+
+			if(ackResult.isSuccess()) {
+				droppedCount.addAndGet(dropped);
+				return;
+			}
+
+			AMQClient.logger.debug("Unable to acknowledge batch, Status Code: {}", ackResult.getStatusCode());
+		}
+
+		rollbackCount.incrementAndGet();
+		pollConsumer.rollback();
+	}
+
+	/**
+	 * Stops polling and waits up to the timeout for batches being processed to finish.  The copies of the consumer made
+	 * for the other poll threads are closed, the consumer supplied to the builder is left open so the container can be
+	 * started again.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop(long timeout, TimeUnit unit) throws InterruptedException {
+		if(!running) {
+			return;
+		}
+
+		running = false;
+		stopSignal.countDown();
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for(Thread poller : pollers) {
+			poller.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+			if(poller.isAlive()) {
+				poller.interrupt();
+			}
+		}
+
+		handlerPool.shutdownNow();
+
+		for(AMQConsumer pollConsumer : consumers) {
+			if(pollConsumer != consumer) {
+				pollConsumer.close();
+			}
+		}
+
+		pollers.clear();
+		consumers.clear();
+	}
+
+	@Override
+	public void close() {
+		try {
+			stop(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public ContainerStats getStats() {
+		long elapsedNanos = startNanos == 0 ? 0 : System.nanoTime() - startNanos;
+
+		return new ContainerStats(consumer.topic, pollCount.get(), emptyPollCount.get(), processedCount.get(), failedCount.get(),
+				deadLetterCount.get(), droppedCount.get(), rollbackCount.get(), elapsedNanos);
+	}
+}
@@ -2,6 +2,7 @@ package edu.northwestern.amq;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -11,6 +12,7 @@ public class MessageResult implements EventHubResult {
 	private boolean hasAdditionalMessage;
 	private List<Message> messages = new ArrayList<Message>();
 	private int messageCount = 0;
+	private int attempts = 0;
 
 	@JsonIgnore
 	public Message getMessage() {
@@ -37,6 +39,14 @@ public class MessageResult implements EventHubResult {
 		return messages;
 	}
 
+	/**
+	 * @return a {@link Stream} over the messages in this result.  Use {@link AMQConsumer#getMessageStream()} to parse
+	 * messages lazily as they arrive instead.
+	 */
+	public Stream<Message> stream() {
+		return messages != null ? messages.stream() : Stream.<Message>empty();
+	}
+
 	public void setMessages(List<Message> messages) {
 		this.messages = messages;
 	}
@@ -73,4 +83,17 @@ public class MessageResult implements EventHubResult {
 	public void addMessage(Message message) {
 		messages.add(message);
 	}
+
+	/**
+	 * @return number of requests made to get this result, including retries
+	 */
+	@JsonIgnore
+	public int getAttempts() {
+		return attempts;
+	}
+
+	@JsonIgnore
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
 }
\ No newline at end of file
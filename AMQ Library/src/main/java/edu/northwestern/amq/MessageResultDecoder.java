@@ -0,0 +1,133 @@
+package edu.northwestern.amq;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Decodes the {@link MessageResult} envelope returned by the queue get call when metadata is included.
+ *
+ * JSON bodies are read straight from the entity stream with an {@link ObjectReader} that is created once and is safe to
+ * share between threads, so a poll no longer copies the whole body into a String or builds a new ObjectMapper.  XML bodies
+ * are streamed with StAX, so the JAXB runtime is not needed on any JDK.  The body is only materialized when debug logging
+ * is enabled.
+ *
+ */
+public class MessageResultDecoder {
+
+	private final ObjectReader jsonReader;
+	private final ObjectReader messageReader;
+
+	public MessageResultDecoder(ObjectMapper objectMapper) {
+		this.jsonReader = objectMapper.readerFor(MessageResult.class);
+		this.messageReader = objectMapper.readerFor(Message.class);
+	}
+
+	/**
+	 * @return true if the entity is JSON and can be read incrementally by a {@link MessageStream}
+	 */
+	public boolean isStreamable(HttpEntity entity) {
+		ContentType contentType = ContentType.get(entity);
+
+		return contentType != null && MediaType.APPLICATION_JSON.equalsIgnoreCase(contentType.getMimeType());
+	}
+
+	/**
+	 * Opens a {@link MessageStream} over a JSON response.  The response stays open until the stream is drained or closed.
+	 */
+	protected MessageStream stream(AMQConsumer consumer, CloseableHttpResponse response) throws IOException {
+		Charset charset = ContentType.get(response.getEntity()).getCharset();
+		InputStream content = response.getEntity().getContent();
+		JsonParser parser;
+
+		if(charset == null || charset.name().startsWith("UTF-")) {
+			parser = jsonReader.getFactory().createParser(content);
+		}
+		else {
+			parser = jsonReader.getFactory().createParser(new InputStreamReader(content, charset));
+		}
+
+		return new MessageStream(consumer, response, parser, messageReader);
+	}
+
+	/**
+	 * @param entity response entity, fully consumed by this call
+	 * @return the decoded {@link MessageResult}, or null if the entity is neither XML nor JSON
+	 * @throws IOException
+	 */
+	public MessageResult decode(HttpEntity entity) throws IOException {
+		//Figure out the content-type of the response body
+		ContentType contentType = ContentType.get(entity);
+		String mimeType = contentType != null ? contentType.getMimeType() : null;
+		Charset charset = contentType != null ? contentType.getCharset() : null;
+
+		InputStream content;
+
+		//Only pull the body into memory when somebody is going to read it in the log
+		if(AMQClient.logger.isDebugEnabled()) {
+			byte[] body = EntityUtils.toByteArray(entity);
+			AMQClient.logger.debug(new String(body, charset != null ? charset : StandardCharsets.UTF_8));
+
+			content = new ByteArrayInputStream(body);
+		}
+		else {
+			content = entity.getContent();
+		}
+
+		try {
+			if (MediaType.APPLICATION_XML.equalsIgnoreCase(mimeType)) {
+				AMQClient.logger.debug("XML");
+
+				return decodeXml(content, charset);
+			}
+			else if (MediaType.APPLICATION_JSON.equalsIgnoreCase(mimeType)) {
+				AMQClient.logger.debug("JSON");
+
+				return decodeJson(content, charset);
+			}
+			else {
+				return null;
+			}
+		}
+		finally {
+			//Drain whatever is left so the connection can be reused
+			EntityUtils.consume(entity);
+		}
+	}
+
+	/**
+	 * JSON is UTF-8 unless the server says otherwise, Jackson detects the UTF encodings from the bytes itself.
+	 */
+	public MessageResult decodeJson(InputStream content, Charset charset) throws IOException {
+		if(charset == null || charset.name().startsWith("UTF-")) {
+			return jsonReader.readValue(content);
+		}
+		else {
+			try (Reader reader = new InputStreamReader(content, charset)) {
+				return jsonReader.readValue(reader);
+			}
+		}
+	}
+
+	/**
+	 * XML is read with StAX, see {@link MessageResultXmlReader}.
+	 */
+	public MessageResult decodeXml(InputStream content, Charset charset) throws IOException {
+		return MessageResultXmlReader.read(content, charset);
+	}
+}
@@ -0,0 +1,157 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams a {@link MessageResult} out of an XML queue response with StAX.
+ *
+ * StAX ships with every JDK, so unlike JAXB (removed from the JDK in 11) this needs no extra runtime and there is no
+ * per-call context to build.  Messages are accepted either wrapped (&lt;messages&gt;&lt;message&gt;...) or as repeated
+ * &lt;messages&gt;/&lt;message&gt; elements, and unknown elements are skipped.
+ *
+ */
+class MessageResultXmlReader {
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+	private MessageResultXmlReader() {
+
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+
+		//Responses never need a DTD or external entities, turn them off so they cannot be abused
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		return factory;
+	}
+
+	static MessageResult read(InputStream content, Charset charset) throws IOException {
+		XMLStreamReader reader = null;
+
+		try {
+			if(charset != null) {
+				reader = XML_INPUT_FACTORY.createXMLStreamReader(new InputStreamReader(content, charset));
+			}
+			else {
+				reader = XML_INPUT_FACTORY.createXMLStreamReader(content);
+			}
+
+			MessageResult messageResult = new MessageResult();
+			boolean countFound = false;
+
+			reader.nextTag();
+
+			while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				switch(reader.getLocalName()) {
+				case "hasAdditionalMessage":
+					messageResult.hasAdditionalMessage(Boolean.parseBoolean(reader.getElementText().trim()));
+					break;
+				case "count":
+				case "messageCount":
+					messageResult.setMessageCount(Integer.parseInt(reader.getElementText().trim()));
+					countFound = true;
+					break;
+				case "messages":
+				case "message":
+					readMessages(reader, messageResult);
+					break;
+				default:
+					skipElement(reader);
+				}
+			}
+
+			if(!countFound) {
+				messageResult.setMessageCount(messageResult.getMessages().size());
+			}
+
+			return messageResult;
+		}
+		catch(XMLStreamException | IllegalArgumentException e) {
+			throw new IOException("Unable to parse the XML response.", e);
+		}
+		finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				}
+				catch(XMLStreamException e) {
+					AMQClient.logger.debug("Error closing the XML reader: {}", e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a messages/message element.  It is a single message if it has message fields, otherwise it is a wrapper
+	 * around more message elements.
+	 */
+	private static void readMessages(XMLStreamReader reader, MessageResult messageResult) throws XMLStreamException {
+		Message message = null;
+
+		while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+
+			if("message".equals(name) || "messages".equals(name)) {
+				readMessages(reader, messageResult);
+				continue;
+			}
+
+			if(message == null) {
+				message = new Message();
+			}
+
+			switch(name) {
+			case "data":
+				message.setData(reader.getElementText());
+				break;
+			case "deliveryDate":
+				message.setDeliveryDate(reader.getElementText());
+				break;
+			case "expirationDate":
+				message.setExpirationDate(reader.getElementText());
+				break;
+			case "deliveryAttempts":
+				message.setDeliveryAttempts(Integer.parseInt(reader.getElementText().trim()));
+				break;
+			case "contentType":
+				message.setContentType(reader.getElementText());
+				break;
+			case "messageId":
+				message.setMessageId(reader.getElementText());
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+
+		if(message != null) {
+			messageResult.addMessage(message);
+		}
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+
+		while(depth > 0) {
+			int event = reader.next();
+
+			if(event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			}
+			else if(event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package edu.northwestern.amq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Iterates over the messages of one queue get call while the response is still being read.
+ *
+ * JSON responses are parsed incrementally, so the first message can be processed while the rest of the body is still
+ * arriving and only one {@link Message} is held at a time.  Other responses (XML, empty queue, no metadata) are decoded
+ * up front and simply iterated.
+ *
+ * The consumer treats the last message returned by {@link #next()} as the message to acknowledge, so acknowledging part
+ * way through only acknowledges what has been handed out; the rest is redelivered.  Acknowledging, rolling back or
+ * calling getMessage on the consumer closes the stream.  The connection goes back to the pool once the stream is drained
+ * or closed.
+ *
+ * Instances are created via {@link AMQConsumer#getMessageStream()}.
+ *
+ */
+public class MessageStream implements Iterator<Message>, Closeable, EventHubResult {
+
+	private final AMQConsumer consumer;
+	private final CloseableHttpResponse response;
+	private final JsonParser parser;
+	private final ObjectReader messageReader;
+	private final Iterator<Message> decodedMessages;
+
+	private Message next = null;
+	private boolean inMessages = false;
+	private boolean drained = false;
+	private boolean closed = false;
+	private boolean hasAdditionalMessage = false;
+	private int messageCount = 0;
+	private int deliveredCount = 0;
+	private String lastMessageId = null;
+	private int attempts = 1;
+
+	/**
+	 * Stream over a JSON response, the parser must be positioned before the opening brace of the envelope.
+	 */
+	protected MessageStream(AMQConsumer consumer, CloseableHttpResponse response, JsonParser parser, ObjectReader messageReader) {
+		this.consumer = consumer;
+		this.response = response;
+		this.parser = parser;
+		this.messageReader = messageReader;
+		this.decodedMessages = null;
+	}
+
+	/**
+	 * Stream over a response that has already been decoded.
+	 */
+	protected MessageStream(AMQConsumer consumer, MessageResult messageResult) {
+		this.consumer = consumer;
+		this.response = null;
+		this.parser = null;
+		this.messageReader = null;
+		this.decodedMessages = messageResult.getMessages() != null ? messageResult.getMessages().iterator() : Collections.<Message>emptyIterator();
+		this.hasAdditionalMessage = messageResult.hasAdditionalMessage();
+		this.messageCount = messageResult.getMessageCount();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(next == null && !drained && !closed) {
+			try {
+				//Duplicates are passed over, the acknowledgement of a later message covers them
+				while((next = readNext()) != null && consumer.skipDuplicate(next)) {
+					next = null;
+				}
+			}
+			catch(IOException e) {
+				close();
+				throw new UncheckedIOException("Unable to read the next message.", e);
+			}
+		}
+
+		return next != null;
+	}
+
+	@Override
+	public Message next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		Message message = next;
+		next = null;
+		deliveredCount++;
+		lastMessageId = message.getMessageId();
+		consumer.delivered(message);
+
+		return message;
+	}
+
+	/**
+	 * @return a sequential {@link Stream} over the remaining messages that closes this object when it is closed
+	 */
+	public Stream<Message> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+	}
+
+	private Message readNext() throws IOException {
+		if(decodedMessages != null) {
+			if(decodedMessages.hasNext()) {
+				return decodedMessages.next();
+			}
+
+			drained = true;
+			return null;
+		}
+
+		if(!inMessages) {
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Expected the start of the message envelope.");
+			}
+
+			readEnvelopeFields();
+		}
+
+		if(inMessages) {
+			JsonToken token = parser.nextToken();
+
+			if(token == JsonToken.START_OBJECT) {
+				return messageReader.readValue(parser);
+			}
+			else if(token != JsonToken.END_ARRAY) {
+				throw new IOException("Expected a message but found " + token);
+			}
+
+			inMessages = false;
+			readEnvelopeFields();
+		}
+
+		//The envelope is finished, hand the connection back
+		drained = true;
+		release();
+
+		return null;
+	}
+
+	/**
+	 * Reads envelope fields until the messages array starts or the envelope ends.
+	 */
+	private void readEnvelopeFields() throws IOException {
+		JsonToken token;
+
+		while((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			token = parser.nextToken();
+
+			if("messages".equals(field) && token == JsonToken.START_ARRAY) {
+				inMessages = true;
+				return;
+			}
+			else if("hasAdditionalMessage".equals(field)) {
+				hasAdditionalMessage = parser.getValueAsBoolean();
+			}
+			else if("count".equals(field)) {
+				messageCount = parser.getValueAsInt();
+			}
+			else {
+				parser.skipChildren();
+			}
+		}
+
+		if(token != JsonToken.END_OBJECT) {
+			throw new IOException("Expected the end of the message envelope but found " + token);
+		}
+	}
+
+	private void release() {
+		if(response != null) {
+			try {
+				parser.close();
+
+				//Drain what is left so the connection can be reused, then release it
+				EntityUtils.consume(response.getEntity());
+				response.close();
+			}
+			catch(IOException e) {
+				AMQClient.logger.debug("Error releasing the response: {}", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Stops reading and releases the connection.  Messages that were not returned by {@link #next()} are not
+	 * acknowledged and will be redelivered.
+	 */
+	@Override
+	public void close() {
+		if(!closed) {
+			closed = true;
+			next = null;
+
+			if(!drained) {
+				release();
+			}
+			consumer.streamClosed(this);
+		}
+	}
+
+	public boolean isDrained() {
+		return drained;
+	}
+
+	/**
+	 * @return id of the last message returned by {@link #next()}, which is what the consumer will acknowledge
+	 */
+	public String getLastMessageId() {
+		return lastMessageId;
+	}
+
+	/**
+	 * @return true if messages are read from the response as they are requested, false if it was decoded up front
+	 */
+	protected boolean isIncremental() {
+		return parser != null;
+	}
+
+	/**
+	 * @return number of messages returned by {@link #next()} so far
+	 */
+	public int getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * @return the count sent by the server.  For JSON responses this is only known once it has been read, which is
+	 * guaranteed after the stream is drained.
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return whether the server has more messages waiting.  For JSON responses this is only known once it has been
+	 * read, which is guaranteed after the stream is drained.
+	 */
+	public boolean hasAdditionalMessage() {
+		return hasAdditionalMessage;
+	}
+
+	/**
+	 * @return number of requests made to open this stream, including retries
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	protected void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+}
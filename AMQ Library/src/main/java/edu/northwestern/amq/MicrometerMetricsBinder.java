@@ -0,0 +1,171 @@
+package edu.northwestern.amq;
+
+import java.util.Locale;
+
+import edu.northwestern.amq.ClientMetrics.Operation;
+import edu.northwestern.amq.ClientMetrics.Outcome;
+import edu.northwestern.amq.ClientMetrics.Recorder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Publishes the {@link ClientMetrics} of a factory to a Micrometer registry.  The meters read the live counters when
+ * the registry is scraped, nothing is recorded twice.  Micrometer is an optional dependency of the library, it only
+ * has to be on the classpath of applications using this class.
+ *
+ * <pre>
+ * new MicrometerMetricsBinder(factory.getMetrics()).bindTo(registry);
+ * </pre>
+ *
+ * Every meter is tagged with the operation: amq.calls (also tagged with the outcome), amq.attempts, amq.retried.calls,
+ * amq.in.flight, amq.latency (a gauge per percentile, tagged with the quantile), amq.latency.max, amq.payload and
+ * amq.fetch.messages / amq.fetch.empty for gets.
+ *
+ * Consumer lag meters are tagged with the queue, as in "dev/my.queue", and added as queues are consumed:
+ * amq.consumer.lag (a gauge per percentile), amq.consumer.lag.current (largest lag of the latest get),
+ * amq.consumer.messages and amq.consumer.redelivered.
+ *
+ * An {@link IdempotencyCache} is not part of the factory, {@link #bindTo(MeterRegistry, String, IdempotencyCache)}
+ * publishes one tagged with the given name: amq.dedup.checked, amq.dedup.duplicates (tagged with the match, recent or
+ * window) and amq.dedup.hit.rate.
+ *
+ */
+public class MicrometerMetricsBinder implements MeterBinder {
+
+	private final ClientMetrics metrics;
+	private final Iterable<Tag> tags;
+
+	public MicrometerMetricsBinder(ClientMetrics metrics) {
+		this(metrics, Tags.empty());
+	}
+
+	/**
+	 * @param tags added to every meter, to tell apart the factories of an application
+	 */
+	public MicrometerMetricsBinder(ClientMetrics metrics, Iterable<Tag> tags) {
+		this.metrics = metrics;
+		this.tags = tags;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		for(Operation operation : Operation.values()) {
+			Recorder recorder = metrics.getRecorder(operation);
+			Tags operationTags = Tags.concat(tags, "operation", operation.name().toLowerCase(Locale.ROOT));
+
+			for(Outcome outcome : Outcome.values()) {
+				FunctionCounter.builder("amq.calls", recorder, r -> r.getOutcomeCount(outcome))
+						.tags(operationTags.and("outcome", outcome.name().toLowerCase(Locale.ROOT)))
+						.description("Completed calls, however many attempts each took")
+						.register(registry);
+			}
+
+			FunctionCounter.builder("amq.attempts", recorder, r -> r.getAttempts().getSum())
+					.tags(operationTags)
+					.description("Requests sent, retries included")
+					.register(registry);
+
+			FunctionCounter.builder("amq.retried.calls", recorder, Recorder::getRetriedCallCount)
+					.tags(operationTags)
+					.description("Calls that took more than one attempt")
+					.register(registry);
+
+			Gauge.builder("amq.in.flight", recorder, Recorder::getInFlight)
+					.tags(operationTags)
+					.description("Calls started and not completed yet")
+					.register(registry);
+
+			for(double percentile : OperationStats.PERCENTILES) {
+				Gauge.builder("amq.latency", recorder, r -> r.getLatencyNanos().getValueAtPercentile(percentile) / 1e9)
+						.tags(operationTags.and("quantile", Double.toString(percentile)))
+						.baseUnit("seconds")
+						.description("Call latency, rate limit waits and retries included")
+						.register(registry);
+			}
+
+			Gauge.builder("amq.latency.max", recorder, r -> r.getLatencyNanos().getMax() / 1e9)
+					.tags(operationTags)
+					.baseUnit("seconds")
+					.register(registry);
+
+			FunctionCounter.builder("amq.payload", recorder, r -> r.getPayloadBytes().getSum())
+					.tags(operationTags)
+					.baseUnit("bytes")
+					.description("Message bodies, before compression")
+					.register(registry);
+		}
+
+		Recorder get = metrics.getRecorder(Operation.GET);
+
+		FunctionCounter.builder("amq.fetch.messages", get, r -> r.getMessagesPerFetch().getSum())
+				.tags(tags)
+				.description("Messages returned by gets")
+				.register(registry);
+
+		FunctionCounter.builder("amq.fetch.empty", get, Recorder::getEmptyFetchCount)
+				.tags(tags)
+				.description("Gets that found the queue empty")
+				.register(registry);
+
+		metrics.addLagListener(consumerLag -> bindTo(registry, consumerLag));
+	}
+
+	private void bindTo(MeterRegistry registry, ConsumerLag consumerLag) {
+		Tags queueTags = Tags.concat(tags, "queue", consumerLag.getName());
+
+		for(double percentile : OperationStats.PERCENTILES) {
+			Gauge.builder("amq.consumer.lag", consumerLag, l -> l.getLagMillis().getValueAtPercentile(percentile) / 1e3)
+					.tags(queueTags.and("quantile", Double.toString(percentile)))
+					.baseUnit("seconds")
+					.description("Time from the delivery date of a message until it was received")
+					.register(registry);
+		}
+
+		Gauge.builder("amq.consumer.lag.current", consumerLag, l -> l.getCurrentLagMillis() / 1e3)
+				.tags(queueTags)
+				.baseUnit("seconds")
+				.description("Largest lag of the latest get, zero if it found the queue empty")
+				.register(registry);
+
+		FunctionCounter.builder("amq.consumer.messages", consumerLag, ConsumerLag::getMessageCount)
+				.tags(queueTags)
+				.description("Messages received")
+				.register(registry);
+
+		FunctionCounter.builder("amq.consumer.redelivered", consumerLag, ConsumerLag::getRedeliveredCount)
+				.tags(queueTags)
+				.description("Messages received that had been delivered before")
+				.register(registry);
+	}
+
+	/**
+	 * Publishes the hit rate of the cache, tagged with the name, usually the queue it deduplicates.
+	 */
+	public void bindTo(MeterRegistry registry, String name, IdempotencyCache cache) {
+		Tags cacheTags = Tags.concat(tags, "cache", name);
+
+		FunctionCounter.builder("amq.dedup.checked", cache, c -> c.getStats().getCheckedCount())
+				.tags(cacheTags)
+				.description("Messages checked against the cache")
+				.register(registry);
+
+		FunctionCounter.builder("amq.dedup.duplicates", cache, c -> c.getStats().getRecentHitCount())
+				.tags(cacheTags.and("match", "recent"))
+				.description("Messages skipped as processed before")
+				.register(registry);
+
+		FunctionCounter.builder("amq.dedup.duplicates", cache, c -> c.getStats().getWindowHitCount())
+				.tags(cacheTags.and("match", "window"))
+				.description("Messages skipped as processed before")
+				.register(registry);
+
+		Gauge.builder("amq.dedup.hit.rate", cache, c -> c.getStats().getHitRate())
+				.tags(cacheTags)
+				.description("Share of the messages checked that were skipped")
+				.register(registry);
+	}
+}
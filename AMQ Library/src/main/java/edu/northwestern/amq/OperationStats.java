@@ -0,0 +1,172 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.northwestern.amq.ClientMetrics.Operation;
+import edu.northwestern.amq.ClientMetrics.Outcome;
+
+/**
+ * Point in time view of one operation of {@link ClientMetrics}.  Percentiles are within 12.5% of the recorded values.
+ *
+ */
+public class OperationStats {
+
+	protected static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Operation operation;
+	private final long callCount;
+	private final long inFlight;
+	private final long retriedCallCount;
+	private final long[] outcomeCounts;
+	private final long[] latencyNanos;
+	private final double meanLatencyNanos;
+	private final long maxLatencyNanos;
+	private final long attemptCount;
+	private final long maxAttempts;
+	private final long payloadCount;
+	private final long payloadBytes;
+	private final long maxPayloadBytes;
+	private final long fetchCount;
+	private final long fetchedMessageCount;
+	private final long maxMessagesPerFetch;
+	private final long emptyFetchCount;
+
+	protected OperationStats(Operation operation, long callCount, long inFlight, long retriedCallCount, long[] outcomeCounts, long[] latencyNanos,
+			double meanLatencyNanos, long maxLatencyNanos, long attemptCount, long maxAttempts, long payloadCount, long payloadBytes, long maxPayloadBytes,
+			long fetchCount, long fetchedMessageCount, long maxMessagesPerFetch, long emptyFetchCount) {
+		this.operation = operation;
+		this.callCount = callCount;
+		this.inFlight = inFlight;
+		this.retriedCallCount = retriedCallCount;
+		this.outcomeCounts = outcomeCounts;
+		this.latencyNanos = latencyNanos;
+		this.meanLatencyNanos = meanLatencyNanos;
+		this.maxLatencyNanos = maxLatencyNanos;
+		this.attemptCount = attemptCount;
+		this.maxAttempts = maxAttempts;
+		this.payloadCount = payloadCount;
+		this.payloadBytes = payloadBytes;
+		this.maxPayloadBytes = maxPayloadBytes;
+		this.fetchCount = fetchCount;
+		this.fetchedMessageCount = fetchedMessageCount;
+		this.maxMessagesPerFetch = maxMessagesPerFetch;
+		this.emptyFetchCount = emptyFetchCount;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return number of completed calls, however many attempts each took
+	 */
+	public long getCallCount() {
+		return callCount;
+	}
+
+	/**
+	 * @return number of calls started and not completed yet
+	 */
+	public long getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return number of calls that took more than one attempt
+	 */
+	public long getRetriedCallCount() {
+		return retriedCallCount;
+	}
+
+	/**
+	 * @return number of calls that ended with the outcome
+	 */
+	public long getOutcomeCount(Outcome outcome) {
+		return outcomeCounts[outcome.ordinal()];
+	}
+
+	public double getLatencyP50Millis() {
+		return latencyNanos[0] / NANOS_PER_MILLI;
+	}
+
+	public double getLatencyP90Millis() {
+		return latencyNanos[1] / NANOS_PER_MILLI;
+	}
+
+	public double getLatencyP99Millis() {
+		return latencyNanos[2] / NANOS_PER_MILLI;
+	}
+
+	public double getLatencyP999Millis() {
+		return latencyNanos[3] / NANOS_PER_MILLI;
+	}
+
+	public double getMeanLatencyMillis() {
+		return meanLatencyNanos / NANOS_PER_MILLI;
+	}
+
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * @return number of requests sent, retries included
+	 */
+	public long getAttemptCount() {
+		return attemptCount;
+	}
+
+	public double getMeanAttempts() {
+		return callCount == 0 ? 0 : (double) attemptCount / callCount;
+	}
+
+	public long getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return bytes of message bodies, sent for writes and received for gets when the server sent the length.  Bodies
+	 * are counted before compression, once per call.
+	 */
+	public long getPayloadBytes() {
+		return payloadBytes;
+	}
+
+	public double getMeanPayloadBytes() {
+		return payloadCount == 0 ? 0 : (double) payloadBytes / payloadCount;
+	}
+
+	public long getMaxPayloadBytes() {
+		return maxPayloadBytes;
+	}
+
+	/**
+	 * @return number of gets that returned a result, zero for the other operations
+	 */
+	public long getFetchCount() {
+		return fetchCount;
+	}
+
+	/**
+	 * @return number of messages returned by gets.  Streams are counted once they are closed.
+	 */
+	public long getFetchedMessageCount() {
+		return fetchedMessageCount;
+	}
+
+	public double getMeanMessagesPerFetch() {
+		return fetchCount == 0 ? 0 : (double) fetchedMessageCount / fetchCount;
+	}
+
+	public long getMaxMessagesPerFetch() {
+		return maxMessagesPerFetch;
+	}
+
+	/**
+	 * @return number of gets that found the queue empty
+	 */
+	public long getEmptyFetchCount() {
+		return emptyFetchCount;
+	}
+}
@@ -0,0 +1,174 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how long to wait before the next queue get.
+ *
+ * While the queue keeps answering 204 (no messages) the wait grows exponentially from the minimum to the maximum
+ * interval.  Each wait is randomised between half and all of the current interval so that many nodes polling the same
+ * queue drift apart instead of hitting the gateway in lockstep.  As soon as a get returns messages, or the server reports
+ * more are waiting, the next get happens immediately and the interval starts again from the minimum.
+ *
+ * A scheduler tracks one polling loop.  Use {@link #copy()} to get an independent scheduler with the same settings for
+ * another thread.
+ *
+ * Instances are created via the {@link PollSchedulerBuilder}.
+ *
+ */
+public class PollScheduler {
+
+	protected static final long DEFAULT_MIN_INTERVAL_MILLIS = 100;
+	protected static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000;
+	protected static final double DEFAULT_MULTIPLIER = 2.0;
+
+	private long minIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+	private long maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+	private double multiplier = DEFAULT_MULTIPLIER;
+
+	private long currentIntervalMillis = 0;
+	private long nextDelayMillis = 0;
+	private final long startNanos = System.nanoTime();
+
+	private final AtomicLong pollCount = new AtomicLong();
+	private final AtomicLong emptyPollCount = new AtomicLong();
+
+	public static class PollSchedulerBuilder {
+
+		private PollScheduler pollScheduler = new PollScheduler();
+
+		public static PollSchedulerBuilder create() {
+			return new PollSchedulerBuilder();
+		}
+
+		public PollScheduler build() {
+			//Verify the object was completely instantiated.
+			if(pollScheduler.minIntervalMillis <= 0 || pollScheduler.maxIntervalMillis < pollScheduler.minIntervalMillis) {
+				throw new IllegalArgumentException("Minimum interval must be greater than zero and cannot exceed the maximum interval.");
+			}
+
+			if(pollScheduler.multiplier < 1) {
+				throw new IllegalArgumentException("Multiplier cannot be less than one.");
+			}
+
+			return pollScheduler;
+		}
+
+		/**
+		 * Wait in milliseconds after the first empty poll.
+		 */
+		public PollSchedulerBuilder setMinIntervalMillis(long minIntervalMillis) {
+			pollScheduler.minIntervalMillis = minIntervalMillis;
+			return this;
+		}
+
+		/**
+		 * Upper bound in milliseconds of the wait between polls of an idle queue.
+		 */
+		public PollSchedulerBuilder setMaxIntervalMillis(long maxIntervalMillis) {
+			pollScheduler.maxIntervalMillis = maxIntervalMillis;
+			return this;
+		}
+
+		/**
+		 * Factor the interval grows by on every consecutive empty poll.
+		 */
+		public PollSchedulerBuilder setMultiplier(double multiplier) {
+			pollScheduler.multiplier = multiplier;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link PollSchedulerBuilder}
+	 */
+	private PollScheduler() {
+
+	}
+
+	/**
+	 * @return a scheduler with the same settings and no history
+	 */
+	public PollScheduler copy() {
+		PollScheduler copy = new PollScheduler();
+		copy.minIntervalMillis = minIntervalMillis;
+		copy.maxIntervalMillis = maxIntervalMillis;
+		copy.multiplier = multiplier;
+
+		return copy;
+	}
+
+	/**
+	 * Waits as long as the previous result calls for, gets the next batch and records the result.
+	 *
+	 * @return {@link MessageResult}
+	 * @throws InterruptedException
+	 */
+	public MessageResult poll(AMQConsumer consumer) throws InterruptedException {
+		long delay = getNextDelayMillis();
+
+		if(delay > 0) {
+			Thread.sleep(delay);
+		}
+
+		MessageResult messageResult = consumer.getMessage();
+		record(messageResult);
+
+		return messageResult;
+	}
+
+	/**
+	 * Records the result of a get.
+	 *
+	 * @return milliseconds to wait before the next get
+	 */
+	public long record(MessageResult messageResult) {
+		return record(messageResult != null && messageResult.hasMessage(), messageResult != null && messageResult.hasAdditionalMessage());
+	}
+
+	/**
+	 * Records the result of a get.
+	 *
+	 * @return milliseconds to wait before the next get
+	 */
+	public synchronized long record(boolean hasMessage, boolean hasAdditionalMessage) {
+		pollCount.incrementAndGet();
+
+		if(hasMessage || hasAdditionalMessage) {
+			currentIntervalMillis = 0;
+			nextDelayMillis = 0;
+
+			return 0;
+		}
+
+		emptyPollCount.incrementAndGet();
+
+		currentIntervalMillis = currentIntervalMillis == 0 ? minIntervalMillis : Math.min(maxIntervalMillis, (long) (currentIntervalMillis * multiplier));
+
+		//Equal jitter, keeps at least half the interval so an idle queue is never hit in a tight loop
+		long half = currentIntervalMillis / 2;
+		nextDelayMillis = half + ThreadLocalRandom.current().nextLong(currentIntervalMillis - half + 1);
+
+		return nextDelayMillis;
+	}
+
+	/**
+	 * @return milliseconds to wait before the next get, zero when the last get found messages
+	 */
+	public synchronized long getNextDelayMillis() {
+		return nextDelayMillis;
+	}
+
+	public long getMinIntervalMillis() {
+		return minIntervalMillis;
+	}
+
+	public long getMaxIntervalMillis() {
+		return maxIntervalMillis;
+	}
+
+	public synchronized PollStats getStats() {
+		return new PollStats(pollCount.get(), emptyPollCount.get(), currentIntervalMillis, System.nanoTime() - startNanos);
+	}
+}
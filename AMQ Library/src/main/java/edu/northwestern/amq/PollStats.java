@@ -0,0 +1,47 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time view of a {@link PollScheduler}.
+ *
+ */
+public class PollStats {
+
+	private final long pollCount;
+	private final long emptyPollCount;
+	private final long currentIntervalMillis;
+	private final long elapsedNanos;
+
+	protected PollStats(long pollCount, long emptyPollCount, long currentIntervalMillis, long elapsedNanos) {
+		this.pollCount = pollCount;
+		this.emptyPollCount = emptyPollCount;
+		this.currentIntervalMillis = currentIntervalMillis;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getPollCount() {
+		return pollCount;
+	}
+
+	/**
+	 * @return number of polls answered with no messages
+	 */
+	public long getEmptyPollCount() {
+		return emptyPollCount;
+	}
+
+	/**
+	 * @return current backoff interval in milliseconds, zero when the last poll found messages
+	 */
+	public long getCurrentIntervalMillis() {
+		return currentIntervalMillis;
+	}
+
+	/**
+	 * @return polls per second since the scheduler was created
+	 */
+	public double getPollRate() {
+		return elapsedNanos == 0 ? 0 : pollCount / ((double) elapsedNanos / TimeUnit.SECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,63 @@
+package edu.northwestern.amq;
+
+/**
+ * Point in time view of a {@link PrefetchingConsumer}.
+ *
+ */
+public class PrefetchStats {
+
+	private final int maxDepth;
+	private final int bufferDepth;
+	private final long fetchCount;
+	private final long emptyFetchCount;
+	private final long hitCount;
+	private final long missCount;
+
+	protected PrefetchStats(int maxDepth, int bufferDepth, long fetchCount, long emptyFetchCount, long hitCount, long missCount) {
+		this.maxDepth = maxDepth;
+		this.bufferDepth = bufferDepth;
+		this.fetchCount = fetchCount;
+		this.emptyFetchCount = emptyFetchCount;
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return number of acknowledged batches currently waiting in the buffer
+	 */
+	public int getBufferDepth() {
+		return bufferDepth;
+	}
+
+	public long getFetchCount() {
+		return fetchCount;
+	}
+
+	public long getEmptyFetchCount() {
+		return emptyFetchCount;
+	}
+
+	/**
+	 * @return number of getMessage calls that got a batch, already waiting or arriving within the timeout
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return number of getMessage calls that returned an empty result
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public double getHitRatio() {
+		long total = hitCount + missCount;
+
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+}
@@ -0,0 +1,170 @@
+package edu.northwestern.amq;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches batches ahead of the application on a background thread and keeps up to N of them in memory, so the next
+ * batch is usually already waiting when the application finishes the current one.
+ *
+ * The gateway will not hand out the next batch until the previous one has been acknowledged, so the prefetch thread
+ * acknowledges each batch as soon as it has been fetched, before placing it in the buffer.  <b>This relaxes the delivery guarantee of
+ * the queue</b>: a batch is removed from the queue before the application has processed it, and batches still in the
+ * buffer when the process dies are lost, as is the batch the application is processing.  A buffer slot is freed as
+ * soon as the application takes a batch, so up to N + 1 batches (the buffer depth plus the one in hand) are exposed
+ * this way.  Use the plain {@link AMQConsumer} when every message must be processed before it is acknowledged.
+ *
+ * Instances are created via {@link AMQConsumer.ConsumerBuilder#buildPrefetching()}.
+ *
+ */
+public class PrefetchingConsumer implements Closeable {
+
+	protected static final int DEFAULT_PREFETCH_DEPTH = 2;
+
+	private final AMQConsumer consumer;
+	private final int depth;
+	private final PollScheduler pollScheduler;
+	private final BlockingQueue<MessageResult> buffer = new LinkedBlockingQueue<MessageResult>();
+	private final Semaphore slots;
+	private final Thread fetchThread;
+	private volatile boolean closed = false;
+
+	private final AtomicLong fetchCount = new AtomicLong();
+	private final AtomicLong emptyFetchCount = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	protected PrefetchingConsumer(AMQConsumer consumer, int depth, PollScheduler pollScheduler) {
+		this.consumer = consumer;
+		this.depth = depth;
+		this.pollScheduler = pollScheduler;
+		this.slots = new Semaphore(depth);
+
+		fetchThread = AMQClient.daemonThreadFactory("amq-prefetch-" + consumer.topic).newThread(this::fetchLoop);
+		fetchThread.start();
+	}
+
+	/**
+	 * Returns the next buffered batch without waiting.  The batch has already been acknowledged.
+	 *
+	 * @return {@link MessageResult}, empty if nothing has been prefetched
+	 */
+	public MessageResult getMessage() {
+		MessageResult messageResult = buffer.poll();
+
+		return taken(messageResult) ? messageResult : new MessageResult();
+	}
+
+	/**
+	 * Returns the next buffered batch, waiting up to the timeout for one to arrive.  The batch has already been acknowledged.
+	 *
+	 * @return {@link MessageResult}, empty if nothing arrived in time
+	 * @throws InterruptedException
+	 */
+	public MessageResult getMessage(long timeout, TimeUnit unit) throws InterruptedException {
+		//A batch that arrives within the timeout is a hit, only a call that gets nothing is a miss
+		MessageResult messageResult = buffer.poll(timeout, unit);
+
+		return taken(messageResult) ? messageResult : new MessageResult();
+	}
+
+	private boolean taken(MessageResult messageResult) {
+		if(messageResult != null) {
+			hitCount.incrementAndGet();
+			slots.release();
+
+			return true;
+		}
+
+		missCount.incrementAndGet();
+
+		return false;
+	}
+
+	private void fetchLoop() {
+		while(!closed) {
+			try {
+				//Only fetch when there is room, so at most depth batches are buffered besides the one the application holds
+				slots.acquire();
+
+				MessageResult messageResult = consumer.getMessage();
+				fetchCount.incrementAndGet();
+				long delay = pollScheduler.record(messageResult);
+
+				if(messageResult == null || !messageResult.hasMessage()) {
+					emptyFetchCount.incrementAndGet();
+					slots.release();
+
+					Thread.sleep(delay);
+					continue;
+				}
+
+				if(!consumer.isAutoAcknowledge()) {
+					AcknowledgeResult ackResult = consumer.acknowledgeMessage();
+
+					if(!ackResult.isSuccess()) {
+						//The batch is still on the queue and will be delivered again, do not hand it out twice
+						AMQClient.logger.debug("Unable to acknowledge prefetched batch, Status Code: {}", ackResult.getStatusCode());
+
+						consumer.rollback();
+						slots.release();
+						continue;
+					}
+				}
+
+				buffer.add(messageResult);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch(RuntimeException e) {
+				AMQClient.logger.debug("Error prefetching messages: {}", e.getMessage(), e);
+
+				slots.release();
+
+				if(consumer.isClosed()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops prefetching.  Batches already in the buffer have been acknowledged and can still be read with getMessage.
+	 * The wrapped consumer is closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		fetchThread.interrupt();
+
+		try {
+			fetchThread.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		consumer.close();
+	}
+
+	public AMQConsumer getConsumer() {
+		return consumer;
+	}
+
+	/**
+	 * @return backoff and poll rate of the prefetch thread
+	 */
+	public PollStats getPollStats() {
+		return pollScheduler.getStats();
+	}
+
+	public PrefetchStats getStats() {
+		return new PrefetchStats(depth, buffer.size(), fetchCount.get(), emptyFetchCount.get(), hitCount.get(), missCount.get());
+	}
+}
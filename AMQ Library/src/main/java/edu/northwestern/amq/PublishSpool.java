@@ -0,0 +1,514 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of messages waiting to be published, kept in memory-mapped segment files of a fixed size in one
+ * directory.  A record is its length, the CRC32 of its bytes and the bytes, and every append writes a zero length
+ * after the record so a reader knows where the log ends.  The length is written last, so a record torn by a crash is
+ * either invisible or fails its CRC.
+ *
+ * The position of the next record to send is kept in a small checkpoint file.  Segments before it are deleted once
+ * the reader leaves them, and only the segment being written has to be scanned on open, so recovery reads at most one
+ * segment however much is spooled.  Records sent but not yet in a forced checkpoint are sent again after a crash.
+ *
+ * A directory is locked by the spool that opened it, two publishers cannot share one.
+ *
+ */
+public class PublishSpool {
+
+	/**
+	 * When appends and the checkpoint are forced to disk.
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * After every append and every record sent, nothing is lost if the machine crashes.
+		 */
+		ALWAYS,
+		/**
+		 * Periodically, a machine crash loses at most the interval.  A crash of the process alone loses nothing.
+		 */
+		INTERVAL,
+		/**
+		 * When the operating system writes the pages back.
+		 */
+		NEVER
+	}
+
+	private static final String SEGMENT_SUFFIX = ".segment";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String LOCK_FILE = "lock";
+	private static final int HEADER_BYTES = 8;
+	private static final int END_MARKER_BYTES = 4;
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final long maxBytes;
+	private final FsyncPolicy fsyncPolicy;
+
+	private final FileChannel lockChannel;
+	private final FileLock directoryLock;
+	private final MappedByteBuffer checkpoint;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+
+	private long writeSegment;
+	private int writePosition;
+	private MappedByteBuffer writeBuffer;
+	private long readSegment;
+	private int readPosition;
+	private MappedByteBuffer readBuffer;
+	private int peekedBytes = 0;
+	private boolean closed = false;
+
+	private long appendedCount = 0;
+	private long rejectedCount = 0;
+
+	/**
+	 * Opens the spool in the directory, creating it if needed, and recovers the records a previous spool left there.
+	 *
+	 * @throws IOException if the directory cannot be used
+	 * @throws IllegalStateException if another spool has the directory open
+	 */
+	protected PublishSpool(Path directory, int segmentBytes, long maxBytes, FsyncPolicy fsyncPolicy) throws IOException, IllegalStateException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.fsyncPolicy = fsyncPolicy;
+
+		Files.createDirectories(directory);
+
+		lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+		FileLock acquired = null;
+		try {
+			acquired = lockChannel.tryLock();
+		}
+		catch(OverlappingFileLockException e) {
+			//Held by this JVM, handled below
+		}
+
+		if(acquired == null) {
+			lockChannel.close();
+			throw new IllegalStateException("Spool directory " + directory + " is in use.");
+		}
+
+		directoryLock = acquired;
+
+		try {
+			checkpoint = map(directory.resolve(CHECKPOINT_FILE), 16);
+			recover();
+		}
+		catch(IOException | RuntimeException e) {
+			directoryLock.release();
+			lockChannel.close();
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer map(Path file, int size) throws IOException {
+		//The channel can be closed once mapped, the mapping stays valid until it is garbage collected
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private Path segmentFile(long segment) {
+		return directory.resolve(String.format("%019d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private MappedByteBuffer mapSegment(long segment) throws IOException {
+		return map(segmentFile(segment), segmentBytes);
+	}
+
+	private void recover() throws IOException {
+		TreeSet<Long> segments = new TreeSet<Long>();
+
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+
+				try {
+					segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				}
+				catch(NumberFormatException e) {
+					AMQClient.logger.warn("Ignoring unexpected file {} in the spool directory.", file);
+				}
+			}
+		}
+
+		long checkpointSegment = checkpoint.getLong(0);
+		int checkpointPosition = checkpoint.getInt(8);
+
+		if(segments.isEmpty()) {
+			readSegment = Math.max(0, checkpointSegment);
+			readPosition = 0;
+		}
+		else if(segments.contains(checkpointSegment) && checkpointPosition >= 0 && checkpointPosition <= segmentBytes) {
+			readSegment = checkpointSegment;
+			readPosition = checkpointPosition;
+		}
+		else {
+			//The checkpoint does not point in the log, send everything rather than lose anything
+			readSegment = segments.first();
+			readPosition = 0;
+		}
+
+		//Segments before the checkpoint were sent before the previous spool could delete them
+		for(Long segment : segments.headSet(readSegment)) {
+			deleteSegment(segment);
+		}
+
+		writeSegment = segments.isEmpty() ? readSegment : segments.last();
+		writeBuffer = mapSegment(writeSegment);
+		readBuffer = readSegment == writeSegment ? writeBuffer : mapSegment(readSegment);
+
+		//Find the end of the log, a record torn by a crash ends it
+		writePosition = 0;
+		int length;
+
+		while((length = validRecordLength(writeBuffer, writePosition)) > 0) {
+			writePosition += HEADER_BYTES + length;
+		}
+
+		if(readSegment == writeSegment && readPosition > writePosition) {
+			readPosition = writePosition;
+		}
+
+		if(writePosition + END_MARKER_BYTES <= segmentBytes) {
+			writeBuffer.putInt(writePosition, 0);
+		}
+
+		saveCheckpoint();
+
+		if(writeSegment > readSegment || writePosition > readPosition) {
+			AMQClient.logger.info("Recovered {} spooled bytes in {}.", getPendingBytes(), directory);
+		}
+	}
+
+	/**
+	 * @return length of the record at the position, zero if there is none or it is not intact
+	 */
+	private int validRecordLength(ByteBuffer buffer, int position) {
+		if(position + HEADER_BYTES > segmentBytes) {
+			return 0;
+		}
+
+		int length = buffer.getInt(position);
+
+		if(length <= 0 || length > segmentBytes - position - HEADER_BYTES) {
+			return 0;
+		}
+
+		return checksum(buffer, position + HEADER_BYTES, length) == buffer.getInt(position + 4) ? length : 0;
+	}
+
+	private static int checksum(ByteBuffer buffer, int position, int length) {
+		ByteBuffer record = buffer.duplicate();
+		record.limit(position + length).position(position);
+
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		return (int) crc.getValue();
+	}
+
+	private void deleteSegment(long segment) {
+		try {
+			Files.deleteIfExists(segmentFile(segment));
+		}
+		catch(IOException e) {
+			AMQClient.logger.warn("Unable to delete spool segment {}.", segmentFile(segment), e);
+		}
+	}
+
+	private void saveCheckpoint() {
+		checkpoint.putLong(0, readSegment);
+		checkpoint.putInt(8, readPosition);
+	}
+
+	private void checkOpen() throws IllegalStateException {
+		if(closed) {
+			throw new IllegalStateException("Spool has been closed.");
+		}
+	}
+
+	/**
+	 * Appends the message to the end of the log.
+	 *
+	 * @return false if the log is at its maximum size
+	 * @throws IllegalArgumentException if the message does not fit in a segment
+	 * @throws IllegalStateException if the spool has been closed
+	 * @throws IOException if a new segment cannot be created
+	 */
+	protected boolean append(byte[] message) throws IllegalArgumentException, IllegalStateException, IOException {
+		int recordBytes = HEADER_BYTES + message.length;
+
+		if(recordBytes + END_MARKER_BYTES > segmentBytes) {
+			throw new IllegalArgumentException("Message of " + message.length + " bytes does not fit in a spool segment of " + segmentBytes + " bytes.");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(message);
+
+		lock.lock();
+		try {
+			checkOpen();
+
+			if(writePosition + recordBytes + END_MARKER_BYTES > segmentBytes) {
+				if((writeSegment - readSegment + 2) * segmentBytes > maxBytes) {
+					rejectedCount++;
+					return false;
+				}
+
+				if(fsyncPolicy != FsyncPolicy.NEVER) {
+					writeBuffer.force();
+				}
+
+				writeBuffer = mapSegment(writeSegment + 1);
+				writeSegment++;
+				writePosition = 0;
+			}
+
+			ByteBuffer record = writeBuffer.duplicate();
+			record.position(writePosition + HEADER_BYTES);
+			record.put(message);
+
+			writeBuffer.putInt(writePosition + recordBytes, 0);
+			writeBuffer.putInt(writePosition + 4, (int) crc.getValue());
+			writeBuffer.putInt(writePosition, message.length);
+			writePosition += recordBytes;
+			appendedCount++;
+
+			if(fsyncPolicy == FsyncPolicy.ALWAYS) {
+				writeBuffer.force();
+			}
+
+			appended.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Waits for the oldest record.  It stays the oldest until it is {@link #commit() committed}.
+	 *
+	 * @return the record, null if there was none within the timeout or the spool was closed
+	 * @throws IOException if the next segment cannot be opened
+	 */
+	protected byte[] peek(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+		long remaining = unit.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while(!closed) {
+				int length = readSegment == writeSegment && readPosition >= writePosition ? 0 : validRecordLength(readBuffer, readPosition);
+
+				if(length > 0) {
+					byte[] message = new byte[length];
+					ByteBuffer record = readBuffer.duplicate();
+					record.position(readPosition + HEADER_BYTES);
+					record.get(message);
+					peekedBytes = HEADER_BYTES + length;
+
+					return message;
+				}
+
+				if(readSegment < writeSegment) {
+					if(readPosition + END_MARKER_BYTES <= segmentBytes && readBuffer.getInt(readPosition) != 0) {
+						AMQClient.logger.warn("Skipping a damaged record and the rest of spool segment {}.", segmentFile(readSegment));
+					}
+
+					//Move to the next segment before dropping this one, so the checkpoint never points at a missing file
+					long finished = readSegment;
+					readBuffer = readSegment + 1 == writeSegment ? writeBuffer : mapSegment(readSegment + 1);
+					readSegment++;
+					readPosition = 0;
+					saveCheckpoint();
+					deleteSegment(finished);
+					continue;
+				}
+
+				if(remaining <= 0) {
+					return null;
+				}
+
+				remaining = appended.awaitNanos(remaining);
+			}
+
+			return null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the record returned by the latest {@link #peek(long, TimeUnit)}.
+	 */
+	protected void commit() {
+		lock.lock();
+		try {
+			if(peekedBytes == 0 || closed) {
+				return;
+			}
+
+			readPosition += peekedBytes;
+			peekedBytes = 0;
+			saveCheckpoint();
+
+			if(fsyncPolicy == FsyncPolicy.ALWAYS) {
+				checkpoint.force();
+			}
+
+			if(readSegment == writeSegment && readPosition >= writePosition) {
+				drained.signalAll();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every record appended so far has been committed.
+	 *
+	 * @return false if records were still pending after the timeout
+	 */
+	protected boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while(readSegment != writeSegment || readPosition < writePosition) {
+				if(remaining <= 0 || closed) {
+					return false;
+				}
+
+				remaining = drained.awaitNanos(remaining);
+			}
+
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forces the segment being written and the checkpoint to disk.  Runs without the lock, appends are not blocked by
+	 * the disk.
+	 */
+	protected void force() {
+		MappedByteBuffer buffer;
+
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+
+			buffer = writeBuffer;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		buffer.force();
+		checkpoint.force();
+	}
+
+	/**
+	 * Forces the log to disk unless the policy is {@link FsyncPolicy#NEVER} and releases the directory.  Records not
+	 * committed are sent by the next spool opened in the directory.
+	 */
+	protected void close() throws IOException {
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+
+			closed = true;
+			appended.signalAll();
+			drained.signalAll();
+
+			if(fsyncPolicy != FsyncPolicy.NEVER) {
+				writeBuffer.force();
+				checkpoint.force();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+
+		directoryLock.release();
+		lockChannel.close();
+	}
+
+	/**
+	 * @return bytes between the oldest record and the end of the log, unused space at the end of segments included
+	 */
+	protected long getPendingBytes() {
+		lock.lock();
+		try {
+			return (writeSegment - readSegment) * segmentBytes + writePosition - readPosition;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	protected int getSegmentCount() {
+		lock.lock();
+		try {
+			return (int) (writeSegment - readSegment + 1);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	protected long getAppendedCount() {
+		lock.lock();
+		try {
+			return appendedCount;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	protected long getRejectedCount() {
+		lock.lock();
+		try {
+			return rejectedCount;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+}
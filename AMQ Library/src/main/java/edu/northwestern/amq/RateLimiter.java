@@ -0,0 +1,215 @@
+package edu.northwestern.amq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that keeps clients under the gateway quota.
+ *
+ * The bucket refills at permitsPerSecond and holds up to burst permits, so short bursts go out at once while the
+ * sustained rate stays at the limit.  Every request sent to the gateway, retries included, takes one permit.  What
+ * happens when none is available depends on the {@link Mode}.
+ *
+ * A 429 response means the gateway quota is exhausted regardless of what the bucket thinks, so the client calls
+ * {@link #backOff(long)} with the Retry-After time and the bucket hands out no permits until it has passed.
+ *
+ * Enabled per API key and per topic via {@link EventHubClientFactory.FactoryBuilder#setApiKeyRateLimiter(RateLimiter)}
+ * and {@link EventHubClientFactory.FactoryBuilder#setTopicRateLimiter(RateLimiter)}.  Instances are created via the
+ * {@link LimiterBuilder}.
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * Status code of results for calls rejected by the limiter.  Not an HTTP status.
+	 */
+	public static final int LIMITED_STATUS_CODE = -2;
+
+	protected static final double DEFAULT_PERMITS_PER_SECOND = 50;
+	protected static final int DEFAULT_BURST = 50;
+	protected static final int DEFAULT_MAX_QUEUED = 1000;
+
+	/**
+	 * What happens to a call when no permit is available.
+	 */
+	public enum Mode {
+		/**
+		 * Wait for a permit however long it takes.  Blocking calls wait on the calling thread, asynchronous calls are
+		 * scheduled for when the permit is available.
+		 */
+		BLOCK,
+
+		/**
+		 * Reject the call straight away with {@link RateLimiter#LIMITED_STATUS_CODE}.
+		 */
+		FAIL_FAST,
+
+		/**
+		 * Wait like BLOCK, but reject the call when maxQueued calls are already waiting.
+		 */
+		QUEUE
+	}
+
+	private String name = "default";
+	private double permitsPerSecond = DEFAULT_PERMITS_PER_SECOND;
+	private int burst = DEFAULT_BURST;
+	private Mode mode = Mode.BLOCK;
+	private int maxQueued = DEFAULT_MAX_QUEUED;
+
+	//Bucket state, guarded by this
+	private double intervalNanos;
+	private double storedPermits;
+	private long nextFreeNanos;
+	private long permittedCount = 0;
+	private long rejectedCount = 0;
+	private long backOffCount = 0;
+
+	public static class LimiterBuilder {
+
+		private RateLimiter rateLimiter = new RateLimiter();
+
+		public static LimiterBuilder create() {
+			return new LimiterBuilder();
+		}
+
+		public RateLimiter build() {
+			//Verify the object was completely instantiated.
+			if(rateLimiter.permitsPerSecond <= 0 || rateLimiter.burst <= 0) {
+				throw new IllegalArgumentException("Permits per second and burst must be greater than zero.");
+			}
+
+			if(rateLimiter.mode == null || rateLimiter.maxQueued < 0) {
+				throw new IllegalArgumentException("Mode is required and max queued cannot be negative.");
+			}
+
+			rateLimiter.reset();
+
+			return rateLimiter;
+		}
+
+		public LimiterBuilder setPermitsPerSecond(double permitsPerSecond) {
+			rateLimiter.permitsPerSecond = permitsPerSecond;
+			return this;
+		}
+
+		/**
+		 * Maximum number of permits that can be used at once after a quiet period.
+		 */
+		public LimiterBuilder setBurst(int burst) {
+			rateLimiter.burst = burst;
+			return this;
+		}
+
+		public LimiterBuilder setMode(Mode mode) {
+			rateLimiter.mode = mode;
+			return this;
+		}
+
+		/**
+		 * Maximum number of calls waiting for a permit.  Only used in QUEUE mode.
+		 */
+		public LimiterBuilder setMaxQueued(int maxQueued) {
+			rateLimiter.maxQueued = maxQueued;
+			return this;
+		}
+	}
+
+	/**
+	 * Private construction so the only way to construct an instance of this object is via the {@link LimiterBuilder}
+	 */
+	private RateLimiter() {
+
+	}
+
+	/**
+	 * @return a full limiter with the same settings
+	 */
+	public RateLimiter copy(String name) {
+		RateLimiter copy = new RateLimiter();
+		copy.name = name;
+		copy.permitsPerSecond = permitsPerSecond;
+		copy.burst = burst;
+		copy.mode = mode;
+		copy.maxQueued = maxQueued;
+		copy.reset();
+
+		return copy;
+	}
+
+	private synchronized void reset() {
+		intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+		storedPermits = burst;
+		nextFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * Adds the permits earned since the bucket was last used.
+	 */
+	private void refill(long now) {
+		if(now - nextFreeNanos > 0) {
+			storedPermits = Math.min(burst, storedPermits + (now - nextFreeNanos) / intervalNanos);
+			nextFreeNanos = now;
+		}
+	}
+
+	/**
+	 * Takes a permit.  The caller must wait the returned time before sending the request.
+	 *
+	 * @return nanoseconds to wait, or a negative value if the call is rejected
+	 */
+	public synchronized long reserve() {
+		long now = System.nanoTime();
+		refill(now);
+
+		long waitNanos = Math.max(0, nextFreeNanos - now);
+
+		if((mode == Mode.FAIL_FAST && storedPermits < 1) || (mode == Mode.QUEUE && waitNanos / intervalNanos >= maxQueued)) {
+			rejectedCount++;
+			return -1;
+		}
+
+		//Use a stored permit if there is one, otherwise push the next free time back by one interval
+		double fromStored = Math.min(1, storedPermits);
+		storedPermits -= fromStored;
+		nextFreeNanos += (long) ((1 - fromStored) * intervalNanos);
+		permittedCount++;
+
+		return waitNanos;
+	}
+
+	/**
+	 * Hands out no permits for the given time, used when the gateway answers 429.
+	 */
+	public synchronized void backOff(long millis) {
+		long now = System.nanoTime();
+		refill(now);
+
+		storedPermits = 0;
+		nextFreeNanos = Math.max(nextFreeNanos, now + TimeUnit.MILLISECONDS.toNanos(millis));
+		backOffCount++;
+
+		AMQClient.logger.debug("Rate limiter {} backing off for {} milliseconds.", name, millis);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public synchronized long getPermittedCount() {
+		return permittedCount;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return number of times the gateway answered 429 and the limiter backed off
+	 */
+	public synchronized long getBackOffCount() {
+		return backOffCount;
+	}
+}
@@ -0,0 +1,142 @@
+package edu.northwestern.amq;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import edu.northwestern.amq.ClientMetrics.Operation;
+
+/**
+ * State of one call passed to the {@link RequestInterceptor} hooks.  Values describe the latest attempt and are
+ * updated before each hook, so they should be read in the hook rather than kept.  A call's hooks never run
+ * concurrently, the context does not need to be synchronized.
+ *
+ */
+public class RequestContext {
+
+	private final Operation operation;
+	private final HttpUriRequest request;
+	private final long startNanos;
+	private int attempt = 0;
+	private long attemptStartNanos = 0;
+	private long attemptEndNanos = 0;
+	private int statusCode = 0;
+	private HttpResponse response = null;
+	private Exception exception = null;
+	private Map<String, Object> attributes = null;
+
+	protected RequestContext(Operation operation, HttpUriRequest request, long startNanos) {
+		this.operation = operation;
+		this.request = request;
+		this.startNanos = startNanos;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the request being sent, its URI points at the endpoint of the latest attempt
+	 */
+	public HttpUriRequest getRequest() {
+		return request;
+	}
+
+	public String getMethod() {
+		return request.getMethod();
+	}
+
+	public URI getURI() {
+		return request.getURI();
+	}
+
+	/**
+	 * @return number of the latest attempt, starting at 1, zero if the call was rejected before the first one
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * @return status of the latest response, zero if none was received, negative if the call was rejected
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the latest response, null if the attempt failed without one
+	 */
+	public HttpResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return why the latest attempt failed without a response, null otherwise
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * @return nanoseconds since the call started, waiting for permits and between retries included
+	 */
+	public long getCallNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * @return nanoseconds the latest attempt spent on the gateway, from sending until the response headers arrived or
+	 * the attempt failed, zero before then
+	 */
+	public long getAttemptNanos() {
+		return attemptEndNanos - attemptStartNanos;
+	}
+
+	/**
+	 * @return a value stored by an earlier hook of the call, null if there is none
+	 */
+	public Object getAttribute(String name) {
+		return attributes != null ? attributes.get(name) : null;
+	}
+
+	/**
+	 * Stores a value for the later hooks of the call, such as a span or a start time.
+	 */
+	public void setAttribute(String name, Object value) {
+		if(attributes == null) {
+			attributes = new HashMap<String, Object>();
+		}
+
+		attributes.put(name, value);
+	}
+
+	protected void attemptStarted() {
+		attempt++;
+		statusCode = 0;
+		response = null;
+		exception = null;
+		attemptStartNanos = System.nanoTime();
+		attemptEndNanos = attemptStartNanos;
+	}
+
+	protected void responded(HttpResponse response) {
+		this.attemptEndNanos = System.nanoTime();
+		this.response = response;
+		this.statusCode = response.getStatusLine().getStatusCode();
+	}
+
+	protected void failed(Exception exception) {
+		this.attemptEndNanos = System.nanoTime();
+		this.exception = exception;
+	}
+
+	protected void rejected(int statusCode) {
+		this.statusCode = statusCode;
+		this.response = null;
+		this.exception = null;
+	}
+}
@@ -0,0 +1,49 @@
+package edu.northwestern.amq;
+
+/**
+ * Hooks into the lifecycle of every call made by the clients of an {@link EventHubClientFactory}, for tracing headers,
+ * timing or sampling slow calls.  Register interceptors with
+ * {@link EventHubClientFactory.FactoryBuilder#addInterceptor(RequestInterceptor)}; they are called in the order they
+ * were added, on the thread making the attempt, which for asynchronous calls is an I/O thread, so they must not block.
+ *
+ * The same {@link RequestContext} is passed to every hook of a call, across its attempts.  An exception thrown by an
+ * interceptor is logged and does not affect the call.  When no interceptor is registered the clients skip the hooks
+ * entirely and no context is created.
+ *
+ */
+public interface RequestInterceptor {
+
+	/**
+	 * Before each attempt is sent.  Headers can be set on {@link RequestContext#getRequest()}; the request is sent again
+	 * on retry, so use setHeader rather than addHeader.
+	 */
+	default void beforeSend(RequestContext context) {
+
+	}
+
+	/**
+	 * After each attempt, with the response status, or with the exception if no response was received.  Called before
+	 * the response body is read.
+	 */
+	default void afterResponse(RequestContext context) {
+
+	}
+
+	/**
+	 * When a failed attempt is about to be retried.
+	 *
+	 * @param delayMillis wait before the next attempt, zero when failing over to another endpoint
+	 */
+	default void onRetry(RequestContext context, long delayMillis) {
+
+	}
+
+	/**
+	 * When the call ends without a usable response: retries are exhausted, or it was rejected by the circuit breaker or a
+	 * rate limiter, in which case the status code is {@link CircuitBreaker#OPEN_STATUS_CODE} or
+	 * {@link RateLimiter#LIMITED_STATUS_CODE}.
+	 */
+	default void onGiveUp(RequestContext context) {
+
+	}
+}
@@ -0,0 +1,75 @@
+package edu.northwestern.amq;
+
+/**
+ * Limits retries to a fraction of requests so that an outage does not multiply the load on the gateway.
+ *
+ * Every request deposits ratio tokens and every retry withdraws one.  The balance starts at, and is capped at,
+ * minRetries, which lets a quiet client still retry a few times in a row while a busy one is held to the ratio.
+ *
+ */
+public class RetryBudget {
+
+	protected static final double DEFAULT_RATIO = 0.1;
+	protected static final int DEFAULT_MIN_RETRIES = 10;
+
+	private final double ratio;
+	private final double maxTokens;
+	private double tokens;
+	private long requestCount = 0;
+	private long retryCount = 0;
+	private long rejectedCount = 0;
+
+	public RetryBudget() {
+		this(DEFAULT_RATIO, DEFAULT_MIN_RETRIES);
+	}
+
+	/**
+	 * @param ratio retries allowed per request, for example 0.1 for one retry per ten requests
+	 * @param minRetries retries allowed in a burst regardless of the ratio
+	 */
+	public RetryBudget(double ratio, int minRetries) {
+		if(ratio < 0 || minRetries < 1) {
+			throw new IllegalArgumentException("Ratio cannot be negative and minRetries must be at least one.");
+		}
+
+		this.ratio = ratio;
+		this.maxTokens = minRetries;
+		this.tokens = minRetries;
+	}
+
+	public synchronized void requestStarted() {
+		requestCount++;
+		tokens = Math.min(maxTokens, tokens + ratio);
+	}
+
+	/**
+	 * @return true if a retry may be made, in which case it is charged to the budget
+	 */
+	public synchronized boolean tryAcquire() {
+		if(tokens >= 1) {
+			tokens--;
+			retryCount++;
+
+			return true;
+		}
+
+		rejectedCount++;
+
+		return false;
+	}
+
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	public synchronized long getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * @return number of retries refused because the budget was exhausted
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+}
@@ -0,0 +1,48 @@
+package edu.northwestern.amq;
+
+/**
+ * Decides whether and when a failed request (an I/O error or a 5xx response) is tried again.
+ *
+ * A policy is shared by every client of an {@link EventHubClientFactory} unless a client is given its own, so
+ * implementations must be thread safe.  The maximum number of attempts set on the builders is applied on top of the
+ * policy.
+ *
+ * @see ExponentialBackoffRetryPolicy
+ */
+public interface RetryPolicy {
+
+	/**
+	 * Longest Retry-After the default {@link #nextDelayMillis(int, long, long)} waits for.
+	 */
+	long MAX_RETRY_AFTER_MILLIS = 60 * 1000;
+
+	/**
+	 * Called once before the first attempt of every request.
+	 */
+	void requestStarted();
+
+	/**
+	 * @param failures number of attempts that have failed so far, at least one
+	 * @param elapsedMillis time since the first attempt was started
+	 * @return milliseconds to wait before the next attempt, or a negative value to give up
+	 */
+	long nextDelayMillis(int failures, long elapsedMillis);
+
+	/**
+	 * Called instead of {@link #nextDelayMillis(int, long)} when the server asked to wait with Retry-After.  The policy
+	 * still decides whether to retry, the server's wait is only the minimum delay.  The default gives up when the
+	 * server asks for more than {@link #MAX_RETRY_AFTER_MILLIS}.
+	 *
+	 * @param retryAfterMillis wait asked for by the server, zero or more
+	 * @return milliseconds to wait before the next attempt, at least retryAfterMillis, or a negative value to give up
+	 */
+	default long nextDelayMillis(int failures, long elapsedMillis, long retryAfterMillis) {
+		if(retryAfterMillis > MAX_RETRY_AFTER_MILLIS) {
+			return -1;
+		}
+
+		long delay = nextDelayMillis(failures, elapsedMillis);
+
+		return delay < 0 ? delay : Math.max(delay, retryAfterMillis);
+	}
+}
@@ -0,0 +1,74 @@
+package edu.northwestern.amq;
+
+/**
+ * Point in time view of the messages spooled by a {@link SpoolingPublisher}.  Counts start at zero when the publisher
+ * is built, messages recovered from an earlier run are only in the pending bytes.
+ *
+ */
+public class SpoolStats {
+
+	private final long appendedCount;
+	private final long rejectedCount;
+	private final long sentCount;
+	private final long droppedCount;
+	private final long failedAttemptCount;
+	private final long pendingBytes;
+	private final int segmentCount;
+
+	protected SpoolStats(long appendedCount, long rejectedCount, long sentCount, long droppedCount, long failedAttemptCount, long pendingBytes,
+			int segmentCount) {
+		this.appendedCount = appendedCount;
+		this.rejectedCount = rejectedCount;
+		this.sentCount = sentCount;
+		this.droppedCount = droppedCount;
+		this.failedAttemptCount = failedAttemptCount;
+		this.pendingBytes = pendingBytes;
+		this.segmentCount = segmentCount;
+	}
+
+	/**
+	 * @return number of messages written to the spool
+	 */
+	public long getAppendedCount() {
+		return appendedCount;
+	}
+
+	/**
+	 * @return number of messages refused because the spool was at its maximum size
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return number of spooled messages the gateway accepted
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return number of spooled messages the gateway refused as invalid, they are not sent again
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return number of times sending the oldest message failed and the drainer waited before trying it again
+	 */
+	public long getFailedAttemptCount() {
+		return failedAttemptCount;
+	}
+
+	/**
+	 * @return bytes of the spool not sent yet, unused space at the end of segments included
+	 */
+	public long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+}
@@ -0,0 +1,196 @@
+package edu.northwestern.amq;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes messages to a {@link PublishSpool} on local disk and publishes them from a background thread, so messages
+ * written while the gateway is down are sent once it is back instead of being lost.  A write returns as soon as the
+ * message is appended to the spool, without waiting on the gateway.
+ *
+ * Messages are sent one at a time in the order they were written.  When a send fails after the publisher's own
+ * retries, the drainer waits and sends the same message again, backing off up to {@link #MAX_RETRY_DELAY_MILLIS}, so
+ * nothing is sent past it and the gateway is not flooded when it recovers.  Only a message the gateway refuses as
+ * invalid (400 or 413) is dropped.  The drainer stops once the underlying {@link AMQPublisher} is closed, leaving the
+ * messages not sent yet on disk.  A message can be sent twice if the process stops between the gateway accepting it
+ * and the spool recording that, so consumers must tolerate duplicates as they do for redeliveries.
+ *
+ * Instances are created via {@link AMQPublisher.PublisherBuilder#buildSpooling()}.
+ *
+ */
+public class SpoolingPublisher {
+
+	protected static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	protected static final long DEFAULT_MAX_SPOOL_BYTES = 1024L * 1024 * 1024;
+	protected static final PublishSpool.FsyncPolicy DEFAULT_FSYNC_POLICY = PublishSpool.FsyncPolicy.INTERVAL;
+	protected static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+	protected static final long MIN_RETRY_DELAY_MILLIS = 100;
+	protected static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+	private static final long IDLE_WAIT_MILLIS = 1000;
+
+	private final AMQPublisher publisher;
+	private final PublishSpool spool;
+	private final ScheduledFuture<?> fsyncTask;
+	private final Thread drainThread;
+	private volatile boolean closed = false;
+
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong failedAttemptCount = new AtomicLong();
+
+	protected SpoolingPublisher(AMQPublisher publisher, PublishSpool spool, long fsyncIntervalMillis) {
+		this.publisher = publisher;
+		this.spool = spool;
+
+		fsyncTask = fsyncIntervalMillis > 0 ? publisher.getScheduler().scheduleWithFixedDelay(spool::force, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS) : null;
+
+		drainThread = AMQClient.daemonThreadFactory("amq-spool-" + publisher.topic).newThread(this::drainLoop);
+		drainThread.start();
+	}
+
+	/**
+	 * Appends the message, encoded in the charset of the content type, to the spool.
+	 *
+	 * @param message
+	 * @return false if the spool is at its maximum size and the message was not written
+	 * @throws IllegalStateException if the message is null or blank, or the publisher has been closed
+	 * @throws IllegalArgumentException if the message is larger than a spool segment
+	 * @throws IOException if the spool cannot be written
+	 */
+	public boolean writeToTopic(String message) throws IllegalStateException, IllegalArgumentException, IOException {
+		if(AMQClient.isBlank(message)) {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+
+		return writeToTopic(message.getBytes(publisher.getCharset()));
+	}
+
+	/**
+	 * Appends an already encoded message to the spool.  The array is copied, it can be changed once the method returns.
+	 *
+	 * @param message
+	 * @return false if the spool is at its maximum size and the message was not written
+	 * @throws IllegalStateException if the message is null or blank, or the publisher has been closed
+	 * @throws IllegalArgumentException if the message is larger than a spool segment
+	 * @throws IOException if the spool cannot be written
+	 */
+	public boolean writeToTopic(byte[] message) throws IllegalStateException, IllegalArgumentException, IOException {
+		if(AMQClient.isBlank(message)) {
+			throw new IllegalStateException("Message cannot be null or blank.");
+		}
+
+		if(closed) {
+			throw new IllegalStateException("Publisher has been closed.");
+		}
+
+		return spool.append(message);
+	}
+
+	/**
+	 * Waits until every message written so far has been sent or dropped.
+	 *
+	 * @return false if messages were still pending after the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		return spool.awaitDrained(timeout, unit);
+	}
+
+	/**
+	 * Stops the background thread and closes the spool.  Messages not sent yet, the one being sent included, stay on
+	 * disk and are sent by the next publisher built on the same directory.  Messages written after this call are
+	 * rejected.  The underlying {@link AMQPublisher} is left open.
+	 *
+	 * @throws InterruptedException
+	 * @throws IOException if the spool cannot be forced to disk
+	 */
+	public void close() throws InterruptedException, IOException {
+		closed = true;
+
+		if(fsyncTask != null) {
+			fsyncTask.cancel(false);
+		}
+
+		//Wakes the drainer from an idle wait, a back off or a retry of the publisher
+		spool.close();
+		drainThread.interrupt();
+		drainThread.join();
+	}
+
+	public SpoolStats getStats() {
+		return new SpoolStats(spool.getAppendedCount(), spool.getRejectedCount(), sentCount.get(), droppedCount.get(), failedAttemptCount.get(),
+				spool.getPendingBytes(), spool.getSegmentCount());
+	}
+
+	public AMQPublisher getPublisher() {
+		return publisher;
+	}
+
+	/**
+	 * @return true for statuses the gateway will keep returning for the message however often it is sent
+	 */
+	private static boolean isUndeliverable(int statusCode) {
+		return statusCode == 400 || statusCode == 413;
+	}
+
+	private void drainLoop() {
+		long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+		try {
+			while(!closed) {
+				byte[] message = spool.peek(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+				if(message == null) {
+					continue;
+				}
+
+				if(publisher.isClosed()) {
+					AMQClient.logger.warn("Publisher to topic {} has been closed, spooled messages are no longer sent.", publisher.topic);
+					return;
+				}
+
+				WriteResult writeResult = null;
+
+				try {
+					writeResult = publisher.writeToTopic(message);
+				}
+				catch(RuntimeException e) {
+					if(publisher.isClosed()) {
+						AMQClient.logger.warn("Publisher to topic {} has been closed, spooled messages are no longer sent.", publisher.topic);
+						return;
+					}
+
+					AMQClient.logger.warn("Unable to send a spooled message to topic {}.", publisher.topic, e);
+				}
+
+				if(writeResult != null && writeResult.isSuccess()) {
+					//Counted first so the count is complete once the spool is drained
+					sentCount.incrementAndGet();
+					spool.commit();
+					retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+				}
+				else if(writeResult != null && isUndeliverable(writeResult.getStatusCode())) {
+					AMQClient.logger.error("Gateway refused a spooled message to topic {} with status {}, dropping it.", publisher.topic, writeResult.getStatusCode());
+					droppedCount.incrementAndGet();
+					spool.commit();
+				}
+				else {
+					failedAttemptCount.incrementAndGet();
+					AMQClient.logger.debug("Sending the spooled message failed, trying again in {} ms.", retryDelayMillis);
+					Thread.sleep(retryDelayMillis);
+					retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			AMQClient.logger.debug("Spool drain thread interrupted, quiting.");
+			Thread.currentThread().interrupt();
+		}
+		catch(IOException e) {
+			AMQClient.logger.error("Unable to read the spool, messages are no longer sent to topic {}.", publisher.topic, e);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.northwestern.amq;
+
+/**
+ * Point in time view of the bytes sent and received by the clients of an {@link EventHubClientFactory}.  Wire bytes are
+ * the bodies as sent or received, compressed or not.  Headers are not counted.
+ *
+ */
+public class TransferStats {
+
+	private final long requestCount;
+	private final long compressedRequestCount;
+	private final long requestBytes;
+	private final long requestWireBytes;
+	private final long responseBytes;
+	private final long responseWireBytes;
+
+	protected TransferStats(long requestCount, long compressedRequestCount, long requestBytes, long requestWireBytes, long responseBytes,
+			long responseWireBytes) {
+		this.requestCount = requestCount;
+		this.compressedRequestCount = compressedRequestCount;
+		this.requestBytes = requestBytes;
+		this.requestWireBytes = requestWireBytes;
+		this.responseBytes = responseBytes;
+		this.responseWireBytes = responseWireBytes;
+	}
+
+	/**
+	 * @return number of requests sent with a body, retries included
+	 */
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * @return number of requests sent with a gzipped body
+	 */
+	public long getCompressedRequestCount() {
+		return compressedRequestCount;
+	}
+
+	/**
+	 * @return request body bytes before compression
+	 */
+	public long getRequestBytes() {
+		return requestBytes;
+	}
+
+	public long getRequestWireBytes() {
+		return requestWireBytes;
+	}
+
+	/**
+	 * @return response body bytes after decompression, as read by the application
+	 */
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	public long getResponseWireBytes() {
+		return responseWireBytes;
+	}
+
+	/**
+	 * @return uncompressed request bytes per byte sent, 1 when nothing was compressed
+	 */
+	public double getRequestCompressionRatio() {
+		return requestWireBytes == 0 ? 1 : (double) requestBytes / requestWireBytes;
+	}
+
+	/**
+	 * @return decompressed response bytes per byte received, 1 when nothing was compressed
+	 */
+	public double getResponseCompressionRatio() {
+		return responseWireBytes == 0 ? 1 : (double) responseBytes / responseWireBytes;
+	}
+
+	/**
+	 * @return bytes compression kept off the wire in both directions
+	 */
+	public long getBytesSaved() {
+		return (requestBytes - requestWireBytes) + (responseBytes - responseWireBytes);
+	}
+}
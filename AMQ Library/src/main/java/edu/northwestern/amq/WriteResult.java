@@ -5,6 +5,7 @@ public class WriteResult implements EventHubResult {
 
 	private boolean success;
 	private int statusCode;
+	private int attempts;
 	private String messageId;
 
 	public String getMessageId() {
@@ -30,4 +31,15 @@ public class WriteResult implements EventHubResult {
 	public void setStatusCode(int statusCode) {
 		this.statusCode = statusCode;
 	}
+
+	/**
+	 * @return number of requests made, including retries
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
 }
\ No newline at end of file
@@ -1,11 +1,18 @@
 package edu.northwestern.amq.test;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.junit.Assert;
 import org.junit.Test;
 
 import edu.northwestern.amq.AMQConsumer;
+import edu.northwestern.amq.AckTracker;
 import edu.northwestern.amq.AcknowledgeResult;
+import edu.northwestern.amq.Message;
+import edu.northwestern.amq.MessageListenerContainer;
 import edu.northwestern.amq.MessageResult;
+import edu.northwestern.amq.MessageStream;
 
 
 public class AMQConsumerTest {
@@ -40,6 +47,95 @@ public class AMQConsumerTest {
 		Assert.assertTrue("Message was not Acknowledged", ackResult.isSuccess());
 	}
 	
+	@Test
+	public void acknowledgeMessageAsync() throws Exception {
+		createConsumer();
+
+		MessageResult messageResult = amqConsumer.getMessage();
+		Assert.assertNotNull("MessageResult should not be null", messageResult);
+
+		if(messageResult.hasMessage()) {
+			//Test the next get can go out while the acknowledgement is in flight
+			CompletableFuture<AcknowledgeResult> ackFuture = amqConsumer.acknowledgeMessageAsync();
+			Assert.assertNotNull("MessageResult should not be null", amqConsumer.getMessage());
+
+			Assert.assertTrue("Message was not Acknowledged", ackFuture.get().isSuccess());
+		}
+	}
+
+	@Test
+	public void trackAcknowledgements() throws Exception {
+		createConsumer();
+
+		MessageResult messageResult = amqConsumer.getMessage();
+		Assert.assertNotNull("MessageResult should not be null", messageResult);
+
+		if(messageResult.hasMessage()) {
+			//Test completing the batch in reverse order
+			AckTracker ackTracker = amqConsumer.trackAcknowledgements(messageResult);
+			List<Message> messages = messageResult.getMessages();
+			for(int i = messages.size() - 1; i >= 0; i--) {
+				ackTracker.complete(messages.get(i));
+			}
+
+			Assert.assertEquals("Watermark should cover the whole batch", messages.size(), ackTracker.getWatermark());
+			ackTracker.finish();
+			Assert.assertEquals("Whole batch should be acknowledged", messages.size(), ackTracker.getAcknowledgedCount());
+		}
+	}
+
+	@Test
+	public void getMessageStream() throws Exception {
+		createConsumer();
+
+		//Test streaming the messages
+		MessageStream messageStream = amqConsumer.getMessageStream();
+		Assert.assertNotNull("MessageStream should not be null", messageStream);
+
+		int count = 0;
+		while(messageStream.hasNext()) {
+			Assert.assertNotNull("Message ID should not be null", messageStream.next().getMessageId());
+			count++;
+		}
+		Assert.assertTrue("MessageStream should be drained", messageStream.isDrained());
+
+		//Test acknowledging the streamed messages
+		if(count > 0) {
+			AcknowledgeResult ackResult = amqConsumer.acknowledgeMessage();
+			Assert.assertTrue("Message was not Acknowledged", ackResult.isSuccess());
+		}
+	}
+
+	@Test
+	public void listenerContainer() throws Exception {
+		createConsumer();
+
+		//Test processing messages with the listener container
+		MessageListenerContainer container = MessageListenerContainer.ContainerBuilder
+				.create()
+				.setConsumer(amqConsumer)
+				.setMessageListener(message -> Assert.assertNotNull("Message ID should not be null", message.getMessageId()))
+				.setHandlerThreads(2)
+				.build();
+
+		container.start();
+		Thread.sleep(2000);
+		container.close();
+
+		Assert.assertFalse("Container should be stopped", container.isRunning());
+		Assert.assertEquals("No message should fail", 0, container.getStats().getFailedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noMessageListener() {
+		createConsumer();
+
+		MessageListenerContainer.ContainerBuilder
+			.create()
+			.setConsumer(amqConsumer)
+			.build();
+	}
+
 	@Test(expected = RuntimeException.class)
 	public void deleteMessage() throws Exception {
 		createConsumer();
@@ -1,11 +1,19 @@
 package edu.northwestern.amq.test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
 import javax.ws.rs.core.MediaType;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import edu.northwestern.amq.AMQPublisher;
+import edu.northwestern.amq.BatchingPublisher;
 import edu.northwestern.amq.WriteResult;
 
 
@@ -51,6 +59,94 @@ public class AMQPublisherTest {
 		}
 	}
 
+	@Test
+	public void putMessagePayloads() {
+		try {
+			createPublisher();
+
+			byte[] bytes = testMessage.getBytes(StandardCharsets.UTF_8);
+			WriteResult writeResult = amqPublisher.writeToTopic(bytes);
+			Assert.assertTrue("byte[] write should be successful: " + writeResult.getStatusCode(), writeResult.isSuccess());
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes).flip();
+			writeResult = amqPublisher.writeToTopic(buffer);
+			Assert.assertTrue("ByteBuffer write should be successful: " + writeResult.getStatusCode(), writeResult.isSuccess());
+			Assert.assertEquals("ByteBuffer position should not change", 0, buffer.position());
+
+			writeResult = amqPublisher.writeToTopic(new ByteArrayInputStream(bytes));
+			Assert.assertTrue("InputStream write should be successful: " + writeResult.getStatusCode(), writeResult.isSuccess());
+
+			Path path = Files.createTempFile("amq", ".json");
+			try {
+				Files.write(path, bytes);
+				writeResult = amqPublisher.writeToTopic(path);
+				Assert.assertTrue("Path write should be successful: " + writeResult.getStatusCode(), writeResult.isSuccess());
+			}
+			finally {
+				Files.delete(path);
+			}
+		}
+		catch(Exception e) {
+			System.out.println("Error");
+			e.printStackTrace(System.out);
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void putBlankBytes() throws Exception {
+		createPublisher();
+
+		amqPublisher.writeToTopic(" \t\n".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void putMessageAsync() {
+		try {
+			createPublisher();
+
+			WriteResult writeResult = amqPublisher.writeToTopicAsync(testMessage).get();
+
+			Assert.assertNotNull("WriteResult should not be null", writeResult);
+			Assert.assertTrue("WriteResult should be successful: " + writeResult.getStatusCode(), writeResult.isSuccess());
+			Assert.assertNotNull("Message ID should not be null", writeResult.getMessageId());
+		}
+		catch(Exception e) {
+			System.out.println("Error");
+			e.printStackTrace(System.out);
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void putMessageBatched() {
+		try {
+			BatchingPublisher batchingPublisher = AMQPublisher.PublisherBuilder
+					.create()
+					.setEnv(env)
+					.setTopic(topic)
+					.setAPIKey(apiKey)
+					.setContentType(MediaType.APPLICATION_JSON_TYPE)
+					.setMaxBatchMessages(2)
+					.buildBatching();
+
+			CompletableFuture<WriteResult> first = batchingPublisher.writeToTopic(testMessage);
+			CompletableFuture<WriteResult> second = batchingPublisher.writeToTopic(testMessage);
+			batchingPublisher.close();
+
+			Assert.assertTrue("First write should be successful", first.get().isSuccess());
+			Assert.assertTrue("Second write should be successful", second.get().isSuccess());
+			Assert.assertNotEquals("Each write should have its own Message ID", first.get().getMessageId(), second.get().getMessageId());
+			Assert.assertEquals("Both writes should be flushed in one batch", 1, batchingPublisher.getStats().getBatchCount());
+		}
+		catch(Exception e) {
+			System.out.println("Error");
+			e.printStackTrace(System.out);
+			Assert.fail(e.getMessage());
+		}
+	}
+
 	@Test
 	public void unauthorized() {
 		try {
@@ -113,4 +209,16 @@ public class AMQPublisherTest {
 			.setAPIKey(apiKey)
 			.build();
 	}
-}
\ No newline at end of file
+
+	@Test(expected = IllegalArgumentException.class)
+	public void relativeBaseURL() {
+		AMQPublisher.PublisherBuilder
+			.create()
+			.setEnv("dev")
+			.setTopic("topic")
+			.setAPIKey("apikey")
+			.setContentType(MediaType.APPLICATION_JSON_TYPE)
+			.setBaseURL("/v1/event-hub/")
+			.build();
+	}
+}
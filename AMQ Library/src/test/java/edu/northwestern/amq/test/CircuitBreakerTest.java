@@ -0,0 +1,143 @@
+package edu.northwestern.amq.test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.AMQConsumer;
+import edu.northwestern.amq.CircuitBreaker;
+import edu.northwestern.amq.CircuitBreaker.State;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.ExponentialBackoffRetryPolicy;
+
+
+public class CircuitBreakerTest {
+
+	private CircuitBreaker createBreaker(List<State> transitions) {
+		return CircuitBreaker.BreakerBuilder
+				.create()
+				.setWindowSize(10)
+				.setMinimumCalls(4)
+				.setFailureRateThreshold(0.5)
+				.setSlowCallMillis(100)
+				.setOpenMillis(50)
+				.setHalfOpenProbes(2)
+				.addStateListener((circuitBreaker, from, to) -> transitions.add(to))
+				.build();
+	}
+
+	@Test
+	public void opensOnFailureRate() throws Exception {
+		List<State> transitions = new ArrayList<State>();
+		CircuitBreaker circuitBreaker = createBreaker(transitions);
+
+		//Test the breaker opens once half of the calls fail
+		circuitBreaker.onSuccess(0);
+		circuitBreaker.onFailure(0);
+		circuitBreaker.onSuccess(0);
+		Assert.assertEquals("Should stay closed below the minimum calls", State.CLOSED, circuitBreaker.getState());
+
+		circuitBreaker.onFailure(0);
+		Assert.assertEquals("Should open at the failure rate threshold", State.OPEN, circuitBreaker.getState());
+		Assert.assertTrue("Should report open", circuitBreaker.isOpen());
+		Assert.assertFalse("Should fail fast while open", circuitBreaker.tryAcquirePermission());
+
+		//Test the probes close it again
+		Thread.sleep(60);
+		Assert.assertTrue("First probe should be allowed", circuitBreaker.tryAcquirePermission());
+		Assert.assertTrue("Second probe should be allowed", circuitBreaker.tryAcquirePermission());
+		Assert.assertFalse("Only the configured probes should be allowed", circuitBreaker.tryAcquirePermission());
+		circuitBreaker.onSuccess(0);
+		circuitBreaker.onSuccess(0);
+
+		Assert.assertEquals("Should close after successful probes", State.CLOSED, circuitBreaker.getState());
+		Assert.assertEquals("Listener should see every transition", 3, transitions.size());
+	}
+
+	@Test
+	public void opensOnSlowCalls() throws Exception {
+		List<State> transitions = new ArrayList<State>();
+		CircuitBreaker circuitBreaker = createBreaker(transitions);
+
+		//Test slow calls open the breaker even when they succeed
+		for(int i = 0; i < 4; i++) {
+			circuitBreaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(200));
+		}
+		Assert.assertEquals("Should open on slow calls", State.OPEN, circuitBreaker.getState());
+
+		//Test a failed probe opens it again
+		Thread.sleep(60);
+		Assert.assertTrue("Probe should be allowed", circuitBreaker.tryAcquirePermission());
+		circuitBreaker.onFailure(0);
+		Assert.assertEquals("Should reopen after a failed probe", State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void unreadableResponseRecordedOnce() throws Exception {
+		//The gateway answers every get with a body the consumer cannot parse
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			byte[] body = "{ \"messages\" : [".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder
+				.create()
+				.setCircuitBreaker(createBreaker(new ArrayList<State>()))
+				.build();
+
+		try {
+			AMQConsumer consumer = AMQConsumer.ConsumerBuilder
+					.create()
+					.setEnv(Environment.DEV)
+					.setTopic("queue")
+					.setAPIKey("apikey")
+					.setBaseURL("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/event-hub/")
+					.setMaxAttempts(2)
+					.setRetryPolicy(ExponentialBackoffRetryPolicy.PolicyBuilder.create().setBaseDelayMillis(1).build())
+					.setClientFactory(factory)
+					.build();
+
+			Assert.assertNull("Get should give up", consumer.getMessage());
+
+			//Test each attempt counts once, as the success of the gateway, so the breaker stays closed
+			Assert.assertEquals(State.CLOSED, factory.getCircuitBreaker(Environment.DEV, "queue").getState());
+		}
+		finally {
+			factory.close();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void sharedPerEnvironmentAndEndpoint() {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder
+				.create()
+				.setCircuitBreaker(createBreaker(new ArrayList<State>()))
+				.build();
+
+		Assert.assertSame("Same environment and endpoint should share a breaker", factory.getCircuitBreaker(Environment.DEV, "queue"), factory.getCircuitBreaker(Environment.DEV, "queue"));
+		Assert.assertNotSame("Endpoints should not share a breaker", factory.getCircuitBreaker(Environment.DEV, "queue"), factory.getCircuitBreaker(Environment.DEV, "topic"));
+		factory.close();
+
+		EventHubClientFactory defaults = EventHubClientFactory.FactoryBuilder.create().build();
+		Assert.assertNull("Breaking should be off by default", defaults.getCircuitBreaker(Environment.DEV, "queue"));
+
+		defaults.close();
+	}
+}
@@ -0,0 +1,79 @@
+package edu.northwestern.amq.test;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.AMQPublisher;
+import edu.northwestern.amq.ClientMetrics.Operation;
+import edu.northwestern.amq.ClientMetrics.Outcome;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.ExponentialBackoffRetryPolicy;
+import edu.northwestern.amq.Histogram;
+import edu.northwestern.amq.OperationStats;
+import edu.northwestern.amq.WriteResult;
+
+
+public class ClientMetricsTest {
+
+	@Test
+	public void histogramPercentiles() {
+		Histogram histogram = new Histogram();
+
+		Assert.assertEquals("Empty histogram should report zero", 0, histogram.getValueAtPercentile(0.99));
+
+		for(int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+
+		//Test the percentiles are within the bucket precision and never above the largest value
+		long[] values = histogram.getValuesAtPercentiles(0.5, 0.99, 1);
+		Assert.assertEquals("p50 should be within 12.5%", 500, values[0], 500 * 0.125);
+		Assert.assertEquals("p99 should be within 12.5%", 990, values[1], 990 * 0.125);
+		Assert.assertEquals("p100 should be the maximum", 1000, values[2]);
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(500.5, histogram.getMean(), 0);
+		Assert.assertEquals("Small values should be exact", 3, histogram.getValueAtPercentile(0.003));
+	}
+
+	@Test
+	public void recordsFailedWrite() throws Exception {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder.create().build();
+
+		try {
+			//Nothing listens on port 1, every attempt fails to connect
+			AMQPublisher publisher = AMQPublisher.PublisherBuilder
+					.create()
+					.setEnv(Environment.DEV)
+					.setTopic("topic")
+					.setAPIKey("apikey")
+					.setContentType(MediaType.APPLICATION_JSON_TYPE)
+					.setBaseURL("http://127.0.0.1:1/v1/event-hub/")
+					.setMaxAttempts(2)
+					.setRetryPolicy(ExponentialBackoffRetryPolicy.PolicyBuilder.create().setBaseDelayMillis(1).build())
+					.setClientFactory(factory)
+					.build();
+
+			WriteResult writeResult = publisher.writeToTopic("{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+			Assert.assertFalse("Write should fail", writeResult.isSuccess());
+
+			OperationStats stats = factory.getMetrics().getStats(Operation.WRITE);
+			Assert.assertEquals("Call should be counted once", 1, stats.getCallCount());
+			Assert.assertEquals("Call should be over", 0, stats.getInFlight());
+			Assert.assertEquals(1, stats.getOutcomeCount(Outcome.NO_RESPONSE));
+			Assert.assertEquals(0, stats.getOutcomeCount(Outcome.SUCCESSFUL));
+			Assert.assertEquals("Both attempts should be counted", 2, stats.getAttemptCount());
+			Assert.assertEquals(1, stats.getRetriedCallCount());
+			Assert.assertEquals("Body should be counted once", 7, stats.getPayloadBytes());
+			Assert.assertTrue("Latency should be recorded", stats.getMaxLatencyMillis() > 0);
+			Assert.assertEquals("Other operations should be untouched", 0, factory.getMetrics().getStats(Operation.GET).getCallCount());
+		}
+		finally {
+			factory.close();
+		}
+	}
+}
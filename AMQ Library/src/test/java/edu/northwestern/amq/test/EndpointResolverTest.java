@@ -0,0 +1,94 @@
+package edu.northwestern.amq.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.Endpoint;
+import edu.northwestern.amq.LatencyAwareEndpointResolver;
+
+
+public class EndpointResolverTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private LatencyAwareEndpointResolver createResolver() {
+		return LatencyAwareEndpointResolver.ResolverBuilder
+				.create()
+				.addEndpoint(Environment.DEV, "https://primary.example.edu/v1/event-hub/")
+				.addEndpoint(Environment.DEV, "https://secondary.example.edu/v1/event-hub")
+				.addEndpoint(Environment.TEST, "https://test.example.edu/v1/event-hub/")
+				.setEjectMillis(100)
+				.build();
+	}
+
+	@Test
+	public void selectsFastest() {
+		LatencyAwareEndpointResolver resolver = createResolver();
+		Endpoint primary = resolver.getEndpoints(Environment.DEV).get(0);
+		Endpoint secondary = resolver.getEndpoints(Environment.DEV).get(1);
+
+		//Test new endpoints are tried before the measured ones, then the faster one keeps the traffic
+		primary.onSuccess(20 * MILLIS);
+		Assert.assertSame("Unmeasured endpoint should be tried", secondary, resolver.select(Environment.DEV));
+
+		secondary.onSuccess(5 * MILLIS);
+		Assert.assertSame("Faster endpoint should be selected", secondary, resolver.select(Environment.DEV));
+
+		for(int i = 0; i < 10; i++) {
+			secondary.onSuccess(50 * MILLIS);
+		}
+
+		Assert.assertSame("Traffic should move once the endpoint slows down", primary, resolver.select(Environment.DEV));
+		Assert.assertEquals("Trailing slash should be added", "https://secondary.example.edu/v1/event-hub/", secondary.getBaseURL());
+		Assert.assertEquals("QA should share the TEST endpoints", resolver.getEndpoints(Environment.TEST), resolver.getEndpoints(Environment.QA));
+		Assert.assertTrue("Unknown environment should have no endpoints", resolver.getEndpoints(Environment.PROD).isEmpty());
+	}
+
+	@Test
+	public void ejectsOnConnectionFailure() throws Exception {
+		LatencyAwareEndpointResolver resolver = createResolver();
+		Endpoint primary = resolver.getEndpoints(Environment.DEV).get(0);
+		Endpoint secondary = resolver.getEndpoints(Environment.DEV).get(1);
+		primary.onSuccess(MILLIS);
+		secondary.onSuccess(10 * MILLIS);
+
+		//Test a refused connection takes the endpoint out right away and it comes back after the eject time
+		primary.onFailure(MILLIS, true);
+		Assert.assertFalse("Endpoint should be ejected", primary.isAvailable());
+		Assert.assertSame("Other endpoint should be selected", secondary, resolver.select(Environment.DEV));
+
+		secondary.onFailure(MILLIS, true);
+		Assert.assertSame("Endpoint ejected first should be used when all are ejected", primary, resolver.select(Environment.DEV));
+
+		Thread.sleep(150);
+		Assert.assertTrue("Endpoint should be back after the eject time", primary.isAvailable());
+		Assert.assertEquals("Error rate should start over", 0, primary.getStats().getErrorRate(), 0);
+		Assert.assertEquals("Ejection should be counted", 1, primary.getStats().getEjectionCount());
+	}
+
+	@Test
+	public void ejectsOnErrorRate() {
+		LatencyAwareEndpointResolver resolver = createResolver();
+		Endpoint primary = resolver.getEndpoints(Environment.DEV).get(0);
+
+		//Test server errors only eject once the average error rate reaches the threshold
+		primary.onFailure(MILLIS, false);
+		Assert.assertTrue("One error should not eject", primary.isAvailable());
+
+		for(int i = 0; i < 3; i++) {
+			primary.onFailure(MILLIS, false);
+		}
+
+		Assert.assertFalse("Endpoint should be ejected", primary.isAvailable());
+		Assert.assertEquals("Failures should be counted", 4, primary.getStats().getFailedCount());
+		Assert.assertTrue("Stats should show the ejection", primary.getStats().isEjected());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void relativeEndpoint() {
+		LatencyAwareEndpointResolver.ResolverBuilder.create().addEndpoint(Environment.DEV, "/v1/event-hub/").build();
+	}
+}
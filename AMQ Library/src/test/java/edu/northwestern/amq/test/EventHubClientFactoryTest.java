@@ -0,0 +1,110 @@
+package edu.northwestern.amq.test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.pool.PoolStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.AMQPublisher;
+import edu.northwestern.amq.ClientMetrics;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.TransferStats;
+import edu.northwestern.amq.WriteResult;
+
+
+public class EventHubClientFactoryTest {
+
+	@Test
+	public void poolStats() {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder
+				.create()
+				.setMaxConnectionsPerRoute(5)
+				.setMaxConnectionsTotal(10)
+				.build();
+
+		PoolStats poolStats = factory.getPoolStats();
+		Assert.assertEquals("Max connections should match the configured total", 10, poolStats.getMax());
+		Assert.assertEquals("No connections should be leased", 0, poolStats.getLeased());
+		Assert.assertNull("Async pool should not be started until it is used", factory.getAsyncPoolStats());
+
+		factory.getAsyncHttpClient();
+		Assert.assertEquals("Async max connections should match the configured total", 10, factory.getAsyncPoolStats().getMax());
+
+		factory.close();
+	}
+
+	@Test
+	public void transferStats() {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder.create().build();
+
+		TransferStats transferStats = factory.getTransferStats();
+		Assert.assertEquals("No requests should be counted", 0, transferStats.getRequestCount());
+		Assert.assertEquals("Nothing should be saved", 0, transferStats.getBytesSaved());
+		Assert.assertEquals("Ratio should be one until something is compressed", 1, transferStats.getRequestCompressionRatio(), 0);
+
+		factory.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closed() {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder.create().build();
+		factory.close();
+
+		factory.getHttpClient();
+	}
+
+	@Test
+	public void pendingCallsFailedOnClose() throws Exception {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder.create().build();
+
+		//Nothing listens on port 1, the write waits on the scheduler for its retry when the factory is closed
+		AMQPublisher publisher = AMQPublisher.PublisherBuilder
+				.create()
+				.setEnv(Environment.DEV)
+				.setTopic("topic")
+				.setAPIKey("apikey")
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.setBaseURL("http://127.0.0.1:1/v1/event-hub/")
+				.setMaxAttempts(10)
+				.setClientFactory(factory)
+				.build();
+
+		CompletableFuture<WriteResult> future = publisher.writeToTopicAsync("{}");
+		Thread.sleep(200);
+		factory.close();
+
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail("Write should fail once the factory is closed");
+		}
+		catch(ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		Assert.assertEquals("Call should no longer be in flight", 0, factory.getMetrics().getStats(ClientMetrics.Operation.WRITE).getInFlight());
+	}
+
+	@Test
+	public void defaultRecreatedAfterClose() {
+		EventHubClientFactory factory = EventHubClientFactory.getDefault();
+		Assert.assertSame("Default factory should be shared", factory, EventHubClientFactory.getDefault());
+
+		factory.close();
+		Assert.assertNotSame("Default factory should be recreated once closed", factory, EventHubClientFactory.getDefault());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void routeLimitExceedsTotal() {
+		EventHubClientFactory.FactoryBuilder
+			.create()
+			.setMaxConnectionsPerRoute(20)
+			.setMaxConnectionsTotal(10)
+			.build();
+	}
+}
@@ -0,0 +1,103 @@
+package edu.northwestern.amq.test;
+
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.northwestern.amq.IdempotencyCache;
+import edu.northwestern.amq.IdempotencyStats;
+import edu.northwestern.amq.Message;
+
+
+public class IdempotencyCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Message message(String messageId, int deliveryAttempts) {
+		Message message = new Message();
+		message.setMessageId(messageId);
+		message.setDeliveryAttempts(deliveryAttempts);
+
+		return message;
+	}
+
+	@Test
+	public void recentAndWindowIds() {
+		IdempotencyCache cache = IdempotencyCache.CacheBuilder.create().setRecentIds(100).setWindowIds(100000).build();
+
+		for(int i = 0; i < 10000; i++) {
+			cache.record("ID:" + i);
+		}
+
+		//Test the latest ids are found exactly after many evictions from the table
+		for(int i = 9900; i < 10000; i++) {
+			Assert.assertTrue("Recent id should be a duplicate: " + i, cache.isDuplicate(message("ID:" + i, 1)));
+		}
+
+		Assert.assertEquals(100, cache.getStats().getRecentHitCount());
+
+		//Test an older id only in the Bloom filters is a duplicate when redelivered, never on a first delivery
+		Assert.assertFalse("First delivery should not be skipped on a Bloom match", cache.isDuplicate(message("ID:5", 1)));
+		Assert.assertTrue("Redelivery should be skipped on a Bloom match", cache.isDuplicate(message("ID:5", 2)));
+		Assert.assertFalse("Unknown id should not be a duplicate", cache.isDuplicate(message("ID:other", 3)));
+
+		IdempotencyStats stats = cache.getStats();
+		Assert.assertEquals(10000, stats.getRecordedCount());
+		Assert.assertEquals(100, stats.getRecentIdCount());
+		Assert.assertEquals(1, stats.getWindowHitCount());
+		Assert.assertEquals(1, stats.getFirstDeliveryWindowHitCount());
+		Assert.assertEquals(101, stats.getDuplicateCount());
+		Assert.assertEquals(101.0 / 103, stats.getHitRate(), 0.0001);
+	}
+
+	@Test
+	public void falsePositiveRate() {
+		IdempotencyCache cache = IdempotencyCache.CacheBuilder.create().setRecentIds(1000).setWindowIds(20000).setFalsePositiveRate(0.01).build();
+
+		for(int i = 0; i < 20000; i++) {
+			cache.record("ID:recorded-" + i);
+		}
+
+		int falsePositives = 0;
+
+		for(int i = 0; i < 20000; i++) {
+			if(cache.isDuplicate(message("ID:never-" + i, 2))) {
+				falsePositives++;
+			}
+		}
+
+		Assert.assertTrue("False positives should be near 1%: " + falsePositives, falsePositives < 400);
+	}
+
+	@Test
+	public void persistedAcrossRestarts() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("ids");
+		IdempotencyCache cache = IdempotencyCache.CacheBuilder.create().setRecentIds(10).setPersistencePath(path).build();
+
+		for(int i = 0; i < 20; i++) {
+			cache.record("ID:" + i);
+		}
+
+		cache.close();
+
+		IdempotencyCache restored = IdempotencyCache.CacheBuilder.create().setRecentIds(10).setPersistencePath(path).build();
+		Assert.assertTrue("Recent id should be restored", restored.isDuplicate(message("ID:19", 1)));
+		Assert.assertTrue("Window should be restored", restored.isDuplicate(message("ID:0", 2)));
+		Assert.assertFalse(restored.isDuplicate(message("ID:0", 1)));
+		Assert.assertEquals(10, restored.getStats().getRecentIdCount());
+
+		//Test a smaller cache keeps the most recent ids
+		IdempotencyCache smaller = IdempotencyCache.CacheBuilder.create().setRecentIds(5).setWindowIds(50).setPersistencePath(path).build();
+		Assert.assertTrue(smaller.isDuplicate(message("ID:19", 1)));
+		Assert.assertFalse("Oldest ids should not fit", smaller.isDuplicate(message("ID:10", 1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void windowSmallerThanRecentIds() {
+		IdempotencyCache.CacheBuilder.create().setRecentIds(1000).setWindowIds(10).build();
+	}
+}
@@ -0,0 +1,60 @@
+package edu.northwestern.amq.test;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.northwestern.amq.MessageResult;
+import edu.northwestern.amq.MessageResultDecoder;
+
+
+public class MessageResultDecoderTest {
+
+	private MessageResultDecoder decoder = new MessageResultDecoder(new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true));
+
+	@Test
+	public void decodeJson() throws Exception {
+		String json = "{\"messages\":[{\"data\":\"caf\u00e9\",\"deliveryDate\":\"2019-05-06T15:23:11.123Z\",\"expirationDate\":null,\"deliveryAttempts\":2,"
+				+ "\"contentType\":\"application/json\",\"messageId\":\"ID:1\"},{\"data\":\"two\",\"messageId\":\"ID:2\"}],\"hasAdditionalMessage\":true,\"count\":2}";
+
+		MessageResult messageResult = decoder.decode(new StringEntity(json, ContentType.APPLICATION_JSON));
+
+		Assert.assertEquals("Count should be read", 2, messageResult.getMessageCount());
+		Assert.assertTrue("hasAdditionalMessage should be read", messageResult.hasAdditionalMessage());
+		Assert.assertEquals("UTF-8 data should survive decoding", "caf\u00e9", messageResult.getMessages().get(0).getData());
+		Assert.assertEquals("Delivery attempts should be read", 2, messageResult.getMessages().get(0).getDeliveryAttempts());
+		Assert.assertEquals("Delivery date should be parsed", 1557156191123L, messageResult.getMessages().get(0).getDeliveryTimeMillis());
+		Assert.assertTrue("Missing delivery date should be negative", messageResult.getMessages().get(1).getDeliveryTimeMillis() < 0);
+		Assert.assertEquals("Last message id should be the last message", "ID:2", messageResult.getLastMessageId());
+	}
+
+	@Test
+	public void decodeWrappedXml() throws Exception {
+		String xml = "<?xml version=\"1.0\"?><messageResult><count>2</count><hasAdditionalMessage>false</hasAdditionalMessage>"
+				+ "<messages><message><data>{ \"a\" : 1 }</data><deliveryAttempts>1</deliveryAttempts><messageId>ID:1</messageId></message>"
+				+ "<message><data>two</data><messageId>ID:2</messageId><unknown><nested/></unknown></message></messages></messageResult>";
+
+		MessageResult messageResult = decoder.decode(new StringEntity(xml, ContentType.APPLICATION_XML));
+
+		Assert.assertEquals("Count should be read", 2, messageResult.getMessageCount());
+		Assert.assertEquals("Both messages should be read", 2, messageResult.getMessages().size());
+		Assert.assertEquals("Data should be read", "{ \"a\" : 1 }", messageResult.getMessages().get(0).getData());
+		Assert.assertEquals("Last message id should be the last message", "ID:2", messageResult.getLastMessageId());
+	}
+
+	@Test
+	public void decodeRepeatedXml() throws Exception {
+		String xml = "<messageResult><messages><data>one</data><messageId>ID:1</messageId></messages>"
+				+ "<messages><data>two</data><messageId>ID:2</messageId></messages></messageResult>";
+
+		MessageResult messageResult = decoder.decode(new StringEntity(xml, ContentType.APPLICATION_XML));
+
+		Assert.assertEquals("Count should default to the number of messages", 2, messageResult.getMessageCount());
+		Assert.assertTrue("Result should have messages", messageResult.hasMessage());
+		Assert.assertEquals("Last message id should be the last message", "ID:2", messageResult.getLastMessageId());
+	}
+}
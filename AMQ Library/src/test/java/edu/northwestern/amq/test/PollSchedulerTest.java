@@ -0,0 +1,62 @@
+package edu.northwestern.amq.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.PollScheduler;
+import edu.northwestern.amq.PollStats;
+
+
+public class PollSchedulerTest {
+
+	private PollScheduler createScheduler() {
+		return PollScheduler.PollSchedulerBuilder
+				.create()
+				.setMinIntervalMillis(100)
+				.setMaxIntervalMillis(800)
+				.build();
+	}
+
+	@Test
+	public void backoff() {
+		PollScheduler pollScheduler = createScheduler();
+
+		//Test the interval doubles up to the maximum with the wait jittered between half and all of it
+		long interval = 100;
+		for(int i = 0; i < 6; i++) {
+			long delay = pollScheduler.record(false, false);
+
+			Assert.assertTrue("Delay " + delay + " should be between half and all of " + interval, delay >= interval / 2 && delay <= interval);
+			interval = Math.min(800, interval * 2);
+		}
+
+		PollStats pollStats = pollScheduler.getStats();
+		Assert.assertEquals("Every poll should be counted", 6, pollStats.getPollCount());
+		Assert.assertEquals("Every poll was empty", 6, pollStats.getEmptyPollCount());
+		Assert.assertEquals("Interval should be capped", 800, pollStats.getCurrentIntervalMillis());
+	}
+
+	@Test
+	public void reset() {
+		PollScheduler pollScheduler = createScheduler();
+		pollScheduler.record(false, false);
+		pollScheduler.record(false, false);
+
+		//Test messages reset the backoff
+		Assert.assertEquals("Should poll again immediately when messages arrive", 0, pollScheduler.record(true, false));
+		Assert.assertTrue("Should start again from the minimum", pollScheduler.record(false, false) <= 100);
+
+		//Test more messages waiting resets the backoff
+		Assert.assertEquals("Should poll again immediately when more messages are waiting", 0, pollScheduler.record(false, true));
+		Assert.assertEquals("Copies should not share history", 0, pollScheduler.copy().getStats().getPollCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxBelowMin() {
+		PollScheduler.PollSchedulerBuilder
+			.create()
+			.setMinIntervalMillis(1000)
+			.setMaxIntervalMillis(10)
+			.build();
+	}
+}
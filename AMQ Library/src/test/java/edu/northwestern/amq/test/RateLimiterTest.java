@@ -0,0 +1,105 @@
+package edu.northwestern.amq.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.RateLimiter;
+import edu.northwestern.amq.RateLimiter.Mode;
+
+
+public class RateLimiterTest {
+
+	private RateLimiter createLimiter(Mode mode) {
+		return RateLimiter.LimiterBuilder
+				.create()
+				.setPermitsPerSecond(10)
+				.setBurst(2)
+				.setMode(mode)
+				.setMaxQueued(2)
+				.build();
+	}
+
+	@Test
+	public void blockWaitsForPermits() {
+		RateLimiter rateLimiter = createLimiter(Mode.BLOCK);
+
+		//Test the burst goes out at once and later calls wait one interval each
+		Assert.assertEquals("First burst permit should be immediate", 0, rateLimiter.reserve());
+		Assert.assertEquals("Second burst permit should be immediate", 0, rateLimiter.reserve());
+		Assert.assertEquals("Should be immediate, the next call pays for it", 0, rateLimiter.reserve());
+
+		long wait = rateLimiter.reserve();
+		Assert.assertTrue("Should wait about one interval, waited " + wait, wait > TimeUnit.MILLISECONDS.toNanos(50) && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+		Assert.assertTrue("Should keep queueing", rateLimiter.reserve() > wait);
+		Assert.assertEquals("Nothing should be rejected", 0, rateLimiter.getRejectedCount());
+	}
+
+	@Test
+	public void failFastRejects() throws Exception {
+		RateLimiter rateLimiter = createLimiter(Mode.FAIL_FAST);
+
+		//Test calls beyond the burst are rejected until the bucket refills
+		Assert.assertEquals("First burst permit should be immediate", 0, rateLimiter.reserve());
+		Assert.assertEquals("Second burst permit should be immediate", 0, rateLimiter.reserve());
+		Assert.assertTrue("Should reject once the burst is used", rateLimiter.reserve() < 0);
+
+		Thread.sleep(150);
+		Assert.assertEquals("Should allow a call once refilled", 0, rateLimiter.reserve());
+		Assert.assertEquals("Should count the rejection", 1, rateLimiter.getRejectedCount());
+	}
+
+	@Test
+	public void queueRejectsWhenFull() {
+		RateLimiter rateLimiter = createLimiter(Mode.QUEUE);
+
+		//Test up to the max queued calls wait and the rest are rejected
+		int permitted = 0;
+		for(int i = 0; i < 10; i++) {
+			if(rateLimiter.reserve() >= 0) {
+				permitted++;
+			}
+		}
+
+		Assert.assertEquals("Should allow the burst and the queued calls", 5, permitted);
+		Assert.assertEquals("Should reject the rest", 5, rateLimiter.getRejectedCount());
+	}
+
+	@Test
+	public void backOffPausesPermits() {
+		RateLimiter rateLimiter = createLimiter(Mode.FAIL_FAST);
+
+		//Test a 429 stops permits even when the bucket is full
+		rateLimiter.backOff(200);
+		Assert.assertTrue("Should reject while backing off", rateLimiter.reserve() < 0);
+		Assert.assertEquals("Should count the back off", 1, rateLimiter.getBackOffCount());
+
+		RateLimiter blocking = createLimiter(Mode.BLOCK);
+		blocking.backOff(200);
+		Assert.assertTrue("Should wait out the back off", blocking.reserve() > TimeUnit.MILLISECONDS.toNanos(150));
+	}
+
+	@Test
+	public void sharedPerApiKeyAndTopic() {
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder
+				.create()
+				.setApiKeyRateLimiter(createLimiter(Mode.BLOCK))
+				.setTopicRateLimiter(createLimiter(Mode.BLOCK))
+				.build();
+
+		Assert.assertSame("Same API key should share a limiter", factory.getApiKeyRateLimiter("key"), factory.getApiKeyRateLimiter("key"));
+		Assert.assertNotSame("API keys should not share a limiter", factory.getApiKeyRateLimiter("key"), factory.getApiKeyRateLimiter("other"));
+		Assert.assertSame("Same topic should share a limiter", factory.getTopicRateLimiter(Environment.DEV, "topic"), factory.getTopicRateLimiter(Environment.DEV, "topic"));
+		Assert.assertNotSame("Environments should not share a limiter", factory.getTopicRateLimiter(Environment.DEV, "topic"), factory.getTopicRateLimiter(Environment.PROD, "topic"));
+		factory.close();
+
+		EventHubClientFactory defaults = EventHubClientFactory.FactoryBuilder.create().build();
+		Assert.assertNull("Rate limiting should be off by default", defaults.getApiKeyRateLimiter("key"));
+		Assert.assertNull("Rate limiting should be off by default", defaults.getTopicRateLimiter(Environment.DEV, "topic"));
+
+		defaults.close();
+	}
+}
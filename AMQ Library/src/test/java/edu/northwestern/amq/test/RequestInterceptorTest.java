@@ -0,0 +1,102 @@
+package edu.northwestern.amq.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.AMQPublisher;
+import edu.northwestern.amq.ClientMetrics.Operation;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.ExponentialBackoffRetryPolicy;
+import edu.northwestern.amq.RequestContext;
+import edu.northwestern.amq.RequestInterceptor;
+import edu.northwestern.amq.WriteResult;
+
+
+public class RequestInterceptorTest {
+
+	@Test
+	public void hooksAroundEveryAttempt() throws Exception {
+		final List<String> calls = new ArrayList<String>();
+
+		RequestInterceptor recorder = new RequestInterceptor() {
+
+			@Override
+			public void beforeSend(RequestContext context) {
+				calls.add("beforeSend " + context.getMethod() + " " + context.getOperation());
+				context.getRequest().setHeader("traceparent", "00-trace-span-01");
+				context.setAttribute("sent", Boolean.TRUE);
+			}
+
+			@Override
+			public void afterResponse(RequestContext context) {
+				calls.add("afterResponse " + context.getAttempt() + " " + context.getStatusCode() + " " + (context.getException() != null));
+			}
+
+			@Override
+			public void onRetry(RequestContext context, long delayMillis) {
+				calls.add("onRetry " + context.getAttempt());
+			}
+
+			@Override
+			public void onGiveUp(RequestContext context) {
+				calls.add("onGiveUp " + context.getAttempt() + " " + context.getAttribute("sent"));
+			}
+		};
+
+		RequestInterceptor failing = new RequestInterceptor() {
+
+			@Override
+			public void beforeSend(RequestContext context) {
+				throw new IllegalStateException("Interceptor failures should not reach the call");
+			}
+		};
+
+		EventHubClientFactory factory = EventHubClientFactory.FactoryBuilder
+				.create()
+				.addInterceptor(failing)
+				.addInterceptor(recorder)
+				.build();
+
+		try {
+			//Nothing listens on port 1, every attempt fails to connect
+			AMQPublisher publisher = AMQPublisher.PublisherBuilder
+					.create()
+					.setEnv(Environment.DEV)
+					.setTopic("topic")
+					.setAPIKey("apikey")
+					.setContentType(MediaType.APPLICATION_JSON_TYPE)
+					.setBaseURL("http://127.0.0.1:1/v1/event-hub/")
+					.setMaxAttempts(2)
+					.setRetryPolicy(ExponentialBackoffRetryPolicy.PolicyBuilder.create().setBaseDelayMillis(1).build())
+					.setClientFactory(factory)
+					.build();
+
+			WriteResult writeResult = publisher.writeToTopic("{}".getBytes());
+			Assert.assertFalse("Write should fail", writeResult.isSuccess());
+
+			//Test each attempt is reported once, then the retry and the give up, with the failing interceptor ignored
+			List<String> expected = new ArrayList<String>();
+			expected.add("beforeSend POST " + Operation.WRITE);
+			expected.add("afterResponse 1 0 true");
+			expected.add("onRetry 1");
+			expected.add("beforeSend POST " + Operation.WRITE);
+			expected.add("afterResponse 2 0 true");
+			expected.add("onGiveUp 2 true");
+			Assert.assertEquals(expected, calls);
+		}
+		finally {
+			factory.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullInterceptor() {
+		EventHubClientFactory.FactoryBuilder.create().addInterceptor(null);
+	}
+}
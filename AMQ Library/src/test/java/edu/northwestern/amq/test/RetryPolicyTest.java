@@ -0,0 +1,84 @@
+package edu.northwestern.amq.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.northwestern.amq.ExponentialBackoffRetryPolicy;
+import edu.northwestern.amq.RetryBudget;
+
+
+public class RetryPolicyTest {
+
+	@Test
+	public void exponentialBackoff() {
+		ExponentialBackoffRetryPolicy retryPolicy = ExponentialBackoffRetryPolicy.PolicyBuilder
+				.create()
+				.setBaseDelayMillis(100)
+				.setMaxDelayMillis(1000)
+				.setDeadlineMillis(0)
+				.build();
+
+		//Test the delay is jittered between zero and the capped exponential ceiling
+		long ceiling = 100;
+		for(int failures = 1; failures <= 40; failures++) {
+			long delay = retryPolicy.nextDelayMillis(failures, 0);
+
+			Assert.assertTrue("Delay " + delay + " should be between 0 and " + ceiling, delay >= 0 && delay <= ceiling);
+			ceiling = Math.min(1000, ceiling * 2);
+		}
+	}
+
+	@Test
+	public void deadline() {
+		ExponentialBackoffRetryPolicy retryPolicy = ExponentialBackoffRetryPolicy.PolicyBuilder
+				.create()
+				.setDeadlineMillis(5000)
+				.build();
+
+		//Test no retry is allowed once the deadline has passed
+		Assert.assertTrue("Should give up after the deadline", retryPolicy.nextDelayMillis(1, 5001) < 0);
+	}
+
+	@Test
+	public void retryAfter() {
+		RetryBudget retryBudget = new RetryBudget(0.5, 1);
+		ExponentialBackoffRetryPolicy retryPolicy = ExponentialBackoffRetryPolicy.PolicyBuilder
+				.create()
+				.setBaseDelayMillis(100)
+				.setMaxDelayMillis(5000)
+				.setDeadlineMillis(10000)
+				.setRetryBudget(retryBudget)
+				.build();
+
+		//Test the server's wait is the least the policy waits, and longer waits give up
+		Assert.assertTrue("Should wait at least what the server asked", retryPolicy.nextDelayMillis(1, 0, 3000) >= 3000);
+		Assert.assertTrue("Should give up past the maximum delay", retryPolicy.nextDelayMillis(1, 0, 3600 * 1000) < 0);
+		Assert.assertTrue("Should give up past the deadline", retryPolicy.nextDelayMillis(1, 8000, 3000) < 0);
+
+		//Test a server directed retry spends the budget like any other
+		Assert.assertTrue("Budget should be exhausted", retryPolicy.nextDelayMillis(1, 0, 100) < 0);
+		Assert.assertEquals(1, retryBudget.getRetryCount());
+	}
+
+	@Test
+	public void retryBudget() {
+		RetryBudget retryBudget = new RetryBudget(0.5, 2);
+		ExponentialBackoffRetryPolicy retryPolicy = ExponentialBackoffRetryPolicy.PolicyBuilder
+				.create()
+				.setRetryBudget(retryBudget)
+				.build();
+
+		//Test the reserve allows a burst of retries and is then exhausted
+		Assert.assertTrue("First retry should be allowed", retryPolicy.nextDelayMillis(1, 0) >= 0);
+		Assert.assertTrue("Second retry should be allowed", retryPolicy.nextDelayMillis(1, 0) >= 0);
+		Assert.assertTrue("Budget should be exhausted", retryPolicy.nextDelayMillis(1, 0) < 0);
+
+		//Test two requests earn one retry
+		retryPolicy.requestStarted();
+		retryPolicy.requestStarted();
+		Assert.assertTrue("Requests should earn a retry", retryPolicy.nextDelayMillis(1, 0) >= 0);
+
+		Assert.assertEquals("Retries should be counted", 3, retryBudget.getRetryCount());
+		Assert.assertEquals("Rejected retries should be counted", 1, retryBudget.getRejectedCount());
+	}
+}
@@ -0,0 +1,140 @@
+package edu.northwestern.amq.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.northwestern.amq.AMQClient.Environment;
+import edu.northwestern.amq.AMQPublisher;
+import edu.northwestern.amq.EventHubClientFactory;
+import edu.northwestern.amq.PublishSpool;
+import edu.northwestern.amq.SpoolStats;
+import edu.northwestern.amq.SpoolingPublisher;
+
+
+public class SpoolingPublisherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private EventHubClientFactory factory = null;
+
+	@Before
+	public void createFactory() {
+		factory = EventHubClientFactory.FactoryBuilder.create().build();
+	}
+
+	@After
+	public void closeFactory() {
+		factory.close();
+	}
+
+	/**
+	 * Nothing listens on port 1, the gateway is down for the whole test.
+	 */
+	private AMQPublisher.PublisherBuilder createBuilder(Path directory) {
+		return AMQPublisher.PublisherBuilder
+				.create()
+				.setEnv(Environment.DEV)
+				.setTopic("topic")
+				.setAPIKey("apikey")
+				.setContentType(MediaType.APPLICATION_JSON_TYPE)
+				.setBaseURL("http://127.0.0.1:1/v1/event-hub/")
+				.setMaxAttempts(1)
+				.setClientFactory(factory)
+				.setSpoolDirectory(directory)
+				.setSpoolSegmentBytes(1024)
+				.setMaxSpoolBytes(2048)
+				.setFsyncPolicy(PublishSpool.FsyncPolicy.ALWAYS);
+	}
+
+	@Test
+	public void keptAcrossRestarts() throws Exception {
+		Path directory = folder.getRoot().toPath();
+		SpoolingPublisher publisher = createBuilder(directory).buildSpooling();
+
+		for(int i = 1; i <= 3; i++) {
+			Assert.assertTrue("Write should be spooled", publisher.writeToTopic("{\"n\":" + i + "}"));
+		}
+
+		Assert.assertFalse("Nothing can be sent while the gateway is down", publisher.awaitDrained(200, TimeUnit.MILLISECONDS));
+
+		SpoolStats stats = publisher.getStats();
+		Assert.assertEquals(3, stats.getAppendedCount());
+		Assert.assertEquals(0, stats.getSentCount());
+		Assert.assertTrue("Drainer should keep trying the oldest message", stats.getFailedAttemptCount() > 0);
+		Assert.assertEquals("Each record is its 7 bytes and an 8 byte header", 45, stats.getPendingBytes());
+
+		try {
+			createBuilder(directory).buildSpooling();
+			Assert.fail("Spool directory should be locked");
+		}
+		catch(IllegalStateException e) {
+			//Expected
+		}
+
+		publisher.close();
+
+		//Simulate a crash in the middle of the next append, the torn record must not be sent
+		File segment = directory.resolve(String.format("%019d", 0) + ".segment").toFile();
+
+		try(RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(45);
+			file.writeInt(7);
+			file.writeInt(12345);
+			file.write("{\"n\":4}".getBytes(StandardCharsets.UTF_8));
+		}
+
+		publisher = createBuilder(directory).buildSpooling();
+
+		try {
+			Assert.assertEquals("Intact records should be recovered", 45, publisher.getStats().getPendingBytes());
+			Assert.assertTrue("Appends should continue after the intact records", publisher.writeToTopic("{\"n\":5}"));
+			Assert.assertEquals(60, publisher.getStats().getPendingBytes());
+		}
+		finally {
+			publisher.close();
+		}
+	}
+
+	@Test
+	public void rejectedWhenFull() throws Exception {
+		SpoolingPublisher publisher = createBuilder(folder.getRoot().toPath()).buildSpooling();
+
+		try {
+			byte[] message = new byte[500];
+			message[0] = '1';
+
+			//Two segments of 1024 bytes take two 508 byte records each
+			for(int i = 0; i < 4; i++) {
+				Assert.assertTrue("Write should be spooled", publisher.writeToTopic(message));
+			}
+
+			Assert.assertFalse("Spool should be full", publisher.writeToTopic(message));
+
+			SpoolStats stats = publisher.getStats();
+			Assert.assertEquals(4, stats.getAppendedCount());
+			Assert.assertEquals(1, stats.getRejectedCount());
+			Assert.assertEquals(2, stats.getSegmentCount());
+		}
+		finally {
+			publisher.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void spoolDirectoryRequired() throws Exception {
+		createBuilder(null).buildSpooling();
+	}
+}